@@ -0,0 +1,44 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import global.SystemDefs;
+
+/**
+ * A Minibase database of its own, in a temporary directory removed by
+ * delete(). SystemDefs keeps the database and its buffer manager in static
+ * fields, so only one is open at a time; JMH runs every trial in a JVM of
+ * its own.
+ */
+class Database {
+
+	/**
+	 * pages of the database, enough for the largest tree of the benchmarks
+	 */
+	private static final int PAGES = 200000;
+
+	private final File dir;
+
+	/**
+	 * @param buffers
+	 *            frames of the buffer pool
+	 */
+	Database(int buffers) throws IOException {
+		dir = Files.createTempDirectory("btree-bench").toFile();
+		new SystemDefs(new File(dir, "db").getPath(), PAGES, buffers, "Clock");
+	}
+
+	/**
+	 * Close the database and remove its files, with the logs of the indexes.
+	 */
+	void delete() throws IOException {
+		SystemDefs.JavabaseDB.closeDB();
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		dir.delete();
+	}
+}
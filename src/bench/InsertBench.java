@@ -0,0 +1,89 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import btree.BTreeFile;
+import btree.KeyClass;
+import global.RID;
+
+/**
+ * Inserts of N keys into an empty index, in sequential, reverse or random
+ * order. The database is made once for the trial; every invocation starts
+ * from an index of its own in it, destroyed after it, so the score is in
+ * inserts per second of a tree growing from empty to N.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class InsertBench {
+
+	static final int N = 20000;
+
+	@Param({ "sequential", "reverse", "random" })
+	public String order;
+
+	@Param({ Keys.INTEGER, Keys.STRING })
+	public String keyType;
+
+	@Param({ "100", "1000", "10000" })
+	public int buffers;
+
+	private KeyClass[] keys;
+	private RID[] rids;
+
+	private Database db;
+	private BTreeFile file;
+
+	@Setup(Level.Trial)
+	public void open() throws Exception {
+		int[] numbers = Keys.order(order, N, 42);
+		keys = Keys.keys(keyType, numbers);
+		rids = Keys.rids(numbers);
+		db = new Database(buffers);
+	}
+
+	/**
+	 * A new index for the invocation. The pages of the one before were freed
+	 * with it, so the database does not grow from one to the next.
+	 */
+	@Setup(Level.Invocation)
+	public void create() {
+		file = new BTreeFile("insert", Keys.attrType(keyType),
+				Keys.keySize(keyType), 0);
+	}
+
+	@TearDown(Level.Invocation)
+	public void destroy() {
+		file.destroyFile();
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws Exception {
+		db.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public void insert() {
+		for (int i = 0; i < N; i++)
+			file.insert(keys[i], rids[i]);
+	}
+}
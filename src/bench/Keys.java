@@ -0,0 +1,89 @@
+package bench;
+
+import java.util.Random;
+
+import btree.IntegerKey;
+import btree.KeyClass;
+import btree.StringKey;
+import global.AttrType;
+import global.PageId;
+import global.RID;
+
+/**
+ * Keys for the benchmarks, made before the measurement starts. The key type
+ * is a benchmark parameter: "integer" for IntegerKey, "string" for a
+ * StringKey of the number written out in ten digits, which sorts as the
+ * number does.
+ */
+final class Keys {
+
+	static final String INTEGER = "integer";
+	static final String STRING = "string";
+
+	private Keys() {
+	}
+
+	static int attrType(String keyType) {
+		return STRING.equals(keyType) ? AttrType.attrString
+				: AttrType.attrInteger;
+	}
+
+	static int keySize(String keyType) {
+		return STRING.equals(keyType) ? 10 : 4;
+	}
+
+	/**
+	 * the key of the number k, not negative
+	 */
+	static KeyClass key(String keyType, int k) {
+		if (STRING.equals(keyType))
+			return new StringKey(String.format("%010d", k));
+		return new IntegerKey(k);
+	}
+
+	/**
+	 * the keys of the numbers, in their order
+	 */
+	static KeyClass[] keys(String keyType, int[] numbers) {
+		KeyClass[] keys = new KeyClass[numbers.length];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = key(keyType, numbers[i]);
+		return keys;
+	}
+
+	/**
+	 * a rid for the entry of the number k
+	 */
+	static RID rid(int k) {
+		return new RID(new PageId(k), k & 0xffff);
+	}
+
+	static RID[] rids(int[] numbers) {
+		RID[] rids = new RID[numbers.length];
+		for (int i = 0; i < rids.length; i++)
+			rids[i] = rid(numbers[i]);
+		return rids;
+	}
+
+	/**
+	 * The numbers from 0 to n - 1 in the given order: "sequential",
+	 * "reverse" or "random" (the same shuffle for the same seed).
+	 */
+	static int[] order(String order, int n, long seed) {
+		int[] numbers = new int[n];
+		for (int i = 0; i < n; i++)
+			numbers[i] = "reverse".equals(order) ? n - 1 - i : i;
+		if ("random".equals(order))
+			shuffle(numbers, new Random(seed));
+		return numbers;
+	}
+
+	static void shuffle(int[] numbers, Random random) {
+		for (int i = numbers.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int t = numbers[i];
+			numbers[i] = numbers[j];
+			numbers[j] = t;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import btree.BTreeFile;
+import btree.KeyClass;
+import btree.KeyDataEntry;
+import global.RID;
+
+/**
+ * Point lookups of random keys in an index of N keys, bulk loaded at the
+ * start of the trial. Every lookup goes through lookupBatch with a batch of
+ * one key, which is a search from the root to the leaf.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class LookupBench {
+
+	static final int N = 100000;
+
+	@Param({ Keys.INTEGER, Keys.STRING })
+	public String keyType;
+
+	@Param({ "100", "1000", "10000" })
+	public int buffers;
+
+	private KeyClass[][] probes;
+	private int next;
+
+	private Database db;
+	private BTreeFile file;
+
+	@Setup(Level.Trial)
+	public void load() throws Exception {
+		db = new Database(buffers);
+		file = load("lookup", keyType, N);
+		int[] numbers = Keys.order("random", N, 7);
+		probes = new KeyClass[N][];
+		for (int i = 0; i < N; i++)
+			probes[i] = new KeyClass[] { Keys.key(keyType, numbers[i]) };
+	}
+
+	/**
+	 * a new index of the keys from 0 to n - 1, bulk loaded full
+	 */
+	static BTreeFile load(String name, String keyType, int n) {
+		BTreeFile file = new BTreeFile(name, Keys.attrType(keyType),
+				Keys.keySize(keyType), 0);
+		ArrayList<KeyDataEntry> entries = new ArrayList<KeyDataEntry>(n);
+		for (int i = 0; i < n; i++)
+			entries.add(new KeyDataEntry(Keys.key(keyType, i), Keys.rid(i)));
+		file.bulkLoad(entries.iterator(), 1.0);
+		return file;
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws Exception {
+		file.close();
+		db.delete();
+	}
+
+	@Benchmark
+	public RID lookup() {
+		KeyClass[] probe = probes[next];
+		next = next + 1 == N ? 0 : next + 1;
+		return file.lookupBatch(probe)[0];
+	}
+}
@@ -0,0 +1,98 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import btree.BTreeFile;
+import btree.KeyClass;
+import global.RID;
+
+/**
+ * Inserts and deletes of random keys, the index holding about N of them
+ * throughout: every operation inserts the next key of a random order of
+ * them all, and deletes the key inserted N operations before. The score is
+ * in operations per second, each an insert and a delete.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class MixedBench {
+
+	static final int N = 20000;
+
+	/**
+	 * keys in the order, the most the trial goes through before it starts
+	 * over from an index of N keys again
+	 */
+	static final int KEYS = 1 << 18;
+
+	@Param({ Keys.INTEGER, Keys.STRING })
+	public String keyType;
+
+	@Param({ "100", "1000", "10000" })
+	public int buffers;
+
+	/**
+	 * 0 for naive deletes, 1 for full deletes that merge pages
+	 */
+	@Param({ "0", "1" })
+	public int deleteFashion;
+
+	private KeyClass[] keys;
+	private RID[] rids;
+	private int next;
+
+	private Database db;
+	private BTreeFile file;
+
+	@Setup(Level.Trial)
+	public void open() throws Exception {
+		int[] numbers = Keys.order("random", KEYS, 3);
+		keys = Keys.keys(keyType, numbers);
+		rids = Keys.rids(numbers);
+		db = new Database(buffers);
+		file = new BTreeFile("mixed", Keys.attrType(keyType),
+				Keys.keySize(keyType), deleteFashion);
+		fill();
+	}
+
+	private void fill() {
+		for (next = 0; next < N; next++)
+			file.insert(keys[next], rids[next]);
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws Exception {
+		file.close();
+		db.delete();
+	}
+
+	@Benchmark
+	public boolean insertDelete() {
+		if (next == KEYS) {
+			for (int i = KEYS - N; i < KEYS; i++)
+				file.Delete(keys[i], rids[i]);
+			fill();
+		}
+		file.insert(keys[next], rids[next]);
+		boolean found = file.Delete(keys[next - N], rids[next - N]);
+		next++;
+		return found;
+	}
+}
@@ -0,0 +1,104 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import btree.BTCursor;
+import btree.BTFileScan;
+import btree.BTreeFile;
+import btree.KeyClass;
+import btree.KeyDataEntry;
+import btree.MutableKey;
+import global.PageId;
+import global.RID;
+
+/**
+ * Range scans of width keys, from a random key of an index of N keys, with a
+ * BTFileScan and with a BTCursor. The score is in scans per second; times
+ * width, it is entries per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ScanBench {
+
+	static final int N = 100000;
+
+	@Param({ "10", "1000", "100000" })
+	public int width;
+
+	@Param({ Keys.INTEGER, Keys.STRING })
+	public String keyType;
+
+	@Param({ "100", "1000", "10000" })
+	public int buffers;
+
+	private KeyClass[] lo;
+	private KeyClass[] hi;
+	private int next;
+
+	/**
+	 * the key and rid the cursor sets, for all the scans
+	 */
+	private final MutableKey key = new MutableKey();
+	private final RID rid = new RID(new PageId(), 0);
+
+	private Database db;
+	private BTreeFile file;
+
+	@Setup(Level.Trial)
+	public void load() throws Exception {
+		db = new Database(buffers);
+		file = LookupBench.load("scan", keyType, N);
+		Random random = new Random(11);
+		lo = new KeyClass[1024];
+		hi = new KeyClass[lo.length];
+		for (int i = 0; i < lo.length; i++) {
+			int from = random.nextInt(N - width + 1);
+			lo[i] = Keys.key(keyType, from);
+			hi[i] = Keys.key(keyType, from + width - 1);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws Exception {
+		file.close();
+		db.delete();
+	}
+
+	@Benchmark
+	public void scan(Blackhole hole) {
+		BTFileScan scan = file.new_scan(lo[next], hi[next]);
+		next = (next + 1) % lo.length;
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null)
+			hole.consume(entry);
+		scan.DestroyBTreeFileScan();
+	}
+
+	@Benchmark
+	public void cursor(Blackhole hole) {
+		BTCursor cursor = file.new_cursor(lo[next], hi[next]);
+		next = (next + 1) % lo.length;
+		while (cursor.next(key, rid))
+			hole.consume(rid.slotNo);
+	}
+}
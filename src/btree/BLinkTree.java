@@ -0,0 +1,540 @@
+package btree;
+
+import java.util.ArrayList;
+import java.util.Stack;
+
+import bufmgr.BufMgr;
+import global.AttrType;
+import global.Convert;
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import heap.HFPage;
+
+/**
+ * Concurrent access path of a BTreeFile created with BTreeFlags.BLINK, after
+ * Lehman and Yao.
+ *
+ * Every page keeps a right link (its next page, on index pages as well as on
+ * leaves) and, in a trailer reserved at the end of the page, its level (0 for
+ * leaves) and its high key: the first key that no longer belongs to it, or
+ * none for the rightmost page of a level. A page that is split keeps the lower
+ * half and links to the new right half before the separator reaches the
+ * parent, so a search that finds its key >= the high key of a page simply
+ * moves right. Readers therefore hold one shared latch at a time and never
+ * wait for a split to finish higher up; a writer holds an exclusive latch on
+ * the page it changes and, while posting a split, on that page's parent.
+ * Latches are taken bottom-up and left to right, so writers cannot deadlock.
+ *
+ * Latches and pins go through PageLatches. One BTreeFile (and so one
+ * BLinkTree) must be shared by all the threads using the index.
+ */
+class BLinkTree implements GlobalConst {
+
+	private final BTreeHeaderPage header;
+	final PageLatches latches;
+
+	final int keyType;
+	final int maxKeyLength;
+
+	/**
+	 * bytes reserved at the end of every page: level (2), high key length (2,
+	 * -1 when there is no high key) and the high key itself
+	 */
+	private final int trailerSize;
+
+	BLinkTree(BTreeHeaderPage header, BufMgr bufMgr) {
+		this.header = header;
+		latches = new PageLatches(bufMgr);
+		latches.setMetrics(header.getMetrics());
+		keyType = header.getSearchKeyType();
+		maxKeyLength = header.getMaxKeyLength();
+		trailerSize = 4 + (keyType == AttrType.attrInteger ? 4
+				: 2 + 3 * maxKeyLength);
+	}
+
+	// /////////////////////////////////////////////////////////////////////
+	// page trailer
+	// /////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Empty the page and reserve its trailer: the page gets the given level
+	 * and no high key. Links and type are left alone.
+	 */
+	void format(HFPage page, int level) throws java.io.IOException {
+		byte[] data = page.getpage();
+		int t = MAX_SPACE - trailerSize;
+		Convert.setShortValue((short) 0, HFPage.SLOT_CNT, data);
+		Convert.setShortValue((short) t, HFPage.USED_PTR, data);
+		Convert.setShortValue((short) (t - HFPage.DPFIXED), HFPage.FREE_SPACE,
+				data);
+		Convert.setShortValue((short) level, t, data);
+		Convert.setShortValue((short) -1, t + 2, data);
+	}
+
+	int level(byte[] data) {
+		return SlotSearch.readShort(data, MAX_SPACE - trailerSize);
+	}
+
+	/**
+	 * @return the sign of key - high key of the page; negative if the page has
+	 *         no high key
+	 */
+	private int compareHighKey(KeyClass key, byte[] data)
+			throws KeyNotMatchException {
+		int t = MAX_SPACE - trailerSize;
+		if (SlotSearch.readShort(data, t + 2) < 0)
+			return -1;
+		return SlotSearch.compare(key, data, t + 4);
+	}
+
+	/**
+	 * @param key
+	 *            the new high key, null for none
+	 */
+	void setHighKey(HFPage page, KeyClass key) throws java.io.IOException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException {
+		byte[] data = page.getpage();
+		int t = MAX_SPACE - trailerSize;
+		if (key == null) {
+			Convert.setShortValue((short) -1, t + 2, data);
+			return;
+		}
+		// an index entry is the key followed by a 4 byte page id
+		byte[] rec = BT.getBytesFromEntry(new KeyDataEntry(key, new PageId()));
+		setHighKey(data, rec, rec.length - 4);
+	}
+
+	private void setHighKey(byte[] data, byte[] key, int length)
+			throws java.io.IOException, KeyNotMatchException {
+		int t = MAX_SPACE - trailerSize;
+		if (length > trailerSize - 4)
+			throw new KeyNotMatchException(null,
+					"key longer than the maximum key length");
+		Convert.setShortValue((short) length, t + 2, data);
+		System.arraycopy(key, 0, data, t + 4, length);
+	}
+
+	private void copyHighKey(byte[] from, byte[] to) {
+		int t = MAX_SPACE - trailerSize + 2;
+		System.arraycopy(from, t, to, t, trailerSize - 2);
+	}
+
+	// /////////////////////////////////////////////////////////////////////
+	// latches and buffer access
+	// /////////////////////////////////////////////////////////////////////
+
+	private BTSortedPage pin(PageId pid) throws ConstructPageException {
+		return latches.pin(pid, keyType);
+	}
+
+	private void unpin(PageId pid, boolean dirty) throws Exception {
+		latches.unpin(pid, dirty);
+	}
+
+	private void unlockShared(PageId pid, boolean dirty) throws Exception {
+		latches.unpinShared(pid, dirty);
+	}
+
+	private void unlockExclusive(PageId pid, boolean dirty) throws Exception {
+		latches.unpinExclusive(pid, dirty);
+	}
+
+	PageId getRoot() {
+		return header.getRootID();
+	}
+
+	/**
+	 * Make pid the root, under this object's monitor.
+	 */
+	synchronized void setRoot(PageId pid) {
+		header.setRootID(pid);
+	}
+
+	// /////////////////////////////////////////////////////////////////////
+	// searching
+	// /////////////////////////////////////////////////////////////////////
+
+	/**
+	 * whether a search for key must leave the page for its right sibling;
+	 * lower searches look for the first occurrence of the key, which may still
+	 * be on this page when key equals the high key
+	 */
+	private boolean movesRight(KeyClass key, byte[] data, boolean lower)
+			throws KeyNotMatchException {
+		if (key == null)
+			return false;
+		int c = compareHighKey(key, data);
+		return lower ? c > 0 : c >= 0;
+	}
+
+	/**
+	 * child of an index page to follow for key, null meaning the leftmost one
+	 */
+	private PageId child(byte[] data, KeyClass key, boolean lower)
+			throws KeyNotMatchException {
+		int slot = -1;
+		if (key != null) {
+			int n = SlotSearch.slotCount(data);
+			slot = (lower ? SlotSearch.lowerBound(data, n, key) : SlotSearch
+					.upperBound(data, n, key)) - 1;
+		}
+		if (slot < 0)
+			return new PageId(SlotSearch.readInt(data, HFPage.PREV_PAGE));
+		return new PageId(SlotSearch.childPid(data, slot));
+	}
+
+	/**
+	 * Walk down from the root to the page of the given level that covers key,
+	 * moving right past pages that were split under us. One shared latch is
+	 * held at a time.
+	 *
+	 * @param path
+	 *            if not null, the index pages passed on the way are pushed on
+	 *            it
+	 * @return the page found; neither pinned nor latched
+	 */
+	PageId descend(KeyClass key, int level, boolean lower, Stack<PageId> path)
+			throws Exception {
+		PageId pid = getRoot();
+		latches.lockShared(pid);
+		BTSortedPage page = pin(pid);
+		while (true) {
+			byte[] data = page.getpage();
+			PageId next;
+			if (movesRight(key, data, lower)) {
+				next = page.getNextPage();
+			} else if (level(data) <= level) {
+				unlockShared(pid, false);
+				return pid;
+			} else {
+				if (path != null)
+					path.push(pid);
+				next = child(data, key, lower);
+			}
+			unlockShared(pid, false);
+			pid = next;
+			latches.lockShared(pid);
+			page = pin(pid);
+		}
+	}
+
+	/**
+	 * Walk down from the root to the last leaf, for a descending scan with no
+	 * high key: the last child of every index page, moving right to the last
+	 * page of its level. One shared latch is held at a time.
+	 *
+	 * @return the leaf; neither pinned nor latched
+	 */
+	PageId lastLeaf() throws Exception {
+		PageId pid = getRoot();
+		latches.lockShared(pid);
+		BTSortedPage page = pin(pid);
+		while (true) {
+			byte[] data = page.getpage();
+			PageId next = new PageId(page.getNextPage().pid);
+			if (next.pid == INVALID_PAGE) {
+				if (level(data) == 0) {
+					unlockShared(pid, false);
+					return pid;
+				}
+				next = new PageId(SlotSearch.lastChild(data));
+			}
+			unlockShared(pid, false);
+			pid = next;
+			latches.lockShared(pid);
+			page = pin(pid);
+		}
+	}
+
+	/**
+	 * Latch pid exclusively, then move right (latching the right sibling
+	 * before releasing the page) until reaching the page that covers key.
+	 *
+	 * @return the page, pinned and exclusively latched
+	 */
+	private BTSortedPage lockExclusive(PageId pid, KeyClass key, boolean lower)
+			throws Exception {
+		latches.lockExclusive(pid);
+		BTSortedPage page = pin(pid);
+		while (movesRight(key, page.getpage(), lower)) {
+			PageId next = page.getNextPage();
+			latches.lockExclusive(next);
+			unlockExclusive(pid, false);
+			pid = next;
+			page = pin(pid);
+		}
+		return page;
+	}
+
+	// /////////////////////////////////////////////////////////////////////
+	// insert and delete
+	// /////////////////////////////////////////////////////////////////////
+
+	void insert(KeyClass key, RID rid) throws Exception {
+		KeyClass entryKey = key;
+		Stack<PageId> path = new Stack<PageId>();
+		PageId pid = descend(key, 0, false, path);
+		byte[] rec = BT.getBytesFromEntry(new KeyDataEntry(key, rid));
+		BTSortedPage node = lockExclusive(pid, key, false);
+		while (true) {
+			pid = node.getCurPage();
+			if (SlotSearch.insertSorted(node, rec, key) >= 0) {
+				unlockExclusive(pid, true);
+				break;
+			}
+			int level = level(node.getpage());
+			byte[] sep = split(node, rec, key, level);
+			KeyClass sepKey = BT.getEntryFromBytes(sep, 0, sep.length,
+					keyType, NodeType.INDEX).key;
+
+			// latch the parent before letting go of the split page
+			BTSortedPage parent;
+			if (!path.isEmpty())
+				parent = lockExclusive(path.pop(), sepKey, false);
+			else
+				parent = growRoot(pid, level, sep, sepKey);
+			unlockExclusive(pid, true);
+			if (parent == null)
+				break;
+			node = parent;
+			rec = sep;
+			key = sepKey;
+		}
+		header.countEntry(entryKey, 1);
+	}
+
+	/**
+	 * Insert a batch, in the given order of its keys: each leaf is reached
+	 * once and takes all the keys below its high key that still fit; a key
+	 * that does not goes through insert.
+	 */
+	void insertBatch(KeyClass[] keys, RID[] rids, Integer[] order)
+			throws Exception {
+		int i = 0;
+		while (i < order.length) {
+			KeyClass key = keys[order[i]];
+			BTSortedPage node = lockExclusive(descend(key, 0, false, null),
+					key, false);
+			PageId pid = node.getCurPage();
+			boolean dirty = false, full = false;
+			while (i < order.length) {
+				key = keys[order[i]];
+				if (compareHighKey(key, node.getpage()) >= 0)
+					break;
+				byte[] rec = BT.getBytesFromEntry(new KeyDataEntry(key,
+						rids[order[i]]));
+				if (SlotSearch.insertSorted(node, rec, key) < 0) {
+					full = true;
+					break;
+				}
+				dirty = true;
+				header.countEntry(key, 1);
+				i++;
+			}
+			unlockExclusive(pid, dirty);
+			if (full) {
+				insert(key, rids[order[i]]);
+				i++;
+			}
+		}
+	}
+
+	/**
+	 * Find the first entry of each key, the keys taken in the given order,
+	 * which is sorted. A leaf stays pinned and latched shared for as long as
+	 * the keys fall below its high key.
+	 *
+	 * @param found
+	 *            gets the rid found for each key, at the index of the key
+	 */
+	void lookupBatch(KeyClass[] keys, Integer[] order, RID[] found)
+			throws Exception {
+		PageId pid = null;
+		BTSortedPage leaf = null;
+		for (int i = 0; i < order.length; i++) {
+			KeyClass key = keys[order[i]];
+			if (leaf != null && compareHighKey(key, leaf.getpage()) > 0) {
+				unlockShared(pid, false);
+				leaf = null;
+			}
+			if (leaf == null) {
+				pid = descend(key, 0, true, null);
+				latches.lockShared(pid);
+				leaf = pin(pid);
+				while (movesRight(key, leaf.getpage(), true)) {
+					PageId next = new PageId(leaf.getNextPage().pid);
+					latches.lockShared(next);
+					unlockShared(pid, false);
+					pid = next;
+					leaf = pin(pid);
+				}
+			}
+			while (true) {
+				byte[] data = leaf.getpage();
+				int n = SlotSearch.slotCount(data);
+				int slot = SlotSearch.lowerBound(data, n, key);
+				if (slot < n) {
+					if (SlotSearch.compare(key, data,
+							SlotSearch.slotOffset(data, slot)) == 0) {
+						found[order[i]] = new RID(new PageId(), 0);
+						SlotSearch.readRid(data, slot, found[order[i]]);
+					}
+					break;
+				}
+				// only the duplicates of the high key go on past the leaf
+				if (compareHighKey(key, data) != 0)
+					break;
+				PageId next = new PageId(leaf.getNextPage().pid);
+				latches.lockShared(next);
+				unlockShared(pid, false);
+				pid = next;
+				leaf = pin(pid);
+			}
+		}
+		if (leaf != null)
+			unlockShared(pid, false);
+	}
+
+	/**
+	 * Post a separator above a page that was the root when we passed it. If it
+	 * still is, a new root is made; otherwise the tree has grown in the
+	 * meantime and the parent is searched for from the new root.
+	 *
+	 * @return the parent, pinned and exclusively latched; null if a new root
+	 *         was made
+	 */
+	private BTSortedPage growRoot(PageId child, int level, byte[] sep,
+			KeyClass sepKey) throws Exception {
+		synchronized (this) {
+			if (header.getRootID().pid == child.pid) {
+				BTIndexPage root = latches.newIndexPage(keyType);
+				header.countIndexPages(1);
+				header.countLevels(1);
+				header.getMetrics().rootGrowths.increment();
+				format(root, level + 1);
+				root.setLeftLink(child);
+				root.insertRecord(sep);
+				setRoot(root.getCurPage());
+				unpin(root.getCurPage(), true);
+				return null;
+			}
+		}
+		return lockExclusive(descend(sepKey, level + 1, false, null), sepKey,
+				false);
+	}
+
+	/**
+	 * Split a full page that rec does not fit on. The upper half goes to a new
+	 * right sibling, which takes over the high key and the right link; the
+	 * page keeps the lower half and gets the separator as its high key. The
+	 * page stays pinned and latched.
+	 *
+	 * @return the index entry (separator, new page) to insert into the parent
+	 */
+	private byte[] split(BTSortedPage node, byte[] rec, KeyClass key,
+			int level) throws Exception {
+		byte[] data = node.getpage();
+		boolean leaf = level == 0;
+		int n = SlotSearch.slotCount(data);
+		int pos = SlotSearch.upperBound(data, n, key);
+
+		// every record, the new one in its place
+		ArrayList<byte[]> recs = new ArrayList<byte[]>(n + 1);
+		int total = rec.length;
+		for (int i = 0; i < n; i++) {
+			if (i == pos)
+				recs.add(rec);
+			byte[] r = new byte[SlotSearch.slotLength(data, i)];
+			System.arraycopy(data, SlotSearch.slotOffset(data, i), r, 0,
+					r.length);
+			recs.add(r);
+			total += r.length;
+		}
+		if (pos == n)
+			recs.add(rec);
+
+		// the separator is the first record past half of the bytes
+		int m = 1, bytes = recs.get(0).length;
+		while (m < recs.size() - 1 && bytes + recs.get(m).length <= total / 2)
+			bytes += recs.get(m++).length;
+		byte[] sepRec = recs.get(m);
+		int keyLength = sepRec.length - (leaf ? 8 : 4);
+
+		BTSortedPage right = leaf ? latches.newLeafPage(keyType) : latches
+				.newIndexPage(keyType);
+		PageId rightId = right.getCurPage();
+		if (leaf) {
+			header.countLeaves(1);
+			header.getMetrics().leafSplits.increment();
+		} else {
+			header.countIndexPages(1);
+			header.getMetrics().indexSplits.increment();
+		}
+		format(right, level);
+		int first = m;
+		if (!leaf) {
+			// the separator's child becomes the left link of the new page
+			right.setPrevPage(new PageId(SlotSearch.readInt(sepRec,
+					sepRec.length - 4)));
+			first = m + 1;
+		}
+		for (int i = first; i < recs.size(); i++)
+			right.insertRecord(recs.get(i));
+		copyHighKey(data, right.getpage());
+		// HFPage hands out its own PageId objects, which setNextPage changes
+		PageId oldNext = new PageId(node.getNextPage().pid);
+		right.setNextPage(oldNext);
+		if (leaf)
+			right.setPrevPage(node.getCurPage());
+
+		// only now that the right page is complete does the page link to it
+		format(node, level);
+		for (int i = 0; i < m; i++)
+			node.insertRecord(recs.get(i));
+		setHighKey(data, sepRec, keyLength);
+		node.setNextPage(rightId);
+		unpin(rightId, true);
+
+		if (leaf && oldNext.pid != INVALID_PAGE) {
+			BTSortedPage after = lockExclusive(oldNext, null, false);
+			after.setPrevPage(rightId);
+			unlockExclusive(oldNext, true);
+		}
+
+		byte[] sep = new byte[keyLength + 4];
+		System.arraycopy(sepRec, 0, sep, 0, keyLength);
+		Convert.setIntValue(rightId.pid, keyLength, sep);
+		return sep;
+	}
+
+	boolean delete(KeyClass key, RID rid) throws Exception {
+		header.getMetrics().deletes.increment();
+		PageId pid = descend(key, 0, true, null);
+		BTSortedPage leaf = lockExclusive(pid, key, true);
+		while (true) {
+			pid = leaf.getCurPage();
+			byte[] data = leaf.getpage();
+			int n = SlotSearch.slotCount(data);
+			for (int slot = SlotSearch.lowerBound(data, n, key); slot < n
+					&& SlotSearch.compare(key, data,
+							SlotSearch.slotOffset(data, slot)) == 0; slot++) {
+				if (SlotSearch.ridEquals(data, slot, rid)) {
+					leaf.deleteSortedRecord(new RID(pid, slot));
+					unlockExclusive(pid, true);
+					header.countEntry(key, -1);
+					return true;
+				}
+			}
+			// duplicates of the key can only go on past the high key
+			if (compareHighKey(key, data) < 0) {
+				unlockExclusive(pid, false);
+				return false;
+			}
+			PageId next = leaf.getNextPage();
+			latches.lockExclusive(next);
+			unlockExclusive(pid, false);
+			leaf = pin(next);
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package btree;
+
+import diskmgr.Page;
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import heap.HFPage;
+
+/**
+ * Cursor over a key range of a BTreeFile that makes no objects per entry:
+ * next(key, rid) sets a MutableKey and a RID of the caller's to the key and
+ * rid of the next entry, and the same two can be passed to every call.
+ *
+ * The cursor reads a leaf at a time. It copies the leaf while it holds the
+ * latch, finds where the range ends on it by comparing the high key with the
+ * keys as they are stored, and returns the entries off the copy; so it pins
+ * a leaf once for all of its entries, where a scan pins it once per entry.
+ * Once the copy is used up it finds its place again from the last entry it
+ * returned, as ScanPosition.next does, and goes on from there with the
+ * rest of the leaf, or the leaves after it. No page stays pinned between
+ * calls; an entry deleted after its leaf was copied may still be returned.
+ *
+ * The cursor of a B-link tree unwraps a BTFileScan, which makes the entries.
+ */
+public class BTCursor implements GlobalConst {
+
+	private final KeyClass loKey;
+	private final KeyClass hiKey;
+
+	private BTreeHeaderPage header;
+	private PageLatches latches;
+	private PagePrefix prefix;
+	private int keyType;
+
+	/**
+	 * the scan of a B-link tree, which this cursor only unwraps
+	 */
+	private BTFileScan scan;
+
+	/**
+	 * fetches the leaves ahead of the cursor in the background
+	 */
+	private LeafPrefetcher readAhead;
+
+	/**
+	 * the leaf pinned to be copied, and the one it moves to
+	 */
+	private final Page page = new Page(null);
+	private final PageId pid = new PageId();
+	private final PageId next = new PageId();
+
+	/**
+	 * Copy of the leaf the cursor is on: the entries from slot up to end are
+	 * still to be returned, and those from end on are above the high key;
+	 * count is the number of entries on it.
+	 */
+	private final byte[] copy = new byte[MINIBASE_PAGESIZE];
+	private int slot;
+	private int end;
+	private int count;
+
+	/**
+	 * Where the cursor is: the leaf of the last entry returned, and its key
+	 * and rid
+	 */
+	private int leaf;
+	private boolean started;
+	private final MutableKey key = new MutableKey();
+	private final RID rid = new RID(new PageId(), 0);
+
+	private boolean done;
+
+	/**
+	 * whether the cursor counts as an open scan, see
+	 * BTreeHeaderPage.scanOpened
+	 */
+	private boolean open;
+
+	/**
+	 * Cursor over the keys from lo_key to hi_key, both included, null for no
+	 * bound; lo_key must not be above hi_key.
+	 */
+	BTCursor(KeyClass lo_key, KeyClass hi_key, BTreeHeaderPage header,
+			PageLatches latches) throws Exception {
+		loKey = lo_key;
+		hiKey = hi_key;
+		this.header = header;
+		this.latches = latches;
+		prefix = latches.prefix;
+		keyType = header.getSearchKeyType();
+		BTSortedPage first = latches.latchLeaf(header, keyType, loKey, true,
+				false);
+		pid.pid = first.getCurPage().pid;
+		leaf = pid.pid;
+		header.scanOpened();
+		open = true;
+		latches.unpinShared(pid, false);
+		readAhead = new LeafPrefetcher(latches, keyType, hiKey);
+	}
+
+	/**
+	 * Cursor over a scan of a B-link tree, over the same keys.
+	 */
+	BTCursor(KeyClass lo_key, KeyClass hi_key, BTFileScan scan) {
+		loKey = lo_key;
+		hiKey = hi_key;
+		this.scan = scan;
+	}
+
+	/**
+	 * Move to the next entry.
+	 * 
+	 * @param key
+	 *            set to the key of the entry
+	 * @param rid
+	 *            set to its rid; its page id is set, not replaced
+	 * @return false if done, leaving key and rid as they were
+	 */
+	public boolean next(MutableKey key, RID rid) {
+		try {
+			if (done)
+				return false;
+			if (scan != null) {
+				KeyDataEntry entry = scan.get_next();
+				if (entry == null) {
+					done = true;
+					return false;
+				}
+				key.set(entry.key);
+				RID found = ((LeafData) entry.data).getData();
+				rid.slotNo = found.slotNo;
+				rid.pageNo.pid = found.pageNo.pid;
+				return true;
+			}
+			if (slot == end && (end < count || !read() || slot == end)) {
+				close();
+				return false;
+			}
+			prefix.key(copy, slot, keyType, this.key);
+			SlotSearch.readRid(copy, slot, this.rid);
+			slot++;
+			started = true;
+			key.set(this.key);
+			rid.slotNo = this.rid.slotNo;
+			rid.pageNo.pid = this.rid.pageNo.pid;
+			return true;
+		} catch (Exception e) {
+			close();
+			return false;
+		}
+	}
+
+	/**
+	 * Copy the leaf of the entry after the last one returned, following the
+	 * next links as ScanPosition.next does.
+	 * 
+	 * @return false at the end of the leaf level
+	 */
+	private boolean read() throws Exception {
+		// entries with the key of the last one before it on its leaf
+		int run = started ? slot - 1 - prefix.lowerBound(copy, slot - 1, key)
+				: 0;
+		int from = started ? leaf : INVALID_PAGE;
+		pid.pid = leaf;
+		latches.pinShared(pid, page);
+		boolean home = true;
+		while (true) {
+			byte[] data = page.getpage();
+			int n = SlotSearch.slotCount(data);
+			int at = position(data, n, home, run);
+			if (at < n) {
+				System.arraycopy(data, 0, copy, 0, copy.length);
+				latches.unpinShared(pid, false);
+				slot = at;
+				count = n;
+				end = hiKey == null ? n : prefix.upperBound(copy, n, hiKey);
+				leaf = pid.pid;
+				if (leaf != from)
+					readAhead.reached(pid);
+				return true;
+			}
+			next.pid = SlotSearch.readInt(data, HFPage.NEXT_PAGE);
+			if (next.pid == INVALID_PAGE) {
+				latches.unpinShared(pid, false);
+				return false;
+			}
+			latches.lockShared(next);
+			latches.unpinShared(pid, false);
+			pid.pid = next.pid;
+			latches.pin(pid, page);
+			home = false;
+		}
+	}
+
+	/**
+	 * slot of the entry after the last one returned, see ScanPosition.position
+	 * 
+	 * @param run
+	 *            entries with the same key before the last one on its leaf
+	 */
+	private int position(byte[] data, int n, boolean home, int run)
+			throws KeyNotMatchException {
+		if (!started)
+			return loKey == null ? 0 : prefix.lowerBound(data, n, loKey);
+		int at = prefix.lowerBound(data, n, key);
+		int past = at;
+		while (past < n
+				&& prefix.compare(key, data,
+						SlotSearch.slotOffset(data, past)) == 0) {
+			if (SlotSearch.ridEquals(data, past, rid))
+				return past + 1;
+			past++;
+		}
+		if (!home)
+			return at;
+		return Math.min(at + run, past);
+	}
+
+	/**
+	 * Let go of the cursor before it is done; it lets go of itself once next
+	 * returns false.
+	 */
+	public void close() {
+		done = true;
+		if (scan != null) {
+			scan.DestroyBTreeFileScan();
+			return;
+		}
+		readAhead.close();
+		if (open)
+			header.scanClosed();
+		open = false;
+	}
+}
@@ -1,21 +1,10 @@
 package btree;
 
-import java.io.IOException;
-
-import bufmgr.BufMgrException;
-import bufmgr.BufferPoolExceededException;
-import bufmgr.HashEntryNotFoundException;
-import bufmgr.HashOperationException;
-import bufmgr.InvalidFrameNumberException;
-import bufmgr.PageNotReadException;
-import bufmgr.PagePinnedException;
-import bufmgr.PageUnpinnedException;
-import bufmgr.ReplacerException;
-
+import global.GlobalConst;
 import global.PageId;
 import global.RID;
 import global.SystemDefs;
-import heap.InvalidSlotNumberException;
+import heap.HFPage;
 
 /**
  * To do this, we need an initial RID to start the scan with, and we need a
@@ -25,19 +14,60 @@ import heap.InvalidSlotNumberException;
  */
 public class BTFileScan extends IndexFileScan {
 
+	private KeyClass loKey;
 	private KeyClass hiKey;
-	private RID loRID;
 
-	private BTLeafPage currPage;
-	private RID currRID;
+	/**
+	 * No page stays pinned between calls: get_next finds its place again from
+	 * the last entry returned, under a shared latch on the leaf, so the scan
+	 * can run while other threads change the index.
+	 */
+	private ScanPosition pos;
+
+	/**
+	 * fetches the leaves ahead of the scan in the background
+	 */
+	private LeafPrefetcher readAhead;
 
 	private boolean done;
 
+	/**
+	 * whether the scan returns the entries from the high key down to the low
+	 * key, moving left over the prev links of the leaves
+	 */
+	private boolean descending;
+
+	/**
+	 * whether the scan counts as open, see BTreeHeaderPage.scanOpened
+	 */
+	private boolean open;
+
+	/**
+	 * SnapshotGate.generation when the scan found its first leaf
+	 */
+	private int generation;
+
 	/**
 	 * Header Page, for information retrieval
 	 */
 	private BTreeHeaderPage header;
 
+	private PageLatches latches;
+	private int keyType;
+
+	/**
+	 * B-link access path, if the index has one
+	 */
+	private BLinkTree tree;
+
+	/**
+	 * For a snapshot scan: the snapshot, the leaf the scan is on as it was
+	 * then, and the slot of the next entry on it
+	 */
+	private Snapshot snapshot;
+	private byte[] leafData;
+	private int slot;
+
 	/**
 	 * 
 	 * (1) lo_key = null, hi_key = null --> scan the whole index
@@ -58,123 +88,107 @@ public class BTFileScan extends IndexFileScan {
 	 * @throws KeyNotMatchException
 	 */
 	public BTFileScan(KeyClass lo_key, KeyClass hi_key, BTreeHeaderPage header)
-			throws ConstructPageException, KeyNotMatchException,
-			NodeNotMatchException, ConvertException, ReplacerException,
-			PageUnpinnedException, HashEntryNotFoundException,
-			InvalidFrameNumberException, IOException,
-			InvalidSlotNumberException, HashOperationException,
-			PageNotReadException, BufferPoolExceededException,
-			PagePinnedException, BufMgrException {
+			throws Exception {
+		this(lo_key, hi_key, header, new PageLatches(SystemDefs.JavabaseBM,
+				PagePrefix.of(header)), false);
+	}
 
+	/**
+	 * Scan with the latches of its file, through which delete_current() is
+	 * logged.
+	 * 
+	 * @param descending
+	 *            whether to return the entries from hi_key down to lo_key
+	 */
+	BTFileScan(KeyClass lo_key, KeyClass hi_key, BTreeHeaderPage header,
+			PageLatches latches, boolean descending) throws Exception {
 		this.header = header;
-		done = false;
-
-		if (lo_key == null && hi_key == null) {
-			// scan the whole index
-			loRID = getMinimumRID();
-			hiKey = getMaxKey();
-		} else if (lo_key == null && hi_key != null) {
-			// range scan from min to the hi_key
-			loRID = getMinimumRID();
-			hiKey = hi_key;
-		} else if (lo_key != null && hi_key == null) {
-			// range scan from the lo_key to max
-			loRID = getFromKey(lo_key);
-			hiKey = getMaxKey();
-		} else if (lo_key != null && hi_key != null) {
-			if (BT.keyCompare(lo_key, hi_key) <= 0) {
-				// exact match (might not be unique)
-				// or
-				// range scan from lo_key to hi_key
-				loRID = getFromKey(lo_key);
-				hiKey = hi_key;
-			} else {
-				// Assumption
-				loRID = getFromKey(hi_key);
-				hiKey = lo_key;
-			}
-		}
-		new BTSortedPage(5);
-		currPage = new BTLeafPage(loRID.pageNo, header.getSearchKeyType());
-		currRID = loRID;
+		this.latches = latches;
+		this.descending = descending;
+		keyType = header.getSearchKeyType();
+		init(lo_key, hi_key);
+		generation = latches.gate.generation();
+		BTSortedPage page = descending ? latches.latchLastLeaf(header,
+				keyType, hiKey) : latches.latchLeaf(header, keyType, loKey,
+				true, false);
+		pos = new ScanPosition(new PageId(page.getCurPage().pid));
+		header.scanOpened();
+		open = true;
+		latches.unpinShared(pos.leaf, false);
+		readAhead = new LeafPrefetcher(latches, keyType, descending ? loKey
+				: hiKey, descending);
 	}
 
-	private RID getFromKey(KeyClass k) throws ConstructPageException,
-			IOException, InvalidSlotNumberException, KeyNotMatchException,
-			NodeNotMatchException, ConvertException, ReplacerException,
-			PageUnpinnedException, HashEntryNotFoundException,
-			InvalidFrameNumberException, HashOperationException,
-			PageNotReadException, BufferPoolExceededException,
-			PagePinnedException, BufMgrException {
-
-		PageId rootId = header.getRootID();
-		BTSortedPage iter = new BTSortedPage(rootId, header.getSearchKeyType());
-		while (true) {
-			if (iter.getType() == NodeType.INDEX) {
-				PageId temp = ((BTIndexPage) iter).getPageNoByKey(k);
-				SystemDefs.JavabaseBM.unpinPage(iter.getCurPage(), false);
-				iter = new BTSortedPage(temp, header.getSearchKeyType());
-			} else if (iter.getType() == NodeType.LEAF) {
-				KeyDataEntry entry;
-				for (int i = 0; i < iter.getSlotCnt(); i++) {
-					entry = BT.getEntryFromBytes(iter.getpage(),
-							iter.getSlotOffset(i), iter.getSlotLength(i),
-							header.getSearchKeyType(), iter.getType());
-					if (BT.keyCompare(entry.key, k) == 0) {
-						RID temp = new RID(iter.getCurPage(), i);
-						SystemDefs.JavabaseBM.unpinPage(iter.getCurPage(),
-								false);
-						return temp;
-					}
-				}
-
-			}
+	/**
+	 * Scan of the file as it was when the snapshot was taken, whatever the
+	 * changes made to it while the scan runs; it releases the snapshot when
+	 * it is done. delete_current() deletes from the file as it is now.
+	 */
+	BTFileScan(KeyClass lo_key, KeyClass hi_key, BTreeHeaderPage header,
+			PageLatches latches, Snapshot snapshot, boolean descending)
+			throws Exception {
+		this.header = header;
+		this.latches = latches;
+		this.snapshot = snapshot;
+		this.descending = descending;
+		keyType = header.getSearchKeyType();
+		init(lo_key, hi_key);
+		generation = snapshot.generation;
+		header.scanOpened();
+		open = true;
+		if (descending) {
+			pos = new ScanPosition(snapshot.lastLeaf(hiKey));
+			leafData = snapshot.read(pos.leaf);
+			int n = SlotSearch.slotCount(leafData);
+			slot = (hiKey == null ? n : latches.prefix.upperBound(leafData, n,
+					hiKey)) - 1;
+		} else {
+			pos = new ScanPosition(snapshot.leaf(loKey));
+			leafData = snapshot.read(pos.leaf);
+			if (loKey != null)
+				slot = latches.prefix.lowerBound(leafData,
+						SlotSearch.slotCount(leafData), loKey);
 		}
+		readAhead = new LeafPrefetcher(latches, keyType, descending ? loKey
+				: hiKey, descending);
 	}
 
-	private KeyClass getMaxKey() throws ConstructPageException, IOException,
-			KeyNotMatchException, NodeNotMatchException, ConvertException,
-			ReplacerException, PageUnpinnedException,
-			HashEntryNotFoundException, InvalidFrameNumberException {
-		PageId rootId = header.getRootID();
-		BTSortedPage iter = new BTSortedPage(rootId, header.getSearchKeyType());
-		KeyDataEntry entry;
-		while (true) {
-			int lastPos = iter.getSlotCnt() - 1;
-			entry = BT.getEntryFromBytes(iter.getpage(),
-					iter.getSlotOffset(lastPos), iter.getSlotLength(lastPos),
-					header.getSearchKeyType(), iter.getType());
-			SystemDefs.JavabaseBM.unpinPage(iter.getCurPage(), false);
-			if (iter.getType() == NodeType.INDEX) {
-				iter = new BTSortedPage(((IndexData) entry.data).getData(),
-						header.getSearchKeyType());
-			} else if (iter.getType() == NodeType.LEAF) {
-				return entry.key;
-			}
-		}
+	/**
+	 * Scan of a B-link tree, same key ranges as above.
+	 */
+	BTFileScan(KeyClass lo_key, KeyClass hi_key, BLinkTree tree,
+			boolean descending) throws Exception {
+		this.tree = tree;
+		this.descending = descending;
+		latches = tree.latches;
+		keyType = tree.keyType;
+		init(lo_key, hi_key);
+		if (!descending)
+			pos = new ScanPosition(tree.descend(loKey, 0, true,
+					null));
+		else if (hiKey != null)
+			pos = new ScanPosition(tree.descend(hiKey, 0, false,
+					null));
+		else
+			pos = new ScanPosition(tree.lastLeaf());
+		readAhead = new LeafPrefetcher(latches, keyType, descending ? loKey
+				: hiKey, descending);
 	}
 
-	private RID getMinimumRID() throws ConstructPageException, IOException,
-			KeyNotMatchException, NodeNotMatchException, ConvertException,
-			ReplacerException, PageUnpinnedException,
-			HashEntryNotFoundException, InvalidFrameNumberException {
-		PageId rootId = header.getRootID();
-		BTIndexPage iter = new BTIndexPage(rootId, header.getSearchKeyType());
-		while (true) {
-			if (iter.getType() == NodeType.LEAF) {
-				KeyDataEntry entry = BT.getEntryFromBytes(iter.getpage(),
-						iter.getSlotOffset(0), iter.getSlotLength(0),
-						header.getSearchKeyType(), iter.getType());
-				SystemDefs.JavabaseBM.unpinPage(iter.getCurPage(), false);
-				return ((LeafData) entry.data).getData();
-			}
-			
-			PageId  x = iter.getPrevPage();
-			SystemDefs.JavabaseBM.unpinPage(iter.getCurPage(), false);
-			iter = new BTIndexPage(((BTIndexPage) iter).getLeftLink(),
-					header.getSearchKeyType());
+	/**
+	 * a null key leaves its end of the range open
+	 */
+	private void init(KeyClass lo_key, KeyClass hi_key)
+			throws KeyNotMatchException {
+		if (lo_key != null && hi_key != null
+				&& BTreeFile.compareKeys(lo_key, hi_key) > 0) {
+			// Assumption
+			loKey = hi_key;
+			hiKey = lo_key;
+		} else {
+			loKey = lo_key;
+			hiKey = hi_key;
 		}
-
 	}
 
 	/**
@@ -185,59 +199,81 @@ public class BTFileScan extends IndexFileScan {
 	@Override
 	public KeyDataEntry get_next() {
 		try {
-			if (!done) {
-				KeyDataEntry toRet = BT.getEntryFromBytes(currPage.getpage(),
-						currPage.getSlotOffset(currRID.slotNo),
-						currPage.getSlotLength(currRID.slotNo),
-						currPage.keyType, NodeType.LEAF);
-				updateCurrent();
-				return toRet;
+			if (done)
+				return null;
+			int leaf = pos.last == null ? -1 : pos.leaf.pid;
+			KeyDataEntry next;
+			if (descending)
+				next = snapshot != null ? snapshotPrev() : pos.prev(latches,
+						keyType, hiKey);
+			else
+				next = snapshot != null ? snapshotNext() : pos.next(latches,
+						keyType, loKey);
+			if (next == null || past(next.key)) {
+				done = true;
+				DestroyBTreeFileScan();
+				return null;
 			}
-			return null;
+			if (pos.leaf.pid != leaf)
+				readAhead.reached(pos.leaf);
+			return next;
 		} catch (Exception e) {
+			e.printStackTrace();
+			// the scan ends here: its snapshot and its place among the open
+			// scans of the file are let go of
+			done = true;
+			DestroyBTreeFileScan();
 			return null;
 		}
 	}
 
-	private void updateCurrent() {
-		try {
-			RID currCand = currPage.nextRecord(currRID);
-			if (currCand != null) {
-				KeyClass cur = BT.getEntryFromBytes(currPage.getpage(),
-						currPage.getSlotOffset(currCand.slotNo),
-						currPage.getSlotLength(currCand.slotNo),
-						currPage.keyType, NodeType.LEAF).key;
-				if (BT.keyCompare(cur, hiKey) <= 0) {
-					currRID = currCand;
-				} else {
-					done = true;
-				}
-			} else {
-				PageId nextPage = currPage.getNextPage();
-				if (nextPage.pid != -1) {
-					// Not the last page in the list
-					SystemDefs.JavabaseBM.unpinPage(currRID.pageNo, false);
-					SystemDefs.JavabaseBM.pinPage(nextPage, currPage, false);
+	/**
+	 * Next entry of a snapshot scan, read off the copies of the leaves.
+	 * 
+	 * @return null at the end of the leaf level
+	 */
+	private KeyDataEntry snapshotNext() throws Exception {
+		while (slot == SlotSearch.slotCount(leafData)) {
+			int next = SlotSearch.readInt(leafData, HFPage.NEXT_PAGE);
+			if (next == GlobalConst.INVALID_PAGE)
+				return null;
+			pos.leaf = new PageId(next);
+			leafData = snapshot.read(pos.leaf);
+			slot = 0;
+		}
+		pos.last = latches.prefix.entry(leafData, slot++, keyType,
+				NodeType.LEAF);
+		return pos.last;
+	}
 
-					currCand = currPage.firstRecord();
+	/**
+	 * whether key is past the end of the range, the low key for a descending
+	 * scan
+	 */
+	private boolean past(KeyClass key) {
+		if (descending)
+			return loKey != null && BTreeFile.compareKeys(key, loKey) < 0;
+		return hiKey != null && BTreeFile.compareKeys(key, hiKey) > 0;
+	}
 
-					KeyClass cur = BT.getEntryFromBytes(currPage.getpage(),
-							currPage.getSlotOffset(currCand.slotNo),
-							currPage.getSlotLength(currCand.slotNo),
-							currPage.keyType, NodeType.LEAF).key;
-					if (BT.keyCompare(cur, hiKey) <= 0) {
-						currRID = currCand;
-					} else {
-						done = true;
-					}
-				} else {
-					// The last page in the list
-					done = true;
-				}
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
+	/**
+	 * Previous entry of a descending snapshot scan, read off the copies of
+	 * the leaves.
+	 * 
+	 * @return null at the start of the leaf level
+	 */
+	private KeyDataEntry snapshotPrev() throws Exception {
+		while (slot < 0) {
+			int prev = SlotSearch.readInt(leafData, HFPage.PREV_PAGE);
+			if (prev == GlobalConst.INVALID_PAGE)
+				return null;
+			pos.leaf = new PageId(prev);
+			leafData = snapshot.read(pos.leaf);
+			slot = SlotSearch.slotCount(leafData) - 1;
 		}
+		pos.last = latches.prefix.entry(leafData, slot--, keyType,
+				NodeType.LEAF);
+		return pos.last;
 	}
 
 	/**
@@ -246,7 +282,34 @@ public class BTFileScan extends IndexFileScan {
 	@Override
 	public void delete_current() {
 		try {
-			currPage.deleteSortedRecord(currRID);
+			KeyDataEntry last = pos.last;
+			if (last == null)
+				return;
+			RID rid = ((LeafData) last.data).getData();
+			if (tree != null) {
+				tree.delete(last.key, rid);
+				return;
+			}
+			// a counted file counts the entry off its path, and the header
+			CountedTree counted = CountedTree.of(header, latches);
+			boolean found;
+			latches.changes.begin();
+			try {
+				if (counted != null)
+					found = counted.delete(last.key, rid);
+				else if (latches.gate.generation() == generation)
+					found = latches.deleteFrom(pos.leaf, keyType, last.key,
+							rid);
+				else
+					// the file was compacted, and the leaf is an old copy
+					found = latches.deleteFrom(latches.latchLeaf(header,
+							keyType, last.key, true, true), keyType, last.key,
+							rid);
+			} finally {
+				latches.changes.commit();
+			}
+			if (found && counted == null)
+				header.countEntry(last.key, -1);
 		} catch (Exception e) {
 
 		}
@@ -257,6 +320,8 @@ public class BTFileScan extends IndexFileScan {
 	 */
 	@Override
 	public int keysize() {
+		if (tree != null)
+			return tree.maxKeyLength;
 		return header.getMaxKeyLength();
 	}
 
@@ -265,7 +330,12 @@ public class BTFileScan extends IndexFileScan {
 	 * some clearing work.
 	 */
 	public void DestroyBTreeFileScan() {
-
+		readAhead.close();
+		if (snapshot != null)
+			snapshot.release();
+		if (open)
+			header.scanClosed();
+		open = false;
 	}
 
 }
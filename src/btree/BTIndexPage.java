@@ -11,6 +11,12 @@ public class BTIndexPage extends BTSortedPage {
 	// Iterator index
 	private RID currentRID;
 
+	/**
+	 * format of the records, that of the index the page is of; plain unless
+	 * the page was made with the header of its index
+	 */
+	private PagePrefix format = PagePrefix.NONE;
+
 	/**
 	 * pin the page with pageno, and get the corresponding BTIndexPage, also it
 	 * sets the type of node to be NodeType.INDEX.
@@ -44,6 +50,37 @@ public class BTIndexPage extends BTSortedPage {
 		setType(NodeType.INDEX);
 	}
 
+	/**
+	 * pin the page with pageno, of the index with the given header. Its keys
+	 * are searched, read and inserted in the format of that index, as
+	 * BTreeFile does; the constructors given only the key type take the
+	 * records as plain, which they are not in an index made with
+	 * BTreeFlags.PREFIX or BTreeFlags.COUNTED.
+	 * 
+	 * @param pageno
+	 * @param header
+	 * @throws ConstructPageException
+	 * @throws IOException
+	 */
+	public BTIndexPage(PageId pageno, BTreeHeaderPage header)
+			throws ConstructPageException, IOException {
+		this(pageno, header.getSearchKeyType());
+		format = PagePrefix.of(header);
+	}
+
+	/**
+	 * associate the BTIndexPage instance with the Page instance, a page of
+	 * the index with the given header, see above.
+	 * 
+	 * @param page
+	 * @param header
+	 * @throws IOException
+	 */
+	public BTIndexPage(Page page, BTreeHeaderPage header) throws IOException {
+		this(page, header.getSearchKeyType());
+		format = PagePrefix.of(header);
+	}
+
 	/**
 	 * It inserts a value into the index page,
 	 * 
@@ -53,40 +90,47 @@ public class BTIndexPage extends BTSortedPage {
 	 * @throws InsertRecException
 	 */
 	public RID insertKey(KeyClass key, PageId pageNo) throws InsertRecException {
-		return super.insertRecord(new KeyDataEntry(key, pageNo));
+		if (format == PagePrefix.NONE)
+			return super.insertRecord(new KeyDataEntry(key, pageNo));
+		try {
+			int slot = format.insert(this, new KeyDataEntry(key, pageNo));
+			return slot < 0 ? null : new RID(getCurPage(), slot);
+		} catch (Exception e) {
+			throw new InsertRecException(e, "insert into index page failed");
+		}
 	}
 
 	/**
 	 * This function encapsulates the search routine to search a BTIndexPage by
-	 * B++ search algorithm
+	 * B++ search algorithm. The slot directory is binary searched and the keys
+	 * are compared in place on the page.
 	 * 
 	 * @param key
 	 *            the key value used in search algorithm. Input parameter.
-	 * @return It returns the page_no of the child to be searched next.
+	 * @return It returns the page_no of the child to be searched next: the
+	 *         child of the last entry whose key is <= key, or the left link.
 	 * @exception IndexSearchException
 	 *                Index search failed;
 	 */
 
-	public PageId getPageNoByKey(KeyClass key)
-			throws InvalidSlotNumberException, IOException,
-			KeyNotMatchException, NodeNotMatchException, ConvertException {
-		KeyDataEntry entry;
-		PageId lastPid = getLeftLink();
-		byte[] byteArr;
-		
-		RID iter = firstRecord();
-		if (iter == null)
-			return getPrevPage();
-		while (true) {
-			byteArr = getRecord(iter).getTupleByteArray();
-			entry = BT.getEntryFromBytes(byteArr, 0, byteArr.length, keyType, getType());
-			if (nextRecord(iter) == null)
-				return ((IndexData) entry.data).getData();
-			if(BT.keyCompare(key, entry.key) < 0)
-				return lastPid;
-			lastPid = ((IndexData) entry.data).getData();
-			iter = nextRecord(iter);
-		}
+	public PageId getPageNoByKey(KeyClass key) throws IOException,
+			KeyNotMatchException {
+		return format.child(getpage(), key, false);
+	}
+
+	/**
+	 * Like getPageNoByKey, but follows the child of the last entry whose key is
+	 * strictly less than key. Used to find the first occurrence of a key whose
+	 * duplicates may span more than one child.
+	 * 
+	 * @param key
+	 * @return the page_no of the child to be searched next
+	 * @throws IOException
+	 * @throws KeyNotMatchException
+	 */
+	public PageId getLowerPageNoByKey(KeyClass key) throws IOException,
+			KeyNotMatchException {
+		return format.child(getpage(), key, true);
 	}
 
 	/**
@@ -110,9 +154,7 @@ public class BTIndexPage extends BTSortedPage {
 		if (currentRID == null) {
 			currentRID = nrid;
 		}
-		byte[] byteArr = getRecord(nrid).getTupleByteArray();
-		return BT.getEntryFromBytes(byteArr, 0, byteArr.length, keyType,
-				getType());
+		return format.entry(getpage(), nrid.slotNo, keyType, getType());
 	}
 
 	/**
@@ -134,8 +176,7 @@ public class BTIndexPage extends BTSortedPage {
 		if (currentRID != null) {
 			rid.pageNo = currentRID.pageNo;
 			rid.slotNo = currentRID.slotNo;
-			byte[] byteArr = getRecord(currentRID).getTupleByteArray();
-			return BT.getEntryFromBytes(byteArr, 0, byteArr.length, keyType,
+			return format.entry(getpage(), currentRID.slotNo, keyType,
 					getType());
 		} else {
 			return null;
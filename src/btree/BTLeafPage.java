@@ -11,6 +11,12 @@ public class BTLeafPage extends BTSortedPage {
 	// Iterator index
 	private RID currentRID;
 
+	/**
+	 * format of the records, that of the index the page is of; plain unless
+	 * the page was made with the header of its index
+	 */
+	private PagePrefix format = PagePrefix.NONE;
+
 	/**
 	 * pin the page with pageno, and get the corresponding BTLeafPage, also it
 	 * sets the type to be NodeType.LEAF.
@@ -51,6 +57,37 @@ public class BTLeafPage extends BTSortedPage {
 		setType(NodeType.LEAF);
 	}
 
+	/**
+	 * pin the page with pageno, of the index with the given header. Its keys
+	 * are searched, read and inserted in the format of that index, as
+	 * BTreeFile does; the constructors given only the key type take the
+	 * records as plain, which they are not in an index made with
+	 * BTreeFlags.PREFIX.
+	 * 
+	 * @param pageno
+	 * @param header
+	 * @throws ConstructPageException
+	 * @throws IOException
+	 */
+	public BTLeafPage(PageId pageno, BTreeHeaderPage header)
+			throws ConstructPageException, IOException {
+		this(pageno, header.getSearchKeyType());
+		format = PagePrefix.of(header);
+	}
+
+	/**
+	 * associate the BTLeafPage instance with the Page instance, a page of the
+	 * index with the given header, see above.
+	 * 
+	 * @param page
+	 * @param header
+	 * @throws IOException
+	 */
+	public BTLeafPage(Page page, BTreeHeaderPage header) throws IOException {
+		this(page, header.getSearchKeyType());
+		format = PagePrefix.of(header);
+	}
+
 	/**
 	 * insertRecord. READ THIS DESCRIPTION CAREFULLY. THERE ARE TWO RIDs WHICH
 	 * MEAN TWO DIFFERENT THINGS. Inserts a key, rid value into the leaf node.
@@ -63,7 +100,14 @@ public class BTLeafPage extends BTSortedPage {
 	 */
 	public RID insertRecord(KeyClass key, RID dataRid)
 			throws InsertRecException {
-		return super.insertRecord(new KeyDataEntry(key, dataRid));
+		if (format == PagePrefix.NONE)
+			return super.insertRecord(new KeyDataEntry(key, dataRid));
+		try {
+			int slot = format.insert(this, new KeyDataEntry(key, dataRid));
+			return slot < 0 ? null : new RID(getCurPage(), slot);
+		} catch (Exception e) {
+			throw new InsertRecException(e, "insert into leaf page failed");
+		}
 	}
 
 	/**
@@ -87,9 +131,7 @@ public class BTLeafPage extends BTSortedPage {
 		if (currentRID == null) {
 			currentRID = nrid;
 		}
-		byte[] byteArr = getRecord(nrid).getTupleByteArray();
-		return BT.getEntryFromBytes(byteArr, 0, byteArr.length, keyType,
-				getType());
+		return format.entry(getpage(), nrid.slotNo, keyType, getType());
 	}
 
 	/**
@@ -132,9 +174,22 @@ public class BTLeafPage extends BTSortedPage {
 			ConvertException {
 		rid.pageNo = currentRID.pageNo;
 		rid.slotNo = currentRID.slotNo;
-		byte[] byteArr = getRecord(currentRID).getTupleByteArray();
-		return BT.getEntryFromBytes(byteArr, 0, byteArr.length, keyType,
-				getType());
+		return format.entry(getpage(), currentRID.slotNo, keyType, getType());
+	}
+
+	/**
+	 * Binary search the slot directory, comparing keys in place on the page.
+	 * 
+	 * @param key
+	 * @return the first slot whose key is >= key, or the slot count if every
+	 *         key on the page is smaller
+	 * @throws IOException
+	 * @throws KeyNotMatchException
+	 */
+	public int getFirstSlotByKey(KeyClass key) throws IOException,
+			KeyNotMatchException {
+		byte[] data = getpage();
+		return format.lowerBound(data, SlotSearch.slotCount(data), key);
 	}
 
 	/**
@@ -145,23 +200,21 @@ public class BTLeafPage extends BTSortedPage {
 	 * @return true if deleted; false if no dEntry in the page
 	 * @throws DeleteRecException
 	 * @throws IOException
-	 * @throws ConvertException
-	 * @throws NodeNotMatchException
 	 * @throws KeyNotMatchException
-	 * @throws InvalidSlotNumberException
 	 * @exception LeafDeleteException
 	 *                error when delete
 	 */
 	public boolean delEntry(KeyDataEntry dEntry) throws DeleteRecException,
-			InvalidSlotNumberException, KeyNotMatchException,
-			NodeNotMatchException, ConvertException, IOException {
-		RID tempRID = new RID();
-		KeyDataEntry entry = getFirst(tempRID);
-		while (entry != null) {
-			if (entry.equals(dEntry)) {
-				return super.deleteSortedRecord(tempRID);
+			KeyNotMatchException, IOException {
+		RID rid = ((LeafData) dEntry.data).getData();
+		byte[] data = getpage();
+		int n = SlotSearch.slotCount(data);
+		for (int slot = format.lowerBound(data, n, dEntry.key); slot < n
+				&& format.compare(dEntry.key, data,
+						SlotSearch.slotOffset(data, slot)) == 0; slot++) {
+			if (SlotSearch.ridEquals(data, slot, rid)) {
+				return super.deleteSortedRecord(new RID(getCurPage(), slot));
 			}
-			entry = getNext(tempRID);
 		}
 		return false;
 	}
@@ -2,10 +2,22 @@ package btree;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Random;
 import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 import bufmgr.BufMgr;
 import diskmgr.DB;
 import diskmgr.Page;
+import global.AttrType;
+import global.GlobalConst;
 import global.PageId;
 import global.RID;
 import global.SystemDefs;
@@ -19,6 +31,63 @@ public class BTreeFile extends IndexFile {
 	private PageId headerID;
 	private BTreeHeaderPage header;
 
+	/**
+	 * concurrent access path, for files created with BTreeFlags.BLINK
+	 */
+	private BLinkTree blink;
+
+	/**
+	 * page latches and serialized buffer access, for the threads sharing this
+	 * file
+	 */
+	private PageLatches latches;
+
+	/**
+	 * the operations on the file and their log, the gate that keeps them
+	 * apart from snapshots, and the pages to allocate and free; those of
+	 * latches
+	 */
+	private ChangeLog changes;
+	private SnapshotGate gate;
+	private PageReclaim reclaim;
+
+	/**
+	 * search key type
+	 */
+	private int keyType;
+
+	/**
+	 * format of the pages, prefix compressed for files created with
+	 * BTreeFlags.PREFIX
+	 */
+	private PagePrefix prefix;
+
+	/**
+	 * log of the changes, for files created with BTreeFlags.LOG
+	 */
+	private RedoLog log;
+
+	/**
+	 * order statistics, for files created with BTreeFlags.COUNTED
+	 */
+	private CountedTree counted;
+
+	/**
+	 * whether Delete merges the pages it leaves less than half full: delete
+	 * fashion 1, full delete, except on a B-link tree or a counted one
+	 */
+	private boolean fullDelete;
+
+	/**
+	 * whether a thread is making the histogram of the keys again
+	 */
+	private final AtomicBoolean sampling = new AtomicBoolean();
+
+	/**
+	 * counters of the file, kept by its header
+	 */
+	private BTreeMetrics metrics;
+
 	/**
 	 * If index file exists, open it; else create it.
 	 * 
@@ -28,6 +97,29 @@ public class BTreeFile extends IndexFile {
 	 * @param delete_fashion
 	 */
 	public BTreeFile(String fName, int keytype, int keysize, int delete_fashion) {
+		this(fName, keytype, keysize, delete_fashion, 0);
+	}
+
+	/**
+	 * If index file exists, open it; else create it with the given page layout.
+	 * A file created with BTreeFlags.BLINK can be used by many threads at once,
+	 * as long as they share this BTreeFile.
+	 * 
+	 * If the file has a log left by a run that did not close it, the log is
+	 * redone first.
+	 * 
+	 * @param fName
+	 * @param keytype
+	 * @param keysize
+	 * @param delete_fashion
+	 * @param flags
+	 *            BTreeFlags bits; ignored when the file exists
+	 */
+	public BTreeFile(String fName, int keytype, int keysize,
+			int delete_fashion, int flags) {
+		if ((flags & BTreeFlags.LOG) != 0 && (flags & BTreeFlags.BLINK) != 0)
+			throw new IllegalArgumentException(
+					"a B-link tree cannot be logged");
 		if (fName != null) {
 			fileName = fName;
 		} else {
@@ -38,8 +130,12 @@ public class BTreeFile extends IndexFile {
 
 		headerID = null;
 		try {
+			String logName = SystemDefs.JavabaseLogName + "." + fileName;
+			int redone = RedoLog.recover(logName, bufMgr, db.db_name());
+			boolean created = false;
 			headerID = db.get_file_entry(fileName);
 			if (headerID == null) {
+				created = true;
 				header = new BTreeHeaderPage();
 				headerID = bufMgr.newPage(header, 1);
 				header.initHeader(headerID);
@@ -47,10 +143,20 @@ public class BTreeFile extends IndexFile {
 				header.setSearchKeyType(keytype);
 				header.setMaxKeyLength(keysize);
 				header.setDeleteFashion(delete_fashion);
+				header.setFlags(flags);
 				header.setType(NodeType.BTHEAD);
+				if ((flags & BTreeFlags.LOG) != 0)
+					header.setLogId(newLogId());
+				prefix = PagePrefix.of(header);
 
-				BTSortedPage root = new BTSortedPage(keytype);
+				BTLeafPage root = new BTLeafPage(keytype);
+				prefix.format(root);
 				header.setRootID(root.getCurPage());
+				header.setCounts(1, 0, 1, 1);
+				if ((flags & BTreeFlags.BLINK) != 0) {
+					blink = new BLinkTree(header, bufMgr);
+					blink.format(root, 0);
+				}
 				bufMgr.unpinPage(root.getCurPage(), true);
 
 				db.add_file_entry(fileName, headerID);
@@ -59,6 +165,46 @@ public class BTreeFile extends IndexFile {
 				header = new BTreeHeaderPage();
 				bufMgr.pinPage(headerID, header, false);
 				header.readHPageIn();
+				if ((header.getFlags() & BTreeFlags.BLINK) != 0)
+					blink = new BLinkTree(header, bufMgr);
+				prefix = PagePrefix.of(header);
+			}
+			if ((header.getFlags() & BTreeFlags.LOG) != 0 && blink == null)
+				log = new RedoLog(logName, headerID, header.getLogId());
+			latches = new PageLatches(bufMgr, prefix, log);
+			changes = latches.changes;
+			gate = latches.gate;
+			reclaim = latches.reclaim;
+			metrics = header.getMetrics();
+			latches.setMetrics(metrics);
+			latches.setHeader(header);
+			counted = CountedTree.of(header, latches);
+			keyType = header.getSearchKeyType();
+			fullDelete = header.getDelFashion() == 1 && blink == null
+					&& counted == null;
+			// the counts are kept on the header from one close to the next
+			if (!created && (redone > 0 || !header.hasCounts()))
+				recount();
+			if (!created)
+				sampleHistogram();
+			if (created && log != null) {
+				// the new file: its header, root, entry in the directory and
+				// bits in the space map. The header goes to disk at once, so
+				// that a crash cannot leave the log without its file.
+				PageId root = header.getRootID();
+				db.write_page(headerID, header);
+				RedoLog.sync(db.db_name());
+				changes.begin();
+				try {
+					changes.changed(headerID);
+					changes.changed(root);
+					changes.changed(new PageId(0));
+					changes.changed(ChangeLog.mapPage(headerID));
+					changes.changed(ChangeLog.mapPage(root));
+				} finally {
+					changes.commit();
+				}
+				changes.durable().get();
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -77,150 +223,284 @@ public class BTreeFile extends IndexFile {
 
 	/**
 	 * Insert record with the given key and rid.
+	 * 
+	 * The leaf is first reached with shared latches and latched exclusively;
+	 * only if it has to split is the insert done again holding exclusive
+	 * latches on the pages the split can reach. The pages it changes are
+	 * logged as one, and with a log it returns once they are on disk.
 	 */
-	static int i = 0;
-
 	public void insert(KeyClass key, RID rid) {
 		try {
-			i++;
-			Stack<PageId> path;
-
-			path = getPathForSpecificKey(key); // get path to the key
-			BTSortedPage node = new BTSortedPage(path.peek(),
-					header.getSearchKeyType());
-			// System.out.println(path + " -------- pid to insert in " +
-			// path.peek() + " with slot_cnt = "+node.getSlotCnt());
+			insertAsync(key, rid).get();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
 
-			KeyDataEntry newEntry = new KeyDataEntry(key, rid);
-			if (node.insertRecord(newEntry) != null) { // inserted successfully
-				bufMgr.unpinPage(node.getCurPage(), true);
-				return;
+	/**
+	 * Insert as above, without waiting for the log; see setGroupCommit.
+	 * 
+	 * @return completed once the insert is on disk, or failed with the
+	 *         exception that stopped it
+	 */
+	public CompletableFuture<Void> insertAsync(KeyClass key, RID rid) {
+		try {
+			long start = System.nanoTime();
+			metrics.inserts.increment();
+			if (blink != null) {
+				blink.insert(key, rid);
+				metrics.insertLatency.since(start);
+				refreshHistogram();
+				return changes.durable();
 			}
-			System.out.println(i + " ndCnt = " + node.getSlotCnt());
-			// ----------- split leaf node -----------\\
-			byte[] tempFash5 = new byte[node.getpage().length];
-			System.arraycopy(node.getpage(), 0, tempFash5, 0, tempFash5.length);
-			BTLeafPage newLeafPage = splitLeafNode(node);
-
-			// --------- add the new entery ----------\\
-			byte[] tupleContent = newLeafPage.getRecord(
-					newLeafPage.firstRecord()).getTupleByteArray();
-			KeyDataEntry entry = BT.getEntryFromBytes(tupleContent, 0,
-					tupleContent.length, header.getSearchKeyType(),
-					NodeType.LEAF);
-
-			if (BT.keyCompare(key, entry.key) >= 0) {
-				newLeafPage.insertRecord(newEntry);
-			} else {
-				node.insertRecord(newEntry);
+			changes.begin();
+			try {
+				insertEntry(new KeyDataEntry(key, rid));
+			} finally {
+				changes.commit();
 			}
-			// ---------------------------------------\\
-
-			// ---- make entry with the first key in newLeafPage and the
-			// newLeafPageId, and assign it to be copied up
-			// ---- this is saved in the newEntry variable (entry is just temp)
-			newEntry = new KeyDataEntry(entry.key, newLeafPage.getCurPage());
+			metrics.insertLatency.since(start);
+			refreshHistogram();
+			return changes.durable();
+		} catch (Exception e) {
+			CompletableFuture<Void> failed = new CompletableFuture<Void>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
 
-			// ---- add the index entry in the tree. full path is sent in case
-			// further splits were needed
-			bufMgr.unpinPage(path.pop(), true); // remove the leaf page from the
-												// path to the index page
-			addIndexEntryAt(newEntry, path);
-			bufMgr.unpinPage(newLeafPage.getCurPage(), true);
+	/**
+	 * Group commit, for a file with a log: the records of the operations are
+	 * forced to disk together, when maxBatch of them are waiting or the first
+	 * has waited maxDelay milliseconds. insert and Delete still return once
+	 * their change is on disk, so threads calling them at the same time share
+	 * the wait; insertAsync and deleteAsync return at once, so one thread can
+	 * have up to maxBatch changes waiting. The pages of a change stay pinned
+	 * until it is on disk, and the changes waiting keep at most a quarter of
+	 * the buffer pool pinned. A maxBatch of 1 turns group commit off.
+	 * 
+	 * @param maxDelay
+	 *            milliseconds
+	 * @param maxBatch
+	 */
+	public void setGroupCommit(long maxDelay, int maxBatch) {
+		try {
+			if (log != null)
+				log.setGroupCommit(maxDelay, maxBatch,
+						Math.max(1, bufMgr.getNumBuffers() / 4));
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
-	private Stack<PageId> getPathForSpecificKey(KeyClass key) {
-		try {
-			BTSortedPage node = new BTSortedPage(new Page(),
-					header.getSearchKeyType());
-			BTIndexPage temp = new BTIndexPage(new Page(),
-					header.getSearchKeyType());
+	/**
+	 * For a file with a log: checkpoint the log whenever the records appended
+	 * since the last checkpoint reach the given size, rather than only at
+	 * close(). A checkpoint writes back the pages logged, keeping inserts and
+	 * deletes out meanwhile, and empties the log, which bounds both the log
+	 * and the time it takes to redo it. The size is 4 MB unless set.
+	 * 
+	 * @param bytes
+	 *            size of the log that makes the next operation checkpoint it
+	 */
+	public void setCheckpointSize(long bytes) {
+		if (log != null)
+			log.setCheckpointSize(bytes);
+	}
 
-			Stack<PageId> path = new Stack<PageId>();
-			path.push(header.getRootID());
-			while (true) {
+	/**
+	 * insert, within the operation begun by the caller
+	 */
+	private void insertEntry(KeyDataEntry newEntry) throws Exception {
+		KeyClass key = newEntry.key;
+		Stack<PageId> path;
+		BTSortedPage node;
+		if (counted == null) {
+			node = latches.latchLeaf(header, keyType, key, false, true);
+			if (prefix.insert(node, newEntry) >= 0) { // inserted successfully
+				latches.unpinExclusive(node.getCurPage(), true);
+				header.countEntry(key, 1);
+				return;
+			}
+			latches.unpinExclusive(node.getCurPage(), false);
 
-				bufMgr.pinPage(path.peek(), node, false);
+			path = getPathForSpecificKey(key); // get path to the key
+		} else {
+			// every page on the path gets the entry counted
+			path = counted.latchPath(key);
+			counted.count(path, 1);
+		}
+		node = latches.pin(path.peek(), keyType);
 
-				if (node.getType() == NodeType.INDEX) {
-					temp.setpage(node.getpage());
-					bufMgr.unpinPage(node.getCurPage(), false);
-					path.push(temp.getPageNoByKey(key));
-				} else {
-					break; // now the last pid in the stack is the leafPage to
-							// add the rec to
-				}
+		if (prefix.insert(node, newEntry) >= 0) { // room was made meanwhile
+			latches.unpin(node.getCurPage(), true);
+			header.countEntry(key, 1);
+			while (!path.isEmpty())
+				latches.unlockExclusive(path.pop());
+			return;
+		}
+		// -- split leaf node, adding the new entry --\\
+		BTLeafPage newLeafPage = splitLeafNode(node, newEntry);
+		header.countEntry(key, 1);
+		header.countLeaves(1);
+		metrics.leafSplits.increment();
+
+		KeyDataEntry entry = prefix.entry(newLeafPage.getpage(), 0,
+				keyType, NodeType.LEAF);
+		KeyDataEntry last = prefix.entry(node.getpage(),
+				node.getSlotCnt() - 1, keyType, NodeType.LEAF);
+		// ---------------------------------------\\
+
+		// ---- make entry with the shortest key between the two leaves
+		// and the newLeafPageId, and assign it to be copied up
+		// ---- this is saved in the newEntry variable (entry is just temp)
+		if (counted == null)
+			newEntry = new KeyDataEntry(separator(last.key, entry.key),
+					newLeafPage.getCurPage());
+		else
+			newEntry = CountedTree.entry(separator(last.key, entry.key),
+					new CountedTree.CountedData(newLeafPage.getCurPage(),
+							newLeafPage.getSlotCnt()));
+
+		// ---- add the index entry in the tree. full path is sent in case
+		// further splits were needed
+		PageId leaf = path.pop();
+		latches.unpinExclusive(leaf, true); // remove the leaf page from the
+											// path to the index page
+		latches.unpinExclusive(newLeafPage.getCurPage(), true);
+		addIndexEntryAt(newEntry, path, leaf);
+	}
+
+	/**
+	 * Latch coupling for an insert that splits: the pages from the root down
+	 * to the leaf where key belongs are latched exclusively, and the latches
+	 * above a page that has room for one more entry are let go, as a split
+	 * stops there. While the root may split, the header page (holding the root
+	 * pointer) stays latched at the bottom of the path.
+	 * 
+	 * @return the page ids still latched, the leaf on top; none of them is
+	 *         left pinned
+	 */
+	private Stack<PageId> getPathForSpecificKey(KeyClass key) throws Exception {
+		int leafRoom = BT.getKeyDataLength(key, NodeType.LEAF);
+		Stack<PageId> path = new Stack<PageId>();
+		PageId pid = new PageId(headerID.pid);
+		latches.lockExclusive(pid);
+		path.push(pid);
+		pid = header.getRootID();
+		while (true) {
+			latches.lockExclusive(pid);
+			BTSortedPage node = latches.pin(pid, keyType);
+			boolean index = node.getType() == NodeType.INDEX;
+			if (prefix.room(node) >= (index ? maxIndexEntryLength()
+					: leafRoom)) {
+				// a split stops here, the pages above are safe
+				while (!path.isEmpty())
+					latches.unlockExclusive(path.pop());
 			}
-			return path;
-		} catch (Exception e) {
-			e.printStackTrace();
-			return null;
+			path.push(pid);
+			if (!index) {
+				latches.unpin(pid, false);
+				return path; // now the last pid in the stack is the leafPage
+								// to add the rec to
+			}
+			PageId next = prefix.child(node.getpage(), key, false);
+			latches.unpin(pid, false);
+			pid = next;
 		}
 	}
 
-	private void addIndexEntryAt(KeyDataEntry newEnt, Stack<PageId> pathToRoot) {
+	/**
+	 * longest index entry a split can post: a key of the maximum length (up to
+	 * 3 bytes a char in modified UTF-8) and a page id
+	 */
+	private int maxIndexEntryLength() {
+		if (keyType == AttrType.attrInteger)
+			return 8;
+		return 2 + 3 * header.getMaxKeyLength() + 4;
+	}
+
+	/**
+	 * Post newEnt into the latched path, splitting as far up as needed. Every
+	 * latch in the path is let go on the way.
+	 * 
+	 * @param child
+	 *            the page that split, giving up the entries of the new one
+	 */
+	private void addIndexEntryAt(KeyDataEntry newEnt,
+			Stack<PageId> pathToRoot, PageId child) {
 		try {
-			byte[] tupleContent;
 			KeyDataEntry temp = null, newEntry = new KeyDataEntry(newEnt.key,
 					newEnt.data);
-			BTSortedPage node = new BTSortedPage(new Page(),
-					header.getSearchKeyType());
+			if (newEnt.data instanceof CountedTree.CountedData)
+				newEntry.data = newEnt.data;
+			BTSortedPage node = new BTSortedPage(new Page(), keyType);
 			BTIndexPage newIndexPage;
 
-			while (!pathToRoot.isEmpty()) {
-				bufMgr.pinPage(pathToRoot.pop(), node, false);
+			while (pathToRoot.peek().pid != headerID.pid) {
+				PageId pid = pathToRoot.pop();
+				latches.pin(pid, node);
+				if (counted != null)
+					// the entries of the new page were counted under child
+					CountedTree.add(node.getpage(), child,
+							-CountedTree.count(newEntry));
 
-				if (node.available_space() >= BT.getKeyDataLength(newEntry.key,
-						NodeType.INDEX)) {
-					node.insertRecord(newEntry);
-					bufMgr.unpinPage(node.getCurPage(), true);
+				if (prefix.insert(node, newEntry) >= 0) {
+					latches.unpinExclusive(pid, true);
+					// the page had less room than the longest entry, but this
+					// one fit: the pages kept latched above it are let go
+					while (!pathToRoot.isEmpty())
+						latches.unlockExclusive(pathToRoot.pop());
 					return; // insertion succeed
 				}
 
 				// need to split index node
-				newIndexPage = new BTIndexPage(header.getSearchKeyType());
-
-				// move (the second) half of records to newIndexNode
-				RID movId = new RID(node.getCurPage(), node.getSlotCnt() - 1); // RID
-																				// of
-																				// record
-																				// to
-																				// be
-																				// moved
-				while (node.available_space() < 0.5 * BTSortedPage.MINIBASE_PAGESIZE) {
-					movId.slotNo = node.getSlotCnt() - 1;
-					tupleContent = node.getRecord(movId).getTupleByteArray();
-					temp = BT.getEntryFromBytes(tupleContent, 0,
-							tupleContent.length, header.getSearchKeyType(),
-							NodeType.INDEX);
-					newIndexPage.insertRecord(temp);
-					node.deleteSortedRecord(movId);
-				}
+				newIndexPage = latches.newIndexPage(keyType);
+				header.countIndexPages(1);
+				metrics.indexSplits.increment();
+				newIndexPage.setNextPage(node.getNextPage());
+				node.setNextPage(newIndexPage.getCurPage());
+
+				// move (the second) half of records to newIndexNode; the entry
+				// that did not fit goes to the half it belongs to
+				prefix.split(node, newIndexPage, newEntry, keyType,
+						NodeType.INDEX);
 
 				// ---- make newEntry with the first key in newIndexPage and the
 				// newIndexPageId, and assign it to be pushed up
 				// ---- assign value to the left branch of the newIndexPage
-				tupleContent = newIndexPage.getRecord(
-						newIndexPage.firstRecord()).getTupleByteArray();
-				temp = BT.getEntryFromBytes(tupleContent, 0,
-						tupleContent.length, header.getSearchKeyType(),
+				temp = prefix.entry(newIndexPage.getpage(), 0, keyType,
 						NodeType.INDEX);
-				newEntry = new KeyDataEntry(temp.key, newIndexPage.getCurPage());
 				newIndexPage.deleteSortedRecord(newIndexPage.firstRecord());
 				newIndexPage.setLeftLink(((IndexData) temp.data).getData());
 
-				bufMgr.unpinPage(node.getCurPage(), true);
-				bufMgr.unpinPage(newIndexPage.getCurPage(), true);
+				if (counted == null)
+					newEntry = new KeyDataEntry(temp.key,
+							newIndexPage.getCurPage());
+				else
+					// the count of its left link and of its entries
+					newEntry = CountedTree.entry(temp.key,
+							new CountedTree.CountedData(newIndexPage
+									.getCurPage(), CountedTree.count(temp)
+									+ CountedTree.sum(newIndexPage.getpage())));
+				child = pid;
+
+				// the parent stays latched, so nobody reaches either half
+				// before the new entry is posted
+				latches.unpinExclusive(pid, true);
+				latches.unpin(newIndexPage.getCurPage(), true);
 			}
 			// if it comes here, a new root is needed
-			BTIndexPage newRoot = new BTIndexPage(header.getSearchKeyType());
-			newRoot.insertRecord(newEntry);
+			BTIndexPage newRoot = latches.newIndexPage(keyType);
+			prefix.insert(newRoot, newEntry);
 			newRoot.setLeftLink(header.getRootID());
 			header.setRootID(newRoot.getCurPage());
-			bufMgr.unpinPage(newRoot.getCurPage(), true);
+			header.countIndexPages(1);
+			header.countLevels(1);
+			metrics.rootGrowths.increment();
+			changes.changed(headerID);
+			latches.unpin(newRoot.getCurPage(), true);
+			latches.unlockExclusive(pathToRoot.pop());
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -229,39 +509,61 @@ public class BTreeFile extends IndexFile {
 	}
 
 	/**
-	 * leaves the new page (if needed) pinned
+	 * a log id for a new file: random, and neither 0 nor -1, which stand for
+	 * no id
+	 */
+	private static int newLogId() {
+		int id;
+		do
+			id = new Random().nextInt();
+		while (id == 0 || id == -1);
+		return id;
+	}
+
+	/**
+	 * Separator to copy up between two leaves: the shortest key that is above
+	 * left, the last key of the left leaf, and at most right, the first key of
+	 * the right one. For string keys that is the part of right up to the
+	 * first char where it differs from left; other keys are copied whole.
+	 */
+	private static KeyClass separator(KeyClass left, KeyClass right) {
+		if (!(left instanceof StringKey) || !(right instanceof StringKey))
+			return right;
+		String l = ((StringKey) left).getKey();
+		String r = ((StringKey) right).getKey();
+		int i = 0;
+		while (i < l.length() && i < r.length() && l.charAt(i) == r.charAt(i))
+			i++;
+		if (i == r.length())
+			return right; // equal keys, the split is within a run
+		return new StringKey(r.substring(0, i + 1));
+	}
+
+	/**
+	 * Split a full leaf, adding entry to the half it belongs to. Leaves the new
+	 * page pinned and exclusively latched.
 	 */
 
-	private BTLeafPage splitLeafNode(BTSortedPage node) {
+	private BTLeafPage splitLeafNode(BTSortedPage node, KeyDataEntry entry) {
 
 		try {
-			BTLeafPage newLeafPage = new BTLeafPage(header.getSearchKeyType());
+			BTLeafPage newLeafPage = latches.newLeafPage(keyType);
 			PageId newLeafPageId = newLeafPage.getCurPage();
+			// latched before it can be reached over the next link
+			latches.lockExclusive(newLeafPageId);
 
 			newLeafPage.setNextPage(node.getNextPage());
 			newLeafPage.setPrevPage(node.getCurPage());
 			node.setNextPage(newLeafPageId);
+			if (newLeafPage.getNextPage().pid != -1) {
+				PageId next = new PageId(newLeafPage.getNextPage().pid);
+				BTSortedPage after = latches.pinExclusive(next, keyType);
+				after.setPrevPage(newLeafPageId);
+				latches.unpinExclusive(next, true);
+			}
 
 			// move (the second) half of records to newLeafNode
-			byte[] tupleContent;
-			KeyDataEntry entry = null;
-			RID movId = new RID(node.getCurPage(), node.getSlotCnt() - 1);
-
-			// System.out.println(i + "  before splitting : slot count in node "
-			// + node.getSlotCnt());
-			int xx = 0;
-			while (node.available_space() < 0.5 * BTSortedPage.MINIBASE_PAGESIZE) {
-				System.out.println("xx of " + i + " = " + xx++);
-				movId.slotNo = node.getSlotCnt() - 1;
-				// if (node.getSlotCnt() == 0) {System.out.println(i +
-				// "*****END"); System.exit(0);}
-				tupleContent = node.getRecord(movId).getTupleByteArray();
-				entry = BT.getEntryFromBytes(tupleContent, 0,
-						tupleContent.length, header.getSearchKeyType(),
-						NodeType.LEAF);
-				newLeafPage.insertRecord(entry);
-				node.deleteSortedRecord(movId);
-			}
+			prefix.split(node, newLeafPage, entry, keyType, NodeType.LEAF);
 
 			return newLeafPage;
 		} catch (Exception e) {
@@ -271,35 +573,728 @@ public class BTreeFile extends IndexFile {
 	}
 
 	/**
-	 * delete leaf entry given its pair. `rid' is IN the data entry; it is not
-	 * the id of the data entry)
+	 * Insert a batch of records. The batch is sorted first; then each leaf is
+	 * reached once, and all the keys of the batch that belong to it are put in
+	 * while it stays pinned and latched. A key that no longer fits goes
+	 * through insert, which splits the leaf, and the batch goes on from there.
+	 * 
+	 * @param keys
+	 * @param rids
+	 *            rids[i] is the record of keys[i]
 	 */
-	static int j = 0;
+	public void insertBatch(KeyClass[] keys, RID[] rids) {
+		try {
+			if (keys.length != rids.length)
+				throw new InsertRecException(null,
+						"keys and rids differ in number");
+			Integer[] order = sortedOrder(keys);
+			metrics.inserts.add(keys.length);
+			if (blink != null) {
+				blink.insertBatch(keys, rids, order);
+				refreshHistogram();
+				return;
+			}
+			KeyClass[] fence = new KeyClass[1];
+			int i = 0;
+			// every entry of a counted index is counted on its own path
+			while (counted != null && i < order.length) {
+				changes.begin();
+				try {
+					insertEntry(new KeyDataEntry(keys[order[i]],
+							rids[order[i]]));
+				} finally {
+					changes.commit();
+				}
+				i++;
+			}
+			while (i < order.length) {
+				boolean full = false;
+				changes.begin();
+				try {
+					BTSortedPage leaf = latches.latchLeaf(header, keyType,
+							keys[order[i]], false, true, fence);
+					boolean dirty = false;
+					while (i < order.length
+							&& (fence[0] == null || compareKeys(
+									keys[order[i]], fence[0]) < 0)) {
+						KeyDataEntry entry = new KeyDataEntry(keys[order[i]],
+								rids[order[i]]);
+						if (prefix.insert(leaf, entry) < 0) {
+							full = true;
+							break;
+						}
+						dirty = true;
+						header.countEntry(entry.key, 1);
+						i++;
+					}
+					latches.unpinExclusive(leaf.getCurPage(), dirty);
+				} finally {
+					changes.commit();
+				}
+				if (full) {
+					changes.begin();
+					try {
+						insertEntry(new KeyDataEntry(keys[order[i]],
+								rids[order[i]]));
+					} finally {
+						changes.commit();
+					}
+					i++;
+				}
+			}
+			refreshHistogram();
+			changes.durable().get();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
 
-	public boolean Delete(KeyClass data, RID rid) {
+	/**
+	 * Point lookups for many keys at once. The keys are sorted and answered in
+	 * one sweep over the leaf level: the keys that fall on the same leaf share
+	 * the walk down to it, and the leaf is pinned once for all of them.
+	 * 
+	 * @return for every key, the rid of its first entry in the index, or null
+	 *         if the key is not in the index
+	 */
+	public RID[] lookupBatch(KeyClass[] keys) {
+		RID[] found = new RID[keys.length];
+		try {
+			Integer[] order = sortedOrder(keys);
+			if (blink != null) {
+				blink.lookupBatch(keys, order, found);
+				return found;
+			}
+			KeyClass[] fence = new KeyClass[1];
+			BTSortedPage leaf = null;
+			PageId pid = null;
+			for (int i = 0; i < order.length; i++) {
+				KeyClass key = keys[order[i]];
+				if (leaf != null && fence[0] != null
+						&& compareKeys(key, fence[0]) > 0) {
+					latches.unpinShared(pid, false);
+					leaf = null;
+				}
+				if (leaf == null) {
+					leaf = latches.latchLeaf(header, keyType, key, true, false,
+							fence);
+					pid = new PageId(leaf.getCurPage().pid);
+				}
+				while (true) {
+					byte[] data = leaf.getpage();
+					int n = SlotSearch.slotCount(data);
+					int slot = prefix.lowerBound(data, n, key);
+					if (slot < n) {
+						if (prefix.compare(key, data,
+								SlotSearch.slotOffset(data, slot)) == 0) {
+							found[order[i]] = new RID(new PageId(), 0);
+							SlotSearch.readRid(data, slot, found[order[i]]);
+						}
+						break;
+					}
+					// only the duplicates of the fence go on past the leaf
+					PageId next = new PageId(leaf.getNextPage().pid);
+					if (fence[0] == null || compareKeys(key, fence[0]) != 0
+							|| next.pid == -1)
+						break;
+					latches.lockShared(next);
+					latches.unpinShared(pid, false);
+					pid = next;
+					leaf = latches.pin(pid, keyType);
+				}
+			}
+			if (leaf != null)
+				latches.unpinShared(pid, false);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return found;
+	}
+
+	/**
+	 * @return the indexes of keys, in the order of the keys (stable)
+	 */
+	private static Integer[] sortedOrder(final KeyClass[] keys) {
+		Integer[] order = new Integer[keys.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return compareKeys(keys[a], keys[b]);
+			}
+		});
+		return order;
+	}
+
+	/**
+	 * BT.keyCompare for sorting: integer keys are not subtracted, so the order
+	 * holds over the whole int range
+	 */
+	static int compareKeys(KeyClass a, KeyClass b) {
+		if (a instanceof IntegerKey && b instanceof IntegerKey) {
+			int x = ((IntegerKey) a).getKey().intValue();
+			int y = ((IntegerKey) b).getKey().intValue();
+			return x < y ? -1 : (x == y ? 0 : 1);
+		}
+		if (a instanceof StringKey && b instanceof StringKey)
+			return ((StringKey) a).getKey().compareTo(
+					((StringKey) b).getKey());
+		throw new IllegalArgumentException("key types do not match");
+	}
+
+	/**
+	 * Build the tree bottom-up from a stream of leaf entries that is already
+	 * sorted by key. Leaf pages are packed left to right up to the given fill
+	 * factor and chained through their next/prev links, then every index level
+	 * is built from the first keys of the level below it, in a single pass.
+	 * Pages of every level are linked to their right sibling. The index must be
+	 * empty, and is not to be used by other threads while it loads.
+	 * 
+	 * With a log, the new pages are written back as they are filled, and only
+	 * the switch to the new root is logged.
+	 * 
+	 * @param data
+	 *            sorted (key, rid) entries
+	 * @param fillFactor
+	 *            fraction of every page to fill, in (0, 1]
+	 */
+	public void bulkLoad(Iterator<KeyDataEntry> data, double fillFactor) {
 		try {
-			BTSortedPage iter = new BTIndexPage(header.getRootID(),
+			int reserve = reserve(fillFactor);
+
+			PageId oldRoot = header.getRootID();
+			BTSortedPage root = new BTSortedPage(oldRoot,
 					header.getSearchKeyType());
-			while (true) {
-
-				if (iter.getType() == NodeType.LEAF) {
-					System.out.println("leaf");
-					System.out.println(j++);
-					bufMgr.unpinPage(iter.getCurPage(), false);
-					iter = new BTLeafPage(iter.getCurPage(),
-							header.getSearchKeyType());
-					boolean b = ((BTLeafPage) iter).delEntry(new KeyDataEntry(
-							data, rid));
-					bufMgr.unpinPage(iter.getCurPage(), false);
-					return b;
+			boolean empty = root.getType() != NodeType.INDEX
+					&& root.getSlotCnt() == 0;
+			bufMgr.unpinPage(oldRoot, false);
+			if (!empty)
+				throw new InsertRecException(null,
+						"bulk load needs an empty index");
+
+			ArrayList<PageId> built = new ArrayList<PageId>();
+			PageId newRoot = build(data, reserve, null, built);
+			if (newRoot == null)
+				return; // nothing to load, keep the empty root
+
+			if (log != null) {
+				// nothing reaches the new pages before the new root does
+				for (PageId pid : built)
+					bufMgr.flushPage(pid);
+				RedoLog.sync(db.db_name());
+			}
+			changes.begin();
+			try {
+				if (blink != null)
+					blink.setRoot(newRoot);
+				else
+					header.setRootID(newRoot);
+				changes.changed(headerID);
+				// copied for the snapshots before it is reused
+				latches.lockExclusive(oldRoot);
+				bufMgr.freePage(oldRoot);
+				latches.unlockExclusive(oldRoot);
+				reclaim.drop(oldRoot);
+				if (log != null)
+					log.forget(oldRoot);
+				changes.changed(ChangeLog.mapPage(oldRoot));
+				for (PageId pid : built)
+					changes.changed(ChangeLog.mapPage(pid));
+			} finally {
+				changes.commit();
+			}
+			changes.durable().get();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * bytes to leave free on every page, for a fill factor in (0, 1]
+	 */
+	private static int reserve(double fillFactor) throws InsertRecException {
+		if (fillFactor <= 0 || fillFactor > 1)
+			throw new InsertRecException(null, "fill factor out of range");
+		return (int) ((1 - fillFactor)
+				* (BTSortedPage.MINIBASE_PAGESIZE - HFPage.DPFIXED));
+	}
+
+	/**
+	 * Pack sorted leaf entries into new pages and build the index levels above
+	 * them, as described at bulkLoad. The pages are left unpinned, and not
+	 * logged. The counts and the histogram of the header are set to those of
+	 * the new tree, which the caller is to make the tree.
+	 * 
+	 * @param reserve
+	 *            bytes left free on every page
+	 * @param run
+	 *            if not null, the pages are taken from it, the leaves first
+	 * @param built
+	 *            the pages made are added to it
+	 * @return the root of the new tree, null if there were no entries
+	 */
+	private PageId build(Iterator<KeyDataEntry> data, int reserve,
+			PageReclaim.PageRun run, ArrayList<PageId> built) throws Exception {
+		// ----------- pack the leaf level -----------\
+		ArrayList<KeyDataEntry> level = new ArrayList<KeyDataEntry>();
+		BTLeafPage leaf = null;
+		KeyClass lastKey = null;
+		int entries = 0;
+		// the first key and the entries of every leaf, for the histogram
+		KeyHistogram.Builder spans = new KeyHistogram.Builder();
+		KeyClass low = null;
+		int inLeaf = 0;
+		// the entry of every page in the level above counts the entries
+		// under it, for a counted index
+		CountedTree.CountedData under = null;
+		while (data.hasNext()) {
+			KeyDataEntry entry = data.next();
+			if (!(entry.data instanceof LeafData))
+				throw new InsertRecException(null,
+						"bulk load expects leaf entries");
+			if (lastKey != null && BT.keyCompare(entry.key, lastKey) < 0)
+				throw new InsertRecException(null,
+						"bulk load input is not sorted");
+
+			if (leaf == null || !prefix.fits(leaf, entry, reserve)) {
+				BTLeafPage next = newLeafPage(run);
+				prefix.format(next);
+				if (blink != null)
+					blink.format(next, 0);
+				if (leaf != null) {
+					if (blink != null)
+						blink.setHighKey(leaf, entry.key);
+					leaf.setNextPage(next.getCurPage());
+					next.setPrevPage(leaf.getCurPage());
+					bufMgr.unpinPage(leaf.getCurPage(), true);
+					spans.add(low, inLeaf);
 				}
-				PageId next = ((BTIndexPage) iter).getPageNoByKey(data);
-				bufMgr.unpinPage(iter.getCurPage(), false);
+				low = entry.key;
+				inLeaf = 0;
+				leaf = next;
+				built.add(leaf.getCurPage());
+				// B-link pages keep the first key as the high key of the
+				// page before, which the separator has to match
+				KeyClass sep = lastKey == null || blink != null ? entry.key
+						: separator(lastKey, entry.key);
+				under = new CountedTree.CountedData(leaf.getCurPage(), 0);
+				level.add(CountedTree.entry(sep, under));
+			}
+			// input is sorted, so the entry goes after the others
+			prefix.insert(leaf, entry);
+			lastKey = entry.key;
+			entries++;
+			inLeaf++;
+			under.count++;
+		}
+		if (leaf == null)
+			return null;
+		bufMgr.unpinPage(leaf.getCurPage(), true);
+		spans.add(low, inLeaf);
+		int leaves = built.size();
+
+		// ------ build the index levels above ------\
+		int height = 1;
+		for (; level.size() > 1; height++) {
+			ArrayList<KeyDataEntry> upper = new ArrayList<KeyDataEntry>();
+			BTIndexPage node = null;
+			for (KeyDataEntry sep : level) {
+				if (node == null || !prefix.fits(node, sep, reserve)) {
+					// the first child of a page is its left link, its key
+					// is pushed up to the next level
+					BTIndexPage next = newIndexPage(run);
+					prefix.format(next);
+					if (blink != null)
+						blink.format(next, height);
+					if (node != null) {
+						if (blink != null)
+							blink.setHighKey(node, sep.key);
+						node.setNextPage(next.getCurPage());
+						bufMgr.unpinPage(node.getCurPage(), true);
+					}
+					node = next;
+					built.add(node.getCurPage());
+					node.setLeftLink(((IndexData) sep.data).getData());
+					under = new CountedTree.CountedData(node.getCurPage(), 0);
+					upper.add(CountedTree.entry(sep.key, under));
+				} else {
+					prefix.insert(node, sep);
+				}
+				under.count += CountedTree.count(sep);
+			}
+			bufMgr.unpinPage(node.getCurPage(), true);
+			level = upper;
+		}
+		header.setCounts(height, entries, leaves, built.size());
+		header.setHistogram(spans.build(null, lastKey, entries));
+		return ((IndexData) level.get(0).data).getData();
+	}
+
+	/**
+	 * a new leaf for build, pinned, from the run if there is one
+	 */
+	private BTLeafPage newLeafPage(PageReclaim.PageRun run) throws Exception {
+		if (run == null)
+			return new BTLeafPage(keyType);
+		BTLeafPage page = new BTLeafPage(new Page(), keyType);
+		reclaim.newPage(run, page);
+		return page;
+	}
+
+	/**
+	 * a new index page for build, pinned, from the run if there is one
+	 */
+	private BTIndexPage newIndexPage(PageReclaim.PageRun run)
+			throws Exception {
+		if (run == null)
+			return new BTIndexPage(keyType);
+		BTIndexPage page = new BTIndexPage(new Page(), keyType);
+		reclaim.newPage(run, page);
+		return page;
+	}
 
-				iter = new BTSortedPage(next, header.getSearchKeyType());
+	/**
+	 * Compact the index: its entries are packed into full leaves, which lie
+	 * one after the other in the file in key order, and the index levels are
+	 * built again above them, as by bulkLoad. Inserts and deletes wait while
+	 * it runs; lookups and scans go on in the old pages until the root is
+	 * moved to the new ones. A scan opened before goes on over the old
+	 * leaves, which are only freed once no scan is open. Not for a B-link
+	 * tree.
+	 */
+	public void compact() {
+		compact(1);
+	}
+
+	/**
+	 * Like compact above, filling every page only up to the given fill
+	 * factor, which leaves room for inserts.
+	 * 
+	 * @param fillFactor
+	 *            fraction of every page to fill, in (0, 1]
+	 */
+	public void compact(double fillFactor) {
+		try {
+			int reserve = reserve(fillFactor);
+			if (blink != null)
+				throw new ConstructPageException(null,
+						"no compaction of a B-link tree");
+			gate.exclude();
+			try {
+				rebuild(reserve);
+			} finally {
+				gate.admit();
+			}
+			changes.begin();
+			try {
+				reclaim.reclaim();
+			} finally {
+				changes.commit();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * compact, with the operations kept out
+	 */
+	private void rebuild(int reserve) throws Exception {
+		ArrayList<ArrayList<PageId>> levels = new ArrayList<ArrayList<PageId>>();
+		ArrayList<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+		walk(levels, entries);
+		ArrayList<PageId> old = new ArrayList<PageId>();
+		for (ArrayList<PageId> level : levels)
+			old.addAll(level);
+		if (old.size() == 1)
+			return; // a single leaf
+
+		// the new pages, taken from runs the size of the old tree
+		PageReclaim.PageRun run = new PageReclaim.PageRun(old.size());
+		ArrayList<PageId> built = new ArrayList<PageId>();
+		PageId newRoot = build(entries.iterator(), reserve, run, built);
+		if (newRoot == null) {
+			// no entries: an empty leaf
+			BTLeafPage leaf = newLeafPage(run);
+			prefix.format(leaf);
+			newRoot = leaf.getCurPage();
+			bufMgr.unpinPage(newRoot, true);
+			built.add(newRoot);
+			header.setCounts(1, 0, 1, 1);
+			header.setHistogram(null);
+		}
+
+		if (log != null) {
+			// nothing reaches the new pages before the new root does
+			for (PageId pid : built)
+				bufMgr.flushPage(pid);
+			RedoLog.sync(db.db_name());
+		}
+		changes.begin();
+		try {
+			// the descents under way go on in the old pages
+			latches.lockExclusive(headerID);
+			header.setRootID(newRoot);
+			changes.changed(headerID);
+			latches.unlockExclusive(headerID);
+			for (PageId pid : old)
+				reclaim.retire(pid);
+			reclaim.giveBack(run);
+			for (PageId pid : built)
+				changes.changed(ChangeLog.mapPage(pid));
+			gate.moved();
+		} finally {
+			changes.commit();
+		}
+		changes.durable().get();
+	}
 
-				iter = new BTIndexPage(next, header.getSearchKeyType());
+	/**
+	 * Walk the tree from the root down, every level along its next links.
+	 * 
+	 * @param levels
+	 *            gets the pages of every level, the root's first
+	 * @param entries
+	 *            if not null, gets the entries of the leaves, in order
+	 * @return the number of entries in the leaves
+	 */
+	private int walk(ArrayList<ArrayList<PageId>> levels,
+			ArrayList<KeyDataEntry> entries) throws Exception {
+		int count = 0;
+		PageId first = new PageId(header.getRootID().pid);
+		while (first != null) {
+			ArrayList<PageId> level = new ArrayList<PageId>();
+			PageId below = null;
+			PageId pid = first;
+			while (pid.pid != GlobalConst.INVALID_PAGE) {
+				BTSortedPage page = latches.pinShared(pid, keyType);
+				if (page.getType() == NodeType.LEAF) {
+					count += page.getSlotCnt();
+					if (entries != null)
+						entries.addAll(prefix.entries(page.getpage(),
+								keyType, NodeType.LEAF));
+				} else if (below == null)
+					below = new PageId(page.getPrevPage().pid);
+				PageId next = new PageId(page.getNextPage().pid);
+				latches.unpinShared(pid, false);
+				level.add(pid);
+				pid = next;
 			}
+			levels.add(level);
+			first = below;
+		}
+		return count;
+	}
+
+	/**
+	 * Count the tree again for the header, whose counts are not known, or are
+	 * behind a log that was redone.
+	 */
+	private void recount() throws Exception {
+		ArrayList<ArrayList<PageId>> levels = new ArrayList<ArrayList<PageId>>();
+		int entries = walk(levels, null);
+		int pages = 0;
+		for (ArrayList<PageId> level : levels)
+			pages += level.size();
+		header.setCounts(levels.size(), entries, levels.get(levels.size() - 1)
+				.size(), pages);
+	}
+
+	/**
+	 * Estimate how many entries have keys in the range, as new_scan takes it:
+	 * from lo_key to hi_key, both included, null for no bound. The estimate
+	 * comes from a histogram of the keys kept in memory, and reads no page;
+	 * it is made when the file is opened or bulk loaded, kept up to date by
+	 * inserts and deletes, and made again after as many changes as the index
+	 * had entries.
+	 * 
+	 * @return the estimate, 0 if lo_key is above hi_key
+	 */
+	public int estimateRange(KeyClass lo_key, KeyClass hi_key) {
+		try {
+			if (lo_key != null && hi_key != null
+					&& compareKeys(lo_key, hi_key) > 0)
+				return 0;
+			KeyHistogram histogram = header.getHistogram();
+			if (histogram == null)
+				// the index had no entries when the histogram was made
+				return header.getEntryCount();
+			return (int) Math.round(histogram.estimate(lo_key, hi_key));
+		} catch (Exception e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	/**
+	 * Count the entries with keys in the range, as new_scan takes it: from
+	 * lo_key to hi_key, both included, null for no bound. Only for a file
+	 * created with BTreeFlags.COUNTED, whose index entries count the entries
+	 * under them: the count is read on the paths to the two bounds, and no
+	 * leaf is scanned. It is exact unless the file changes meanwhile.
+	 * 
+	 * @return the count, 0 if lo_key is above hi_key, -1 if the file keeps
+	 *         no counts
+	 */
+	public int count(KeyClass lo_key, KeyClass hi_key) {
+		try {
+			if (lo_key != null && hi_key != null
+					&& compareKeys(lo_key, hi_key) > 0)
+				return 0;
+			return counted().rank(hi_key, true)
+					- counted().rank(lo_key, false);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return -1;
+		}
+	}
+
+	/**
+	 * Rank of a key, for a file created with BTreeFlags.COUNTED.
+	 * 
+	 * @return how many entries have keys below key, -1 if the file keeps no
+	 *         counts
+	 */
+	public int rank(KeyClass key) {
+		try {
+			return counted().rank(key, false);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return -1;
+		}
+	}
+
+	/**
+	 * The entry of rank k, for a file created with BTreeFlags.COUNTED: the
+	 * one with k entries before it in key order, entries with equal keys
+	 * taken in the order of the leaves.
+	 * 
+	 * @return the entry, null if k is not below the number of entries
+	 */
+	public KeyDataEntry select(int k) {
+		KeyDataEntry[] found = select(k, 1);
+		return found == null || found.length == 0 ? null : found[0];
+	}
+
+	/**
+	 * A page of entries, as for OFFSET and LIMIT: the entry of rank offset
+	 * (see select above) is found from the root, and the others follow it
+	 * along the leaves.
+	 * 
+	 * @return up to limit entries, fewer at the end of the index; null if
+	 *         the file keeps no counts
+	 */
+	public KeyDataEntry[] select(int offset, int limit) {
+		try {
+			return counted().select(offset, limit).toArray(
+					new KeyDataEntry[0]);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private CountedTree counted() throws IteratorException {
+		if (counted == null)
+			throw new IteratorException(null, "the index keeps no counts");
+		return counted;
+	}
+
+	/**
+	 * Make the histogram of the keys again if it is stale, unless another
+	 * thread is at it.
+	 */
+	void refreshHistogram() throws Exception {
+		KeyHistogram histogram = header.getHistogram();
+		if (histogram == null ? header.getEntryCount() < KeyHistogram.MIN_CHANGES
+				: !histogram.stale())
+			return;
+		if (!sampling.compareAndSet(false, true))
+			return;
+		try {
+			sampleHistogram();
+		} finally {
+			sampling.set(false);
+		}
+	}
+
+	/**
+	 * Make the histogram of the keys from the tree as it is. The index levels
+	 * give the first key of the leaves, but for the leftmost leaf under each
+	 * index page, which comes from the page above; the entries are counted in
+	 * a sample of the leaves, and the leaves left out are taken to hold as
+	 * many as the sample on average. Pages split or merged meanwhile only
+	 * make it less exact.
+	 */
+	private void sampleHistogram() throws Exception {
+		ArrayList<PageId> pids = new ArrayList<PageId>();
+		ArrayList<KeyClass> lows = new ArrayList<KeyClass>();
+		// no page is freed while it runs
+		header.scanOpened();
+		try {
+			pids.add(header.getRootID());
+			lows.add(null);
+			for (int level = header.getHeight(); level > 1; level--) {
+				ArrayList<PageId> below = new ArrayList<PageId>();
+				ArrayList<KeyClass> belowLows = new ArrayList<KeyClass>();
+				for (int i = 0; i < pids.size(); i++) {
+					BTSortedPage page = latches.pinShared(pids.get(i), keyType);
+					if (page.getType() == NodeType.INDEX) {
+						below.add(new PageId(page.getPrevPage().pid));
+						belowLows.add(lows.get(i));
+						for (KeyDataEntry e : prefix.entries(page.getpage(),
+								keyType, NodeType.INDEX)) {
+							below.add(((IndexData) e.data).getData());
+							belowLows.add(e.key);
+						}
+					} else {
+						below.add(pids.get(i));
+						belowLows.add(lows.get(i));
+					}
+					latches.unpinShared(pids.get(i), false);
+				}
+				pids = below;
+				lows = belowLows;
+			}
+
+			int n = pids.size();
+			int step = Math.max(1, n / KeyHistogram.SAMPLE);
+			double[] sizes = new double[n];
+			double sampled = 0, read = 0;
+			KeyClass min = null, max = null;
+			for (int i = 0; i < n; i++) {
+				if (i % step != 0 && i != n - 1)
+					continue;
+				BTSortedPage leaf = latches.pinShared(pids.get(i), keyType);
+				int count = leaf.getSlotCnt();
+				if (i == 0 && count > 0)
+					min = prefix.entry(leaf.getpage(), 0, keyType,
+							NodeType.LEAF).key;
+				if (i == n - 1 && count > 0)
+					max = prefix.entry(leaf.getpage(), count - 1, keyType,
+							NodeType.LEAF).key;
+				latches.unpinShared(pids.get(i), false);
+				sizes[i] = count;
+				sampled += count;
+				read++;
+			}
+			KeyHistogram.Builder spans = new KeyHistogram.Builder();
+			for (int i = 0; i < n; i++)
+				spans.add(lows.get(i), i % step == 0 || i == n - 1 ? sizes[i]
+						: sampled / read);
+			header.setHistogram(spans.build(min, max, header.getEntryCount()));
+		} finally {
+			header.scanClosed();
+		}
+	}
+
+	/**
+	 * delete leaf entry given its pair. `rid' is IN the data entry; it is not
+	 * the id of the data entry)
+	 */
+	public boolean Delete(KeyClass data, RID rid) {
+		try {
+			return deleteAsync(data, rid).get();
 		} catch (Exception e) {
 			e.printStackTrace();
 			return false;
@@ -307,11 +1302,283 @@ public class BTreeFile extends IndexFile {
 	}
 
 	/**
-	 * Close the B+ tree file. Unpin header page.
+	 * Delete as above, without waiting for the log; see setGroupCommit.
+	 * 
+	 * With full delete, a leaf the delete leaves less than half full is then
+	 * merged with a sibling, or takes entries from its left sibling; see
+	 * rebalance.
+	 * 
+	 * @return whether the entry was found, once the delete is on disk
+	 */
+	public CompletableFuture<Boolean> deleteAsync(KeyClass data, RID rid) {
+		try {
+			long start = System.nanoTime();
+			if (blink != null) {
+				boolean found = blink.delete(data, rid);
+				metrics.deleteLatency.since(start);
+				refreshHistogram();
+				return CompletableFuture.completedFuture(found);
+			}
+			PageId[] underfull = fullDelete ? new PageId[1] : null;
+			final boolean found;
+			changes.begin();
+			try {
+				if (counted != null) {
+					// counted off its path, under the latch of the header
+					found = counted.delete(data, rid);
+				} else {
+					// duplicates of the key may go on in the leaves to the
+					// right
+					BTSortedPage leaf = latches.latchLeaf(header, keyType,
+							data, true, true);
+					found = latches.deleteFrom(leaf, keyType, data, rid,
+							underfull);
+				}
+			} finally {
+				changes.commit();
+			}
+			if (found && counted == null)
+				header.countEntry(data, -1);
+			if (underfull != null && underfull[0] != null) {
+				changes.begin();
+				try {
+					rebalance(data, underfull[0]);
+				} finally {
+					changes.commit();
+				}
+			}
+			metrics.deleteLatency.since(start);
+			refreshHistogram();
+			return changes.durable().thenApply(new Function<Void, Boolean>() {
+				public Boolean apply(Void v) {
+					return found;
+				}
+			});
+		} catch (Exception e) {
+			CompletableFuture<Boolean> failed = new CompletableFuture<Boolean>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+	/**
+	 * Full delete, after a delete left the leaf less than half full, within
+	 * an operation of its own. Holding exclusive latches from the lowest
+	 * parent that stays at least half full whatever happens below it, the
+	 * leaf is merged with a sibling if they fit on one page, or takes entries
+	 * from its left sibling; a merge takes an entry out of the parent, which
+	 * is then dealt with the same way, up to the root, which goes when it has
+	 * a single child left.
+	 * 
+	 * @param key
+	 *            key of the entry deleted, which leads to the leaf
+	 */
+	private void rebalance(KeyClass key, PageId leaf) throws Exception {
+		reclaim.reclaim();
+		Stack<PageId> path = getPathForDelete(key);
+		PageId pid = path.pop();
+		try {
+			// a leaf in a run of equal keys may not be on the path of key
+			if (pid.pid != leaf.pid)
+				return;
+			while (!path.isEmpty()) {
+				BTSortedPage node = latches.pin(pid, keyType);
+				boolean low = prefix.underfull(node);
+				boolean single = node.getType() == NodeType.INDEX
+						&& node.getSlotCnt() == 0;
+				PageId child = node.getPrevPage();
+				latches.unpin(pid, false);
+				if (path.peek().pid == headerID.pid) {
+					// the root
+					if (single) {
+						header.setRootID(child);
+						header.countLevels(-1);
+						header.countIndexPages(-1);
+						changes.changed(headerID);
+						reclaim.retire(pid);
+					}
+					return;
+				}
+				if (!low || !merge(path.peek(), pid))
+					return;
+				latches.unlockExclusive(pid);
+				pid = path.pop();
+			}
+		} finally {
+			latches.unlockExclusive(pid);
+			while (!path.isEmpty())
+				latches.unlockExclusive(path.pop());
+		}
+	}
+
+	/**
+	 * Latch coupling for rebalance, as getPathForSpecificKey for an insert:
+	 * the pages from the root down to the leaf of the first occurrence of key
+	 * are latched exclusively, and the latches above a page that stays at
+	 * least half full after losing an entry are let go. The root stays so
+	 * with two entries or more, or as a leaf.
+	 * 
+	 * @return the page ids still latched, the leaf on top; none of them is
+	 *         left pinned
+	 */
+	private Stack<PageId> getPathForDelete(KeyClass key) throws Exception {
+		Stack<PageId> path = new Stack<PageId>();
+		PageId pid = new PageId(headerID.pid);
+		latches.lockExclusive(pid);
+		path.push(pid);
+		pid = header.getRootID();
+		boolean root = true;
+		while (true) {
+			latches.lockExclusive(pid);
+			BTSortedPage node = latches.pin(pid, keyType);
+			boolean index = node.getType() == NodeType.INDEX;
+			boolean safe = root ? !index || node.getSlotCnt() > 1 : index
+					&& node.available_space() + maxIndexEntryLength() <= HALF;
+			if (safe) {
+				while (!path.isEmpty())
+					latches.unlockExclusive(path.pop());
+			}
+			path.push(pid);
+			if (!index) {
+				latches.unpin(pid, false);
+				return path;
+			}
+			PageId next = prefix.child(node.getpage(), key, true);
+			latches.unpin(pid, false);
+			pid = next;
+			root = false;
+		}
+	}
+
+	/**
+	 * half the space of a page for records
+	 */
+	private static final int HALF = (GlobalConst.MAX_SPACE - HFPage.DPFIXED) / 2;
+
+	/**
+	 * Merge a page left less than half full with its right sibling under the
+	 * same parent, or with its left one, if the two fit on one page; if they
+	 * do not, move entries to it from the left sibling until they are about
+	 * even. The index entry between the two is pulled down into a merged
+	 * index page, and goes up again out of the entries moved.
+	 * 
+	 * Entries only move left in a merge. The right page leaves the leaf level
+	 * empty but for its next link, to the page that took its entries, and is
+	 * only freed once no scan can be on it (PageReclaim.retire); a scan still
+	 * there finds its place again in that page, as after a split.
+	 * 
+	 * @param parentId
+	 *            the parent, latched exclusively, as pid is
+	 * @return whether the pages were merged, and the parent lost an entry
+	 */
+	private boolean merge(PageId parentId, PageId pid) throws Exception {
+		BTSortedPage parent = latches.pin(parentId, keyType);
+		byte[] data = parent.getpage();
+		int n = SlotSearch.slotCount(data);
+		int slot = parent.getPrevPage().pid == pid.pid ? -1 : n;
+		for (int i = 0; slot == n && i < n; i++) {
+			if (SlotSearch.childPid(data, i) == pid.pid)
+				slot = i;
+		}
+		// the index entry of the right page of the two
+		int sep = slot < 0 ? 0 : slot;
+		if (sep >= n) {
+			latches.unpin(parentId, false);
+			return false;
+		}
+		PageId left = slot < 0 ? pid : new PageId(slot == 0 ? parent
+				.getPrevPage().pid : SlotSearch.childPid(data, slot - 1));
+		PageId right = slot < 0 ? new PageId(SlotSearch.childPid(data, 0))
+				: pid;
+		PageId sibling = slot < 0 ? right : left;
+		if (slot >= 0) {
+			// latches are taken left to right
+			latches.unlockExclusive(pid);
+			latches.lockExclusive(left);
+			latches.lockExclusive(pid);
+		} else {
+			latches.lockExclusive(right);
+		}
+		boolean merged = false, moved = false;
+		try {
+			BTSortedPage l = latches.pin(left, keyType);
+			BTSortedPage r = latches.pin(right, keyType);
+			short type = l.getType();
+			ArrayList<KeyDataEntry> all = prefix.entries(l.getpage(), keyType,
+					type);
+			int inLeft = all.size();
+			if (type == NodeType.INDEX)
+				all.add(new KeyDataEntry(prefix.entry(data, sep, keyType,
+						NodeType.INDEX).key, r.getPrevPage()));
+			all.addAll(prefix.entries(r.getpage(), keyType, type));
+
+			if (prefix.fill(l, all, 0, all.size())) {
+				PageId next = r.getNextPage();
+				l.setNextPage(next);
+				if (type == NodeType.LEAF) {
+					if (next.pid != GlobalConst.INVALID_PAGE) {
+						BTSortedPage after = latches.pinExclusive(next,
+								keyType);
+						after.setPrevPage(left);
+						latches.unpinExclusive(next, true);
+					}
+					prefix.fill(r, all, 0, 0);
+					r.setNextPage(left); // for the scans still on it
+				}
+				parent.deleteSortedRecord(new RID(parentId, sep));
+				reclaim.retire(right);
+				if (type == NodeType.LEAF)
+					header.countLeaves(-1);
+				else
+					header.countIndexPages(-1);
+				merged = true;
+			} else if (slot >= 0) {
+				// only the entries of the left page move, to the right
+				int half = prefix.middle(all);
+				if (half > 0 && half < inLeft) {
+					KeyClass key = type == NodeType.LEAF ? separator(
+							all.get(half - 1).key, all.get(half).key) : all
+							.get(half).key;
+					ArrayList<KeyDataEntry> seps = prefix.entries(data,
+							keyType, NodeType.INDEX);
+					seps.set(sep, new KeyDataEntry(key, right));
+					if (prefix.fill(parent, seps, 0, seps.size())) {
+						prefix.fill(l, all, 0, half);
+						if (type == NodeType.LEAF) {
+							prefix.fill(r, all, half, all.size());
+						} else {
+							r.setPrevPage(((IndexData) all.get(half).data)
+									.getData());
+							prefix.fill(r, all, half + 1, all.size());
+						}
+						moved = true;
+					}
+				}
+			}
+			latches.unpin(left, merged || moved);
+			latches.unpin(right, merged || moved);
+		} finally {
+			latches.unpin(parentId, merged || moved);
+			latches.unlockExclusive(sibling);
+		}
+		return merged;
+	}
+
+	/**
+	 * Close the B+ tree file. Unpin header page. With a log, the pages logged
+	 * are written back and the log is emptied.
 	 */
 	public void close() {
 		try {
-			bufMgr.unpinPage(headerID, false);
+			reclaimAll();
+			// the header was changed in place, pinned
+			header.storeCounts();
+			if (log != null) {
+				// the counts are not logged; the checkpoint writes them back
+				changes.checkpoint();
+				log.close();
+			}
+			bufMgr.unpinPage(headerID, true);
 			bufMgr = null;
 			db = null;
 			headerID = null;
@@ -321,6 +1588,27 @@ public class BTreeFile extends IndexFile {
 		}
 	}
 
+	/**
+	 * Free the leaves taken out of the tree and not freed yet, the scans
+	 * still open or not: the file is being closed or destroyed.
+	 */
+	private void reclaimAll() throws Exception {
+		if (blink != null)
+			return;
+		// the changes that took them out are on disk
+		if (log != null)
+			log.drain();
+		changes.begin();
+		try {
+			reclaim.reclaim(true);
+		} finally {
+			changes.commit();
+		}
+		// and the pages the reclaim changed are unpinned
+		if (log != null)
+			log.drain();
+	}
+
 	private void Rec_Delete_Page(ArrayList<PageId> x) {
 		if (x.isEmpty())
 			return;
@@ -335,6 +1623,7 @@ public class BTreeFile extends IndexFile {
 			xx.get(i).addAll(getChildren(p));
 			try {
 				db.deallocate_page(p);
+				reclaim.drop(p);
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
@@ -349,8 +1638,10 @@ public class BTreeFile extends IndexFile {
 		try {
 			ArrayList<PageId> toRet = new ArrayList<PageId>();
 			BTSortedPage page = new BTSortedPage(p, header.getSearchKeyType());
-			if (page.getType() == NodeType.LEAF)
+			if (page.getType() == NodeType.LEAF) {
+				bufMgr.unpinPage(p, false);
 				return toRet;
+			}
 
 			toRet.add(page.getPrevPage());
 			int i = 0;
@@ -362,10 +1653,11 @@ public class BTreeFile extends IndexFile {
 				i++;
 			}
 			bufMgr.unpinPage(p, false);
+			return toRet;
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		return null;
+		return new ArrayList<PageId>();
 	}
 
 	/**
@@ -373,10 +1665,16 @@ public class BTreeFile extends IndexFile {
 	 */
 	public void destroyFile() {
 		try {
+			reclaimAll();
 			ArrayList<PageId> root = new ArrayList<PageId>();
 			root.add(header.getRootID());
 			Rec_Delete_Page(root);
+			if (log != null)
+				log.delete();
+			// pinned since the file was opened
+			bufMgr.unpinPage(headerID, false);
 			db.deallocate_page(headerID);
+			reclaim.drop(headerID);
 			db.delete_file_entry(fileName);
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -403,18 +1701,133 @@ public class BTreeFile extends IndexFile {
 	 * @return
 	 */
 	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key) {
+		return new_scan(lo_key, hi_key, false, false);
+	}
+
+	/**
+	 * Like new_scan above; a snapshot scan returns the entries as they were
+	 * when it was created, consistent with each other, while other threads go
+	 * on inserting and deleting. Until the scan ends or is destroyed, a page
+	 * changed for the first time is copied for it. Not for a B-link tree.
+	 * 
+	 * @param snapshot
+	 *            whether to scan a snapshot, rather than the file as it
+	 *            changes
+	 */
+	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key,
+			boolean snapshot) {
+		return new_scan(lo_key, hi_key, snapshot, false);
+	}
+
+	/**
+	 * Like new_scan above, over the same range; a descending scan returns the
+	 * entries from hi_key down to lo_key, moving left over the prev links of
+	 * the leaves, so the last N entries of a range are read off the last
+	 * leaves only. Entries with equal keys come in the reverse of the order
+	 * an ascending scan returns them in.
+	 * 
+	 * @param descending
+	 *            whether to scan in descending key order
+	 */
+	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key,
+			boolean snapshot, boolean descending) {
 		try {
-			return new BTFileScan(lo_key, hi_key, header);
+			if (snapshot && blink != null)
+				throw new IteratorException(null,
+						"no snapshot scans of a B-link tree");
+			long start = System.nanoTime();
+			metrics.scans.increment();
+			BTFileScan scan;
+			if (blink != null)
+				scan = new BTFileScan(lo_key, hi_key, blink, descending);
+			else if (snapshot)
+				scan = new BTFileScan(lo_key, hi_key, header, latches,
+						gate.snapshot(header), descending);
+			else
+				scan = new BTFileScan(lo_key, hi_key, header, latches,
+						descending);
+			metrics.scanLatency.since(start);
+			return scan;
 		} catch (Exception e) {
 			e.printStackTrace();
 			return null;
 		}
 	}
 
+	/**
+	 * Cursor over the entries from lo_key to hi_key, both included (null for
+	 * no bound), in key order, which sets a key and a rid of the caller's for
+	 * each entry instead of making a KeyDataEntry; see BTCursor. The keys are
+	 * swapped if lo_key is above hi_key.
+	 */
+	public BTCursor new_cursor(KeyClass lo_key, KeyClass hi_key) {
+		try {
+			if (lo_key != null && hi_key != null
+					&& compareKeys(lo_key, hi_key) > 0) {
+				// Assumption
+				KeyClass key = lo_key;
+				lo_key = hi_key;
+				hi_key = key;
+			}
+			if (blink != null)
+				return new BTCursor(lo_key, hi_key, new BTFileScan(lo_key,
+						hi_key, blink, false));
+			long start = System.nanoTime();
+			metrics.scans.increment();
+			BTCursor cursor = new BTCursor(lo_key, hi_key, header, latches);
+			metrics.scanLatency.since(start);
+			return cursor;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Stream of the entries from lo_key to hi_key, both included (null for no
+	 * bound), in key order. A parallel stream splits the range at the
+	 * separator keys of the index pages, so each thread scans its own part of
+	 * the leaves. The keys are swapped if lo_key is above hi_key.
+	 * 
+	 * A stream that is not read to the end (after findFirst or limit, say)
+	 * keeps scans open until it is closed.
+	 */
+	public Stream<KeyDataEntry> stream(KeyClass lo_key, KeyClass hi_key) {
+		if (lo_key != null && hi_key != null
+				&& compareKeys(lo_key, hi_key) > 0) {
+			// Assumption
+			KeyClass key = lo_key;
+			lo_key = hi_key;
+			hi_key = key;
+		}
+		final BTreeSpliterator entries = new BTreeSpliterator(this, header,
+				latches, lo_key, hi_key);
+		return StreamSupport.stream(entries, false).onClose(new Runnable() {
+			public void run() {
+				entries.close();
+			}
+		});
+	}
+
 	public BTreeHeaderPage getHeaderPage() throws IOException {
 		return header;
 	}
 
+	/**
+	 * the latches of the file, which log its changes if it has a log
+	 */
+	PageLatches getLatches() {
+		return latches;
+	}
+
+	/**
+	 * @return the counters and latencies of the file, live: they go on
+	 *         changing as it is used, see BTreeMetrics.snapshot
+	 */
+	public BTreeMetrics getMetrics() {
+		return metrics;
+	}
+
 	// NEGLECTED
 	public void traceFilename(String string) {
 
@@ -0,0 +1,38 @@
+package btree;
+
+/**
+ * Bits of the flags word kept in the header page. They describe the layout of
+ * every page of the file, so they are chosen when the file is created and
+ * never change afterwards.
+ */
+public class BTreeFlags {
+
+	/**
+	 * Concurrent B-link tree: every page keeps a right link and a high key, see
+	 * BLinkTree.
+	 */
+	public static final int BLINK = 1;
+
+	/**
+	 * Prefix compression: every page keeps the prefix its keys share once,
+	 * and the rest of each key in its record, see PagePrefix. For string keys
+	 * only, and not together with BLINK.
+	 */
+	public static final int PREFIX = 2;
+
+	/**
+	 * Write-ahead log: the pages every insert or delete changes are logged,
+	 * and the log is redone when the file is opened after a crash, see
+	 * RedoLog. Not for BLINK files: the constructor throws
+	 * IllegalArgumentException given both.
+	 */
+	public static final int LOG = 4;
+
+	/**
+	 * Order statistics: every index entry keeps the number of entries under
+	 * its child, for BTreeFile.count, rank and select, see CountedTree.
+	 * Inserts and deletes run one at a time, and deletes do not merge pages.
+	 * Not for BLINK files, where it is ignored.
+	 */
+	public static final int COUNTED = 8;
+}
@@ -1,33 +1,101 @@
 package btree;
 
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import global.Convert;
+import global.GlobalConst;
 import global.PageId;
 import global.RID;
 import heap.HFPage;
-import heap.Tuple;
 
 /**
  * header page is used to hold information about the tree as a whole, such as
  * the page id of the root page, the type of the search key, the length of the
  * key field(s) (which has a fixed maximum size in this assignment), etc.
+ *
+ * Each value is an int at a fixed place after the page header, and is kept in
+ * a field as well: the getters read the fields, and the setters write both.
+ * Files written before this layout keep their values in records; they are
+ * read from there, and the page is laid out anew the first time a value is
+ * set.
+ *
+ * The header also counts the levels, entries, leaves and pages of the tree.
+ * The tree keeps the counts as it changes, and they reach the page when the
+ * file is closed (storeCounts). A file left without being closed has them
+ * as they were at the last close; BTreeFile counts its tree again when the
+ * log of the file was redone.
  */
 
 public class BTreeHeaderPage extends HFPage {
 
-	private Queue<RID> container;
-	private static final int qSize = 4;
+	/**
+	 * marks a page laid out as below
+	 */
+	private static final int MAGIC = 0x42544844;
 
 	/*
-	 * Order within the queue (and within the data array):
+	 * Places of the values on the page:
+	 */
+	private static final int MAGIC_POS = DPFIXED;
+	private static final int rootID = DPFIXED + 4;
+	private static final int SKType = DPFIXED + 8;
+	private static final int maxKLen = DPFIXED + 12;
+	private static final int delFashion = DPFIXED + 16;
+	private static final int flags = DPFIXED + 20;
+	private static final int logId = DPFIXED + 24;
+	private static final int height = DPFIXED + 28;
+	private static final int entries = DPFIXED + 32;
+	private static final int leaves = DPFIXED + 36;
+	private static final int pages = DPFIXED + 40;
+	private static final int END = DPFIXED + 44;
+
+	/**
+	 * records of the layout before, one per value from the root to the log
+	 * id, in that order
+	 */
+	private static final int RECORDS = 6;
+
+	/**
+	 * whether the page is laid out as above
+	 */
+	private boolean fixed;
+
+	/**
+	 * whether the counts were read off the page, or set since
+	 */
+	private boolean counted;
+
+	private volatile int root = INVALID_PAGE;
+	private int keyType;
+	private int keyLength;
+	private int fashion;
+	private int flagBits;
+	private int log = -1;
+
+	private final AtomicInteger levelCount = new AtomicInteger();
+	private final AtomicInteger entryCount = new AtomicInteger();
+	private final AtomicInteger leafCount = new AtomicInteger();
+	private final AtomicInteger pageCount = new AtomicInteger();
+
+	/**
+	 * histogram of the keys, made by BTreeFile and kept up to date with the
+	 * entry count; not kept on the page
 	 */
-	private static final int rootID = 0;
-	private static final int SKType = 1;
-	private static final int maxKLen = 2;
-	private static final int delFashion = 3;
+	private volatile KeyHistogram histogram;
+
+	/**
+	 * counters of what the tree does while the file is open; not kept on
+	 * the page either
+	 */
+	private final BTreeMetrics metrics = new BTreeMetrics();
+
+	/**
+	 * scans open on the file: they keep the id of their leaf between calls,
+	 * so while one is open no leaf taken out of the tree is freed; not kept
+	 * on the page
+	 */
+	private final AtomicInteger scans = new AtomicInteger();
 
 	public BTreeHeaderPage() throws IOException {
 		super();
@@ -37,11 +105,10 @@ public class BTreeHeaderPage extends HFPage {
 	public void initHeader(PageId pid) {
 		try {
 			init(pid, this);
-			container = new LinkedList<RID>();
-			byte[] f = new byte[Integer.SIZE / 8];
-			Convert.setIntValue(-1, 0, f);
-			for (int i = 0; i < qSize; i++)
-				container.offer(insertRecord(f));
+			root = INVALID_PAGE;
+			keyType = keyLength = fashion = flagBits = log = -1;
+			counted = true;
+			layout();
 		} catch (Exception e) {
 
 		}
@@ -49,13 +116,38 @@ public class BTreeHeaderPage extends HFPage {
 
 	public void readHPageIn() {
 		try {
-			available_space();
-			container = new LinkedList<RID>();
-			RID temp = firstRecord();
-			for (int i = 0; i < qSize; i++) {
-				container.offer(temp);
-				temp = nextRecord(temp);
+			fixed = Convert.getIntValue(MAGIC_POS, data) == MAGIC;
+			if (fixed) {
+				root = Convert.getIntValue(rootID, data);
+				keyType = Convert.getIntValue(SKType, data);
+				keyLength = Convert.getIntValue(maxKLen, data);
+				fashion = Convert.getIntValue(delFashion, data);
+				flagBits = Convert.getIntValue(flags, data);
+				log = Convert.getIntValue(logId, data);
+				levelCount.set(Convert.getIntValue(height, data));
+				entryCount.set(Convert.getIntValue(entries, data));
+				leafCount.set(Convert.getIntValue(leaves, data));
+				pageCount.set(Convert.getIntValue(pages, data));
+				counted = true;
+				return;
 			}
+			// files written before the flags or the log id have records
+			// less, and read 0 for them
+			int[] values = new int[RECORDS];
+			values[0] = INVALID_PAGE;
+			RID rid = firstRecord();
+			for (int i = 0; i < values.length && rid != null; i++) {
+				values[i] = Convert.getIntValue(0, getRecord(rid)
+						.getTupleByteArray());
+				rid = nextRecord(rid);
+			}
+			root = values[0];
+			keyType = values[1];
+			keyLength = values[2];
+			fashion = values[3];
+			flagBits = values[4];
+			log = values[5] == 0 ? -1 : values[5];
+			counted = false;
 		} catch (Exception e) {
 
 		}
@@ -65,22 +157,31 @@ public class BTreeHeaderPage extends HFPage {
 	// /////////////////////////////////////////////////////////////////////
 	// ////////////////////////////////////////////////////////////////////
 
+	/**
+	 * Write all the values at their places, leaving the page no records.
+	 */
+	private void layout() throws IOException {
+		Convert.setShortValue((short) 0, SLOT_CNT, data);
+		Convert.setShortValue((short) GlobalConst.MAX_SPACE, USED_PTR, data);
+		Convert.setShortValue((short) (GlobalConst.MAX_SPACE - END),
+				FREE_SPACE, data);
+		Convert.setIntValue(MAGIC, MAGIC_POS, data);
+		Convert.setIntValue(root, rootID, data);
+		Convert.setIntValue(keyType, SKType, data);
+		Convert.setIntValue(keyLength, maxKLen, data);
+		Convert.setIntValue(fashion, delFashion, data);
+		Convert.setIntValue(flagBits, flags, data);
+		Convert.setIntValue(log, logId, data);
+		fixed = true;
+		storeCounts();
+	}
+
 	private void setInfo(int pos, int nValue) {
 		try {
-			byte[] f = new byte[Integer.SIZE / 8];
-			for (int i = 0; i < qSize; i++) {
-				RID top = container.poll();
-				int val = Convert.getIntValue(0, getRecord(top)
-						.getTupleByteArray());
-				deleteRecord(top);
-				if (i == pos) {
-					Convert.setIntValue(nValue, 0, f);
-					container.offer(insertRecord(f));
-				} else {
-					Convert.setIntValue(val, 0, f);
-					container.offer(insertRecord(f));
-				}
-			}
+			if (fixed)
+				Convert.setIntValue(nValue, pos, data);
+			else
+				layout();
 		} catch (Exception e) {
 
 		}
@@ -91,77 +192,232 @@ public class BTreeHeaderPage extends HFPage {
 	// ////////////////////////////////////////////////////////////////////
 
 	public void setRootID(PageId pid) {
+		root = pid.pid;
 		setInfo(rootID, pid.pid);
 	}
 
 	public void setSearchKeyType(int value) {
+		keyType = value;
 		setInfo(SKType, value);
 	}
 
 	public void setMaxKeyLength(int value) {
+		keyLength = value;
 		setInfo(maxKLen, value);
 	}
 
 	public void setDeleteFashion(int value) {
+		fashion = value;
 		setInfo(delFashion, value);
 	}
 
+	/**
+	 * @param value
+	 *            BTreeFlags bits describing the page layout of the file
+	 */
+	public void setFlags(int value) {
+		flagBits = value;
+		setInfo(flags, value);
+	}
+
+	/**
+	 * @param value
+	 *            id of the log of a file created with BTreeFlags.LOG, which
+	 *            the log keeps too; a log is only redone into the file with
+	 *            its id
+	 */
+	public void setLogId(int value) {
+		log = value;
+		setInfo(logId, value);
+	}
+
 	// /////////////////////////////////////////////////////////////////////
 	// /////////////////////////////////////////////////////////////////////
 	// ////////////////////////////////////////////////////////////////////
 
 	public PageId getRootID() {
-		return getPage(rootID);
+		int pid = root;
+		return pid == INVALID_PAGE ? null : new PageId(pid);
 	}
-	
+
 	public PageId get_rootId() {
-		return getPage(rootID);
+		return getRootID();
+	}
+
+	/**
+	 * id of the root, without a PageId to hold it
+	 */
+	int getRootPid() {
+		return root;
 	}
 
 	public int getSearchKeyType() {
-		return getInteger(SKType);
+		return keyType;
 	}
-	
-	public short get_keyType(){
-		return (short)getSearchKeyType();
+
+	public short get_keyType() {
+		return (short) getSearchKeyType();
 	}
 
 	public int getMaxKeyLength() {
-		return getInteger(maxKLen);
+		return keyLength;
 	}
 
 	public int getDelFashion() {
-		return getInteger(delFashion);
+		return fashion;
+	}
+
+	/**
+	 * @return BTreeFlags bits of the file, 0 for files written before the
+	 *         flags existed
+	 */
+	public int getFlags() {
+		return flagBits;
+	}
+
+	/**
+	 * @return id of the log of the file, -1 if it has none
+	 */
+	public int getLogId() {
+		return log == 0 ? -1 : log;
 	}
 
 	// /////////////////////////////////////////////////////////////////////
 	// /////////////////////////////////////////////////////////////////////
 	// ////////////////////////////////////////////////////////////////////
 
-	private int getInteger(int pos) {
-		try {
-			LinkedList<RID> temp = (LinkedList<RID>) container;
-			Tuple t = getRecord(temp.get(pos));
-			int x = Convert.getIntValue(0, t.getTupleByteArray());
-			return x;
-		} catch (Exception e) {
-			return 0;
-		}
+	/**
+	 * @return levels of the tree, 1 while the root is a leaf
+	 */
+	public int getHeight() {
+		return levelCount.get();
 	}
 
-	private PageId getPage(int pos) {
-		try {
-			LinkedList<RID> temp = (LinkedList<RID>) container;
+	/**
+	 * @return entries in the leaves
+	 */
+	public int getEntryCount() {
+		return entryCount.get();
+	}
+
+	/**
+	 * @return pages of the leaf level
+	 */
+	public int getLeafCount() {
+		return leafCount.get();
+	}
+
+	/**
+	 * @return pages of the tree, leaves and index pages, the header not
+	 *         included
+	 */
+	public int getPageCount() {
+		return pageCount.get();
+	}
+
+	/**
+	 * whether the counts are known: false for a file written before the
+	 * header kept them, until they are set
+	 */
+	boolean hasCounts() {
+		return counted;
+	}
+
+	/**
+	 * Set all the counts, for a tree built or counted as a whole.
+	 */
+	void setCounts(int levels, int entries, int leaves, int pages) {
+		levelCount.set(levels);
+		entryCount.set(entries);
+		leafCount.set(leaves);
+		pageCount.set(pages);
+		counted = true;
+	}
+
+	/**
+	 * count an entry inserted (delta 1) or deleted (-1), in the histogram
+	 * too
+	 */
+	void countEntry(KeyClass key, int delta) {
+		entryCount.addAndGet(delta);
+		KeyHistogram h = histogram;
+		if (h != null)
+			h.add(key, delta);
+	}
+
+	void countEntry(int key, int delta) {
+		entryCount.addAndGet(delta);
+		KeyHistogram h = histogram;
+		if (h != null)
+			h.add(key, delta);
+	}
+
+	/**
+	 * count leaves added (or taken out, for a negative delta); they are pages
+	 * too
+	 */
+	void countLeaves(int delta) {
+		leafCount.addAndGet(delta);
+		pageCount.addAndGet(delta);
+	}
+
+	void countIndexPages(int delta) {
+		pageCount.addAndGet(delta);
+	}
+
+	/**
+	 * count a level added above the root (or taken away); the root it adds
+	 * or takes is counted apart
+	 */
+	void countLevels(int delta) {
+		levelCount.addAndGet(delta);
+	}
+
+	KeyHistogram getHistogram() {
+		return histogram;
+	}
+
+	void setHistogram(KeyHistogram histogram) {
+		this.histogram = histogram;
+	}
+
+	BTreeMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Note that a scan of the file was opened, or closed.
+	 */
+	void scanOpened() {
+		scans.incrementAndGet();
+	}
+
+	void scanClosed() {
+		scans.decrementAndGet();
+	}
 
-			PageId pid = new PageId(Convert.getIntValue(0,
-					getRecord(temp.get(pos)).getTupleByteArray()));
-			if (pid.pid == -1)
-				return null;
-			return pid;
+	/**
+	 * @return scans open on the file
+	 */
+	int openScans() {
+		return scans.get();
+	}
+
+	/**
+	 * Write the counts on the page, whose caller marks it dirty.
+	 */
+	void storeCounts() {
+		try {
+			if (!fixed) {
+				layout();
+				return;
+			}
+			Convert.setIntValue(levelCount.get(), height, data);
+			Convert.setIntValue(entryCount.get(), entries, data);
+			Convert.setIntValue(leafCount.get(), leaves, data);
+			Convert.setIntValue(pageCount.get(), pages, data);
 		} catch (Exception e) {
 
-			return null;
 		}
 	}
-
 }
@@ -0,0 +1,184 @@
+package btree;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import bufmgr.ShardedBufMgr;
+import global.SystemDefs;
+
+/**
+ * Counters of what a BTreeFile does, for watching an index under load: the
+ * operations, the splits they make, and the pins they take; and latency
+ * histograms of inserts, deletes and the start of scans. The counters are
+ * LongAdders, which threads add to without a lock, so they stay on all the
+ * time. A file has one, from BTreeFile.getMetrics, kept while it is open and
+ * not on disk.
+ *
+ * Buffer hits, misses, reads and writes are those of the whole buffer pool,
+ * which every file shares; they are only counted by a ShardedBufMgr, and
+ * read 0 with any other.
+ */
+public class BTreeMetrics {
+
+	final LongAdder inserts = new LongAdder();
+	final LongAdder deletes = new LongAdder();
+	final LongAdder leafSplits = new LongAdder();
+	final LongAdder indexSplits = new LongAdder();
+	final LongAdder rootGrowths = new LongAdder();
+	final LongAdder scans = new LongAdder();
+	final LongAdder pins = new LongAdder();
+
+	final LatencyHistogram insertLatency = new LatencyHistogram();
+	final LatencyHistogram deleteLatency = new LatencyHistogram();
+	final LatencyHistogram scanLatency = new LatencyHistogram();
+
+	BTreeMetrics() {
+	}
+
+	/**
+	 * @return entries inserted, one by one or in batches
+	 */
+	public long getInserts() {
+		return inserts.sum();
+	}
+
+	/**
+	 * @return deletes, by Delete or by scans, found or not
+	 */
+	public long getDeletes() {
+		return deletes.sum();
+	}
+
+	public long getLeafSplits() {
+		return leafSplits.sum();
+	}
+
+	public long getIndexSplits() {
+		return indexSplits.sum();
+	}
+
+	/**
+	 * @return new roots, each a level more
+	 */
+	public long getRootGrowths() {
+		return rootGrowths.sum();
+	}
+
+	/**
+	 * @return scans started
+	 */
+	public long getScans() {
+		return scans.sum();
+	}
+
+	/**
+	 * @return pages of the file pinned by its operations and scans
+	 */
+	public long getPins() {
+		return pins.sum();
+	}
+
+	public long getBufferHits() {
+		ShardedBufMgr pool = pool();
+		return pool == null ? 0 : pool.getHits();
+	}
+
+	public long getBufferMisses() {
+		ShardedBufMgr pool = pool();
+		return pool == null ? 0 : pool.getMisses();
+	}
+
+	public long getPageReads() {
+		ShardedBufMgr pool = pool();
+		return pool == null ? 0 : pool.getReads();
+	}
+
+	public long getPageWrites() {
+		ShardedBufMgr pool = pool();
+		return pool == null ? 0 : pool.getWrites();
+	}
+
+	private static ShardedBufMgr pool() {
+		if (SystemDefs.JavabaseBM instanceof ShardedBufMgr)
+			return (ShardedBufMgr) SystemDefs.JavabaseBM;
+		return null;
+	}
+
+	/**
+	 * @return latencies of insert and insertAsync, up to the change being
+	 *         made (not to it being on disk)
+	 */
+	public LatencyHistogram getInsertLatency() {
+		return insertLatency;
+	}
+
+	/**
+	 * @return latencies of Delete and deleteAsync, up to the change being
+	 *         made
+	 */
+	public LatencyHistogram getDeleteLatency() {
+		return deleteLatency;
+	}
+
+	/**
+	 * @return latencies of new_scan: finding the first leaf
+	 */
+	public LatencyHistogram getScanLatency() {
+		return scanLatency;
+	}
+
+	/**
+	 * Read every counter, and the 50th and 99th percentiles of every
+	 * latency, for polling. The values are read one after the other while
+	 * they change, so they are not exactly of one instant.
+	 *
+	 * @return the values by name, in a fixed order
+	 */
+	public Map<String, Long> snapshot() {
+		Map<String, Long> values = new LinkedHashMap<String, Long>();
+		values.put("inserts", getInserts());
+		values.put("deletes", getDeletes());
+		values.put("leafSplits", getLeafSplits());
+		values.put("indexSplits", getIndexSplits());
+		values.put("rootGrowths", getRootGrowths());
+		values.put("scans", getScans());
+		values.put("pins", getPins());
+		values.put("bufferHits", getBufferHits());
+		values.put("bufferMisses", getBufferMisses());
+		values.put("pageReads", getPageReads());
+		values.put("pageWrites", getPageWrites());
+		put(values, "insert", insertLatency);
+		put(values, "delete", deleteLatency);
+		put(values, "scan", scanLatency);
+		return values;
+	}
+
+	private static void put(Map<String, Long> values, String name,
+			LatencyHistogram latency) {
+		values.put(name + "P50Nanos", latency.getPercentile(0.5));
+		values.put(name + "P99Nanos", latency.getPercentile(0.99));
+	}
+
+	/**
+	 * Set the counters of the file back to 0; those of the buffer pool are
+	 * left as they are.
+	 */
+	public void reset() {
+		inserts.reset();
+		deletes.reset();
+		leafSplits.reset();
+		indexSplits.reset();
+		rootGrowths.reset();
+		scans.reset();
+		pins.reset();
+		insertLatency.reset();
+		deleteLatency.reset();
+		scanLatency.reset();
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+}
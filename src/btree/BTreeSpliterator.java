@@ -0,0 +1,201 @@
+package btree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import global.PageId;
+
+/**
+ * Spliterator over the entries of a key range of a BTreeFile, for
+ * BTreeFile.stream. It splits its range at the separator keys of the index
+ * pages: the highest level with separators inside the range gives them, the
+ * middle one cuts the range in two, and each half splits again at the
+ * separators on its side, then at those of the levels below. The pieces cover
+ * disjoint ranges of keys, so each reads its own leaves, with a BTFileScan of
+ * its own opened when it is first advanced.
+ *
+ * A range cut at key k ends below k: the entries with key k all go to the
+ * piece after it, however many leaves they take.
+ *
+ * A piece lets go of its scan when it reaches the end of its range; close()
+ * lets go of the scans of a stream that was not read to the end.
+ */
+class BTreeSpliterator implements Spliterator<KeyDataEntry> {
+
+	private final BTreeFile file;
+	private final BTreeHeaderPage header;
+	private final PageLatches latches;
+	private final int keyType;
+
+	/**
+	 * the range, from lo on; hi is in it only if hiIncluded. null for no
+	 * bound.
+	 */
+	private KeyClass lo;
+	private final KeyClass hi;
+	private final boolean hiIncluded;
+
+	/**
+	 * separators inside the range, in key order, to split it at; read off the
+	 * index pages when there are none left
+	 */
+	private List<KeyClass> separators;
+
+	/**
+	 * the scans still open, of this piece and of those split off it
+	 */
+	private final List<BTFileScan> scans;
+
+	private BTFileScan scan;
+	private boolean done;
+
+	/**
+	 * Spliterator over the entries from lo to hi, both included.
+	 */
+	BTreeSpliterator(BTreeFile file, BTreeHeaderPage header,
+			PageLatches latches, KeyClass lo, KeyClass hi) {
+		this.file = file;
+		this.header = header;
+		this.latches = latches;
+		keyType = header.getSearchKeyType();
+		this.lo = lo;
+		this.hi = hi;
+		hiIncluded = true;
+		scans = new ArrayList<BTFileScan>();
+	}
+
+	/**
+	 * a piece split off from, before its range
+	 */
+	private BTreeSpliterator(BTreeSpliterator from, KeyClass hi,
+			List<KeyClass> separators) {
+		file = from.file;
+		header = from.header;
+		latches = from.latches;
+		keyType = from.keyType;
+		lo = from.lo;
+		this.hi = hi;
+		hiIncluded = false;
+		this.separators = separators;
+		scans = from.scans;
+	}
+
+	public boolean tryAdvance(Consumer<? super KeyDataEntry> action) {
+		if (done)
+			return false;
+		if (scan == null) {
+			scan = file.new_scan(lo, hi);
+			if (scan == null) {
+				done = true;
+				return false;
+			}
+			synchronized (scans) {
+				scans.add(scan);
+			}
+		}
+		KeyDataEntry entry = scan.get_next();
+		if (entry == null
+				|| (!hiIncluded && hi != null && BTreeFile.compareKeys(
+						entry.key, hi) >= 0)) {
+			done = true;
+			scan.DestroyBTreeFileScan();
+			synchronized (scans) {
+				scans.remove(scan);
+			}
+			return false;
+		}
+		action.accept(entry);
+		return true;
+	}
+
+	/**
+	 * Split off the part of the range below its middle separator. A piece
+	 * that has started reading is not split.
+	 */
+	public Spliterator<KeyDataEntry> trySplit() {
+		if (scan != null || done)
+			return null;
+		try {
+			if (separators == null || separators.isEmpty())
+				separators = separators();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+		if (separators.isEmpty())
+			return null;
+		int mid = separators.size() / 2;
+		KeyClass at = separators.get(mid);
+		BTreeSpliterator before = new BTreeSpliterator(this, at,
+				new ArrayList<KeyClass>(separators.subList(0, mid)));
+		lo = at;
+		separators = new ArrayList<KeyClass>(separators.subList(mid + 1,
+				separators.size()));
+		return before;
+	}
+
+	/**
+	 * @return the entries in the range, as the histogram of the keys
+	 *         estimates them
+	 */
+	public long estimateSize() {
+		KeyHistogram histogram = header.getHistogram();
+		if (histogram == null)
+			return header.getEntryCount();
+		return Math.round(histogram.estimate(lo, hi));
+	}
+
+	public int characteristics() {
+		return ORDERED | NONNULL | CONCURRENT;
+	}
+
+	/**
+	 * Let go of the scans still open.
+	 */
+	void close() {
+		synchronized (scans) {
+			for (BTFileScan s : scans)
+				s.DestroyBTreeFileScan();
+			scans.clear();
+		}
+	}
+
+	/**
+	 * Latch coupling down from the root to the highest index page with
+	 * separators inside the range, following the range while it is under a
+	 * single child. The separators need not be up to date: they only share
+	 * out the range, and the scans find the entries.
+	 * 
+	 * @return the separators, none if the range is within one leaf
+	 */
+	private List<KeyClass> separators() throws Exception {
+		ArrayList<KeyClass> keys = new ArrayList<KeyClass>();
+		PagePrefix prefix = latches.prefix;
+		PageId parent = new PageId(header.getCurPage().pid);
+		latches.lockShared(parent);
+		PageId pid = header.getRootID();
+		BTSortedPage page = latches.pinShared(pid, keyType);
+		while (page.getType() == NodeType.INDEX) {
+			latches.unlockShared(parent);
+			parent = pid;
+			byte[] data = page.getpage();
+			int n = SlotSearch.slotCount(data);
+			int from = lo == null ? 0 : prefix.upperBound(data, n, lo);
+			int to = hi == null ? n : (hiIncluded ? prefix.upperBound(data,
+					n, hi) : prefix.lowerBound(data, n, hi));
+			for (int slot = from; slot < to; slot++)
+				keys.add(prefix.entry(data, slot, keyType, NodeType.INDEX).key);
+			if (!keys.isEmpty())
+				break;
+			pid = prefix.child(data, lo, false);
+			latches.unpin(parent, false);
+			page = latches.pinShared(pid, keyType);
+		}
+		latches.unpinShared(pid, false);
+		if (parent != pid)
+			latches.unlockShared(parent);
+		return keys;
+	}
+}
@@ -0,0 +1,266 @@
+package btree;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+import diskmgr.Page;
+import global.GlobalConst;
+import global.PageId;
+import global.SystemDefs;
+import heap.HFPage;
+
+/**
+ * The operations on the pages of a file, and for a file created with
+ * BTreeFlags.LOG, the logging of their changes to its RedoLog.
+ *
+ * The operations that change more than one page run between begin() and
+ * commit(); the changes of BTreeFile all do, so that SnapshotGate can keep
+ * them out. A page unpinned dirty is logged; between begin() and commit() the
+ * pages of the operation are kept pinned, and those latched exclusively stay
+ * latched, until the record of all of them is written at the outermost
+ * commit(). The pages stay pinned until the record is on disk, which with
+ * group commit is after commit() returns.
+ */
+class ChangeLog {
+
+	static final CompletableFuture<Void> DONE = CompletableFuture
+			.completedFuture(null);
+
+	private final PageLatches latches;
+
+	/**
+	 * log of the changes, null if they are not logged
+	 */
+	private final RedoLog log;
+
+	/**
+	 * header page of the file, whose counts a checkpoint writes back; null
+	 * for the latches of a scan
+	 */
+	private BTreeHeaderPage header;
+
+	/**
+	 * the operation each thread is in, see begin()
+	 */
+	private final ThreadLocal<Change> change = new ThreadLocal<Change>();
+
+	/**
+	 * completed once the last record each thread wrote is on disk
+	 */
+	private final ThreadLocal<CompletableFuture<Void>> durable = new ThreadLocal<CompletableFuture<Void>>();
+
+	/**
+	 * The pages changed by an operation that is not committed yet, each
+	 * pinned once more for the log, and the exclusive latches it let go of on
+	 * them, which are only let go at commit()
+	 */
+	private static class Change {
+		int depth;
+		boolean gated;
+		final ArrayList<PageId> pids = new ArrayList<PageId>();
+		final ArrayList<Page> pages = new ArrayList<Page>();
+		final ArrayList<PageId> latched = new ArrayList<PageId>();
+		final ArrayList<PageId> freed = new ArrayList<PageId>();
+
+		boolean has(PageId pid) {
+			for (PageId p : pids)
+				if (p.pid == pid.pid)
+					return true;
+			return false;
+		}
+	}
+
+	ChangeLog(PageLatches latches, RedoLog log) {
+		this.latches = latches;
+		this.log = log;
+	}
+
+	void setHeader(BTreeHeaderPage header) {
+		this.header = header;
+	}
+
+	/**
+	 * Start an operation whose changes are logged together, and that no
+	 * snapshot is taken in the middle of. Calls nest; only the outermost
+	 * commit() writes the record. To be called holding no latch.
+	 */
+	void begin() {
+		Change c = change.get();
+		if (c == null || c.depth == 0) {
+			latches.gate.enter();
+			if (c == null) {
+				c = new Change();
+				change.set(c);
+			}
+			c.gated = true;
+		}
+		c.depth++;
+	}
+
+	/**
+	 * End the operation begun last. At the outermost one, log the pages it
+	 * changed and let go of their latches; the pages are unpinned once the
+	 * record is on disk. When the log has grown past its checkpoint size, it
+	 * is then checkpointed.
+	 */
+	void commit() throws Exception {
+		Change c = change.get();
+		if (--c.depth > 0)
+			return;
+		// without a log the thread keeps it for its next operation; with one
+		// its pages are unpinned once they are written
+		if (log != null)
+			change.remove();
+		try {
+			if (log != null)
+				write(c);
+		} finally {
+			if (c.gated)
+				latches.gate.leave();
+		}
+		latches.reclaim.committed(durable());
+		// with no latch held, and not in the middle of a compaction
+		if (log != null && c.gated && log.full() && !latches.gate.excluding())
+			checkpoint();
+	}
+
+	/**
+	 * Write back the pages logged and empty the log, keeping the operations
+	 * out meanwhile; see RedoLog.checkpoint. The counts of the header are
+	 * written back with it, since the log being empty tells the next open
+	 * they need no counting again.
+	 */
+	void checkpoint() throws Exception {
+		latches.gate.exclude();
+		try {
+			if (header != null) {
+				header.storeCounts();
+				latches.writeBack(new PageId(SlotSearch.readInt(header
+						.getpage(), HFPage.CUR_PAGE)));
+			}
+			log.checkpoint(latches, SystemDefs.JavabaseDB.db_name());
+		} finally {
+			latches.gate.admit();
+		}
+	}
+
+	/**
+	 * Log the pages of a finished operation.
+	 */
+	private void write(final Change c) throws Exception {
+		CompletableFuture<Void> written = null;
+		try {
+			if (!c.pids.isEmpty())
+				written = log.write(c.pids, c.pages);
+		} finally {
+			for (PageId pid : c.latched)
+				PageLatches.unlatch(pid);
+			for (PageId pid : c.freed)
+				PageLatches.forget(pid);
+			if (written == null)
+				unpinAll(c.pids);
+		}
+		if (written != null) {
+			// done once the pages are unpinned as well
+			durable.set(written
+					.whenComplete(new BiConsumer<Void, Throwable>() {
+						public void accept(Void v, Throwable e) {
+							unpinAll(c.pids);
+						}
+					}));
+		}
+	}
+
+	private void unpinAll(ArrayList<PageId> pids) {
+		for (PageId pid : pids) {
+			try {
+				latches.unpinPage(pid, true);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return completed once the changes the thread made are on disk, or at
+	 *         once if they are not logged
+	 */
+	CompletableFuture<Void> durable() {
+		CompletableFuture<Void> last = log == null ? null : durable.get();
+		return last == null ? DONE : last;
+	}
+
+	/**
+	 * Note that the operation changed a pinned page; outside of an operation,
+	 * log the page at once. Pages the buffer manager changes on its own, as
+	 * the space map, are not unpinned here, and are noted by the caller.
+	 */
+	void changed(PageId pid) throws Exception {
+		if (log == null)
+			return;
+		Change c = change.get();
+		if (c == null) {
+			// a change of its own, which may come with latches held: it
+			// does not wait for snapshots
+			c = new Change();
+			c.depth = 1;
+			change.set(c);
+			try {
+				changed(pid);
+			} finally {
+				commit();
+			}
+			return;
+		}
+		if (c.has(pid))
+			return; // its image is taken at commit()
+		Page page = new Page(null);
+		latches.pin(pid, page);
+		c.pids.add(new PageId(pid.pid));
+		c.pages.add(page);
+	}
+
+	/**
+	 * Keep the exclusive latch on a page the operation changed until its
+	 * record is written at commit().
+	 *
+	 * @return whether the latch is kept; if not, the caller lets go of it
+	 */
+	boolean keepLatch(PageId pid) {
+		Change c = log == null ? null : change.get();
+		if (c == null || !c.has(pid))
+			return false;
+		c.latched.add(new PageId(pid.pid));
+		return true;
+	}
+
+	/**
+	 * Keep the latch of a page the operation changed and then freed until
+	 * commit(), which drops it from the latch table.
+	 *
+	 * @return whether it is kept; if not, the caller drops it
+	 */
+	boolean keepFreed(PageId pid) {
+		Change c = log == null ? null : change.get();
+		if (c == null || !c.has(pid))
+			return false;
+		c.freed.add(new PageId(pid.pid));
+		return true;
+	}
+
+	/**
+	 * Drop the images the log holds of a page freed.
+	 */
+	void forget(PageId pid) {
+		if (log != null)
+			log.forget(pid);
+	}
+
+	/**
+	 * the page of the space map with the bit of pid
+	 */
+	static PageId mapPage(PageId pid) {
+		return new PageId(1 + pid.pid / (GlobalConst.MINIBASE_PAGESIZE * 8));
+	}
+}
@@ -0,0 +1,360 @@
+package btree;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Stack;
+
+import global.Convert;
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import heap.HFPage;
+
+/**
+ * Order statistics of a BTreeFile created with BTreeFlags.COUNTED. Every
+ * index entry keeps the number of leaf entries under its child, between the
+ * key and the page id:
+ *
+ * [ key | count | child ]
+ *
+ * The child in the left link of an index page has no entry, and its count is
+ * not kept: it is the count of the page, from the entry above it (from the
+ * header for the root), less those of the entries of the page. rank, count
+ * and select descend from the root adding up the counts of the children to
+ * the left of the path, so they read one page a level.
+ *
+ * Inserts and deletes change the count of every entry on their path, so they
+ * hold the whole path latched exclusively, from the header page down, and run
+ * one at a time; lookups and scans latch as usual, and never see a path half
+ * counted. Pages are not merged (no full delete).
+ */
+class CountedTree implements GlobalConst {
+
+	/**
+	 * an index entry with the count of its child
+	 */
+	static class CountedData extends IndexData {
+
+		int count;
+
+		CountedData(PageId pid, int count) {
+			super(pid);
+			this.count = count;
+		}
+	}
+
+	private final BTreeHeaderPage header;
+	private final PageLatches latches;
+	private final int keyType;
+
+	private CountedTree(BTreeHeaderPage header, PageLatches latches) {
+		this.header = header;
+		this.latches = latches;
+		keyType = header.getSearchKeyType();
+	}
+
+	/**
+	 * @return the order statistics of the index, null if it keeps no counts
+	 */
+	static CountedTree of(BTreeHeaderPage header, PageLatches latches) {
+		int flags = header.getFlags();
+		if ((flags & BTreeFlags.COUNTED) == 0
+				|| (flags & BTreeFlags.BLINK) != 0)
+			return null;
+		return new CountedTree(header, latches);
+	}
+
+	// /////////////////////////////////////////////////////////////////////
+	// counts on the page
+	// /////////////////////////////////////////////////////////////////////
+
+	/**
+	 * count of the index entry at the given slot
+	 */
+	static int count(byte[] data, int slot) {
+		return SlotSearch.readInt(data, SlotSearch.slotOffset(data, slot)
+				+ SlotSearch.slotLength(data, slot) - 8);
+	}
+
+	/**
+	 * count of an index entry about to be posted
+	 */
+	static int count(KeyDataEntry entry) {
+		return entry.data instanceof CountedData ? ((CountedData) entry.data).count
+				: 0;
+	}
+
+	/**
+	 * @return the counts of all the entries of an index page
+	 */
+	static int sum(byte[] data) {
+		int sum = 0;
+		for (int slot = SlotSearch.slotCount(data) - 1; slot >= 0; slot--)
+			sum += count(data, slot);
+		return sum;
+	}
+
+	/**
+	 * Add delta to the count of the entry of child on an index page; nothing
+	 * to do for the child in the left link.
+	 */
+	static void add(byte[] data, PageId child, int delta) throws IOException {
+		for (int slot = SlotSearch.slotCount(data) - 1; slot >= 0; slot--) {
+			if (SlotSearch.childPid(data, slot) == child.pid) {
+				int pos = SlotSearch.slotOffset(data, slot)
+						+ SlotSearch.slotLength(data, slot) - 8;
+				Convert.setIntValue(SlotSearch.readInt(data, pos) + delta, pos,
+						data);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return an index entry keeping the count, which the KeyDataEntry
+	 *         constructor would leave behind, copying the data
+	 */
+	static KeyDataEntry entry(KeyClass key, CountedData data) {
+		KeyDataEntry entry = new KeyDataEntry(key, data.getData());
+		entry.data = data;
+		return entry;
+	}
+
+	/**
+	 * @return the record of an index entry, with its count before the page id
+	 */
+	static byte[] record(KeyDataEntry entry) throws KeyNotMatchException,
+			NodeNotMatchException, ConvertException, IOException {
+		byte[] rec = BT.getBytesFromEntry(entry);
+		byte[] counted = new byte[rec.length + 4];
+		System.arraycopy(rec, 0, counted, 0, rec.length - 4);
+		Convert.setIntValue(count(entry), rec.length - 4, counted);
+		System.arraycopy(rec, rec.length - 4, counted, rec.length, 4);
+		return counted;
+	}
+
+	// /////////////////////////////////////////////////////////////////////
+	// changes
+	// /////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Latch the path to the leaf where an insert of key goes exclusively,
+	 * the header page at the bottom, as getPathForSpecificKey does, but
+	 * keeping all of it.
+	 *
+	 * @return the page ids latched, the leaf on top; none of them is left
+	 *         pinned
+	 */
+	Stack<PageId> latchPath(KeyClass key) throws Exception {
+		Stack<PageId> path = new Stack<PageId>();
+		PageId pid = new PageId(header.getCurPage().pid);
+		latches.lockExclusive(pid);
+		path.push(pid);
+		pid = header.getRootID();
+		while (true) {
+			latches.lockExclusive(pid);
+			path.push(pid);
+			BTSortedPage node = latches.pin(pid, keyType);
+			if (node.getType() != NodeType.INDEX) {
+				latches.unpin(pid, false);
+				return path;
+			}
+			PageId next = latches.prefix.child(node.getpage(), key, false);
+			latches.unpin(pid, false);
+			pid = next;
+		}
+	}
+
+	/**
+	 * Add delta to the count of every entry on a latched path, for entries
+	 * inserted into (or deleted from) the leaf on top.
+	 */
+	void count(Stack<PageId> path, int delta) throws Exception {
+		for (int i = 1; i < path.size() - 1; i++) {
+			PageId pid = path.get(i);
+			BTSortedPage node = latches.pin(pid, keyType);
+			add(node.getpage(), path.get(i + 1), delta);
+			latches.unpin(pid, true);
+		}
+	}
+
+	/**
+	 * Delete the entry (key, rid), counting it off its path, within an
+	 * operation begun by the caller. The entry is searched for in every leaf
+	 * that may hold key, as a run of equal keys can go on over many.
+	 *
+	 * @return whether the entry was found
+	 */
+	boolean delete(KeyClass key, RID rid) throws Exception {
+		header.getMetrics().deletes.increment();
+		Stack<PageId> path = new Stack<PageId>();
+		PageId pid = new PageId(header.getCurPage().pid);
+		latches.lockExclusive(pid);
+		path.push(pid);
+		try {
+			if (!find(header.getRootID(), key, rid, path))
+				return false;
+			count(path, -1);
+			header.countEntry(key, -1);
+			return true;
+		} finally {
+			while (!path.isEmpty())
+				latches.unlockExclusive(path.pop());
+		}
+	}
+
+	/**
+	 * Look for the entry under pid, latching the pages on the way
+	 * exclusively, and delete it.
+	 *
+	 * @param path
+	 *            gets the pages from pid down to the leaf of the entry, still
+	 *            latched; left as it was if the entry is not under pid
+	 */
+	private boolean find(PageId pid, KeyClass key, RID rid, Stack<PageId> path)
+			throws Exception {
+		latches.lockExclusive(pid);
+		path.push(pid);
+		BTSortedPage page = latches.pin(pid, keyType);
+		byte[] data = page.getpage();
+		int n = SlotSearch.slotCount(data);
+		PagePrefix prefix = latches.prefix;
+		if (page.getType() != NodeType.INDEX) {
+			for (int slot = prefix.lowerBound(data, n, key); slot < n
+					&& prefix.compare(key, data,
+							SlotSearch.slotOffset(data, slot)) == 0; slot++) {
+				if (SlotSearch.ridEquals(data, slot, rid)) {
+					page.deleteSortedRecord(new RID(pid, slot));
+					latches.unpin(pid, true);
+					return true;
+				}
+			}
+			latches.unpin(pid, false);
+		} else {
+			// the children from the first occurrence of key to the last
+			ArrayList<PageId> children = new ArrayList<PageId>();
+			int last = prefix.upperBound(data, n, key) - 1;
+			for (int slot = prefix.lowerBound(data, n, key) - 1; slot <= last;
+					slot++)
+				children.add(new PageId(slot < 0 ? SlotSearch.readInt(data,
+						HFPage.PREV_PAGE) : SlotSearch.childPid(data, slot)));
+			latches.unpin(pid, false);
+			for (PageId child : children)
+				if (find(child, key, rid, path))
+					return true;
+		}
+		path.pop();
+		latches.unlockExclusive(pid);
+		return false;
+	}
+
+	// /////////////////////////////////////////////////////////////////////
+	// queries
+	// /////////////////////////////////////////////////////////////////////
+
+	/**
+	 * @param past
+	 *            whether to count the entries with key as well
+	 * @return the entries with keys below key (at most key, if past); all of
+	 *         them for a null key if past, none if not
+	 */
+	int rank(KeyClass key, boolean past) throws Exception {
+		PageId parent = new PageId(header.getCurPage().pid);
+		latches.lockShared(parent);
+		PageId pid = header.getRootID();
+		BTSortedPage page = latches.pinShared(pid, keyType);
+		// no insert or delete is under way while the header is latched
+		int total = header.getEntryCount();
+		if (key == null) {
+			latches.unpinShared(pid, false);
+			latches.unlockShared(parent);
+			return past ? total : 0;
+		}
+		PagePrefix prefix = latches.prefix;
+		int rank = 0;
+		while (page.getType() == NodeType.INDEX) {
+			latches.unlockShared(parent);
+			parent = pid;
+			byte[] data = page.getpage();
+			int n = SlotSearch.slotCount(data);
+			int slot = (past ? prefix.upperBound(data, n, key) : prefix
+					.lowerBound(data, n, key)) - 1;
+			int left = total - sum(data);
+			if (slot < 0) {
+				total = left;
+				pid = new PageId(SlotSearch.readInt(data, HFPage.PREV_PAGE));
+			} else {
+				rank += left;
+				for (int i = 0; i < slot; i++)
+					rank += count(data, i);
+				total = count(data, slot);
+				pid = new PageId(SlotSearch.childPid(data, slot));
+			}
+			latches.unpin(parent, false);
+			page = latches.pinShared(pid, keyType);
+		}
+		byte[] data = page.getpage();
+		int n = SlotSearch.slotCount(data);
+		rank += past ? prefix.upperBound(data, n, key) : prefix.lowerBound(
+				data, n, key);
+		latches.unpinShared(pid, false);
+		latches.unlockShared(parent);
+		return rank;
+	}
+
+	/**
+	 * @return up to limit entries, from the one with k entries before it in
+	 *         key order on; none if k is out of range
+	 */
+	ArrayList<KeyDataEntry> select(int k, int limit) throws Exception {
+		ArrayList<KeyDataEntry> found = new ArrayList<KeyDataEntry>();
+		PageId parent = new PageId(header.getCurPage().pid);
+		latches.lockShared(parent);
+		PageId pid = header.getRootID();
+		BTSortedPage page = latches.pinShared(pid, keyType);
+		int total = header.getEntryCount();
+		if (k < 0 || k >= total || limit <= 0) {
+			latches.unpinShared(pid, false);
+			latches.unlockShared(parent);
+			return found;
+		}
+		while (page.getType() == NodeType.INDEX) {
+			latches.unlockShared(parent);
+			parent = pid;
+			byte[] data = page.getpage();
+			int n = SlotSearch.slotCount(data);
+			int left = total - sum(data);
+			if (k < left || n == 0) {
+				total = left;
+				pid = new PageId(SlotSearch.readInt(data, HFPage.PREV_PAGE));
+			} else {
+				k -= left;
+				int slot = 0;
+				while (slot < n - 1 && k >= count(data, slot))
+					k -= count(data, slot++);
+				total = count(data, slot);
+				pid = new PageId(SlotSearch.childPid(data, slot));
+			}
+			latches.unpin(parent, false);
+			page = latches.pinShared(pid, keyType);
+		}
+		latches.unlockShared(parent);
+		// on along the leaf level, one leaf latched at a time
+		while (true) {
+			byte[] data = page.getpage();
+			int n = SlotSearch.slotCount(data);
+			for (; k < n && found.size() < limit; k++)
+				found.add(latches.prefix.entry(data, k, keyType, NodeType.LEAF));
+			k = Math.max(0, k - n);
+			PageId next = new PageId(page.getNextPage().pid);
+			if (found.size() == limit || next.pid == INVALID_PAGE) {
+				latches.unpinShared(pid, false);
+				return found;
+			}
+			latches.lockShared(next);
+			latches.unpinShared(pid, false);
+			pid = next;
+			page = latches.pin(pid, keyType);
+		}
+	}
+}
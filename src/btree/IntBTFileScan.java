@@ -0,0 +1,281 @@
+package btree;
+
+import diskmgr.Page;
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import heap.HFPage;
+
+/**
+ * Scan of an IntBTreeFile. next() moves the scan to the next entry, whose key
+ * and rid are then read with key() and rid(): the scan makes no objects per
+ * entry, it reads them off the leaf into fields of its own.
+ *
+ * Like BTFileScan, it keeps no page pinned between calls, and finds its place
+ * again from the last entry it returned.
+ */
+public class IntBTFileScan extends IndexFileScan implements GlobalConst {
+
+	private final int loKey;
+	private final int hiKey;
+
+	private BTreeHeaderPage header;
+	private PageLatches latches;
+	private int keyType;
+	private int keySize;
+
+	/**
+	 * the scan of a B-link tree, which this one only unwraps
+	 */
+	private BTFileScan scan;
+
+	/**
+	 * fetches the leaves ahead of the scan in the background
+	 */
+	private LeafPrefetcher readAhead;
+
+	/**
+	 * the leaf pinned by next(), and the one it moves to; the buffer manager
+	 * gives the page its data when it is pinned
+	 */
+	private final Page page = new Page(null);
+	private final PageId pid = new PageId();
+	private final PageId next = new PageId();
+
+	/**
+	 * Where the scan is: the leaf of the last entry returned, its key and
+	 * rid, and how many entries with the same key came before it on its leaf
+	 */
+	private int leaf;
+	private boolean started;
+	private int key;
+	private final RID rid = new RID(new PageId(), 0);
+	private int run;
+
+	private boolean done;
+
+	/**
+	 * whether the scan counts as open, see BTreeHeaderPage.scanOpened
+	 */
+	private boolean open;
+
+	/**
+	 * SnapshotGate.generation when the scan found its first leaf
+	 */
+	private int generation;
+
+	/**
+	 * Scan of the keys from lo_key to hi_key, both included; lo_key must not
+	 * be above hi_key.
+	 */
+	IntBTFileScan(int lo_key, int hi_key, BTreeHeaderPage header,
+			PageLatches latches) throws Exception {
+		loKey = lo_key;
+		hiKey = hi_key;
+		this.header = header;
+		this.latches = latches;
+		keyType = header.getSearchKeyType();
+		keySize = header.getMaxKeyLength();
+		generation = latches.gate.generation();
+		leaf = latches.latchLeaf(header, loKey, true, false, page).pid;
+		pid.pid = leaf;
+		header.scanOpened();
+		open = true;
+		latches.unpinShared(pid, false);
+		readAhead = new LeafPrefetcher(latches, keyType, new IntegerKey(hiKey));
+	}
+
+	/**
+	 * Scan of a B-link tree over the same keys.
+	 */
+	IntBTFileScan(int lo_key, int hi_key, BTFileScan scan) {
+		loKey = lo_key;
+		hiKey = hi_key;
+		this.scan = scan;
+	}
+
+	/**
+	 * Move to the next entry.
+	 *
+	 * @return false if done
+	 */
+	public boolean next() {
+		try {
+			if (done)
+				return false;
+			if (scan != null) {
+				KeyDataEntry entry = scan.get_next();
+				if (entry == null) {
+					done = true;
+					return false;
+				}
+				key = ((IntegerKey) entry.key).getKey().intValue();
+				rid.copyRid(((LeafData) entry.data).getData());
+				return true;
+			}
+			int from = started ? leaf : INVALID_PAGE;
+			if (!step() || key > hiKey) {
+				done = true;
+				DestroyBTreeFileScan();
+				return false;
+			}
+			if (leaf != from)
+				readAhead.reached(new PageId(leaf));
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			// the scan ends here, as BTFileScan.get_next does
+			done = true;
+			DestroyBTreeFileScan();
+			return false;
+		}
+	}
+
+	/**
+	 * key of the entry next() moved to
+	 */
+	public int key() {
+		return key;
+	}
+
+	/**
+	 * rid of the entry next() moved to. The scan keeps the RID and sets it
+	 * again on every call to next(), so it must not be changed.
+	 */
+	public RID rid() {
+		return rid;
+	}
+
+	/**
+	 * Find the entry after the last one returned, following the next links
+	 * as ScanPosition.next does.
+	 *
+	 * @return false at the end of the leaf level
+	 */
+	private boolean step() throws Exception {
+		pid.pid = leaf;
+		latches.pinShared(pid, page);
+		boolean home = true;
+		while (true) {
+			byte[] data = page.getpage();
+			int n = SlotSearch.slotCount(data);
+			int slot = position(data, n, home);
+			if (slot < n) {
+				key = SlotSearch.readInt(data,
+						SlotSearch.slotOffset(data, slot));
+				SlotSearch.readRid(data, slot, rid);
+				run = slot - SlotSearch.lowerBound(data, slot, key);
+				leaf = pid.pid;
+				started = true;
+				latches.unpinShared(pid, false);
+				return true;
+			}
+			next.pid = SlotSearch.readInt(data, HFPage.NEXT_PAGE);
+			if (next.pid == INVALID_PAGE) {
+				latches.unpinShared(pid, false);
+				return false;
+			}
+			latches.lockShared(next);
+			latches.unpinShared(pid, false);
+			pid.pid = next.pid;
+			latches.pin(pid, page);
+			home = false;
+		}
+	}
+
+	/**
+	 * slot of the entry after the last one returned, see ScanPosition.position
+	 */
+	private int position(byte[] data, int n, boolean home) {
+		if (!started)
+			return SlotSearch.lowerBound(data, n, loKey);
+		int slot = SlotSearch.lowerBound(data, n, key);
+		int end = slot;
+		while (end < n
+				&& SlotSearch.compare(key, data,
+						SlotSearch.slotOffset(data, end)) == 0) {
+			if (SlotSearch.ridEquals(data, end, rid))
+				return end + 1;
+			end++;
+		}
+		if (!home)
+			return slot;
+		return Math.min(slot + run, end);
+	}
+
+	/**
+	 * Iterate once (during a scan), making the entry.
+	 *
+	 * Returns: null if done; otherwise next KeyDataEntry
+	 */
+	@Override
+	public KeyDataEntry get_next() {
+		if (!next())
+			return null;
+		return new KeyDataEntry(new IntegerKey(key), new RID(new PageId(
+				rid.pageNo.pid), rid.slotNo));
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 */
+	@Override
+	public void delete_current() {
+		try {
+			if (scan != null) {
+				scan.delete_current();
+				return;
+			}
+			if (!started)
+				return;
+			IntegerKey data = new IntegerKey(key);
+			RID at = new RID(new PageId(rid.pageNo.pid), rid.slotNo);
+			// a counted file counts the entry off its path, and the header
+			CountedTree counted = CountedTree.of(header, latches);
+			boolean found;
+			latches.changes.begin();
+			try {
+				if (counted != null)
+					found = counted.delete(data, at);
+				else if (latches.gate.generation() == generation)
+					found = latches.deleteFrom(new PageId(leaf), keyType, data,
+							at);
+				else
+					// the file was compacted, and the leaf is an old copy
+					found = latches.deleteFrom(latches.latchLeaf(header,
+							keyType, data, true, true), keyType, data, at);
+			} finally {
+				latches.changes.commit();
+			}
+			if (found && counted == null)
+				header.countEntry(key, -1);
+		} catch (Exception e) {
+
+		}
+	}
+
+	/**
+	 * max size of the key
+	 */
+	@Override
+	public int keysize() {
+		if (scan != null)
+			return scan.keysize();
+		return keySize;
+	}
+
+	/**
+	 * destructor. unpin some pages if they are not unpinned already. and do
+	 * some clearing work.
+	 */
+	public void DestroyBTreeFileScan() {
+		if (scan != null) {
+			scan.DestroyBTreeFileScan();
+			return;
+		}
+		readAhead.close();
+		if (open)
+			header.scanClosed();
+		open = false;
+	}
+}
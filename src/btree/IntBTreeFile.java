@@ -0,0 +1,269 @@
+package btree;
+
+import java.io.IOException;
+
+import diskmgr.Page;
+import global.AttrType;
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import heap.HFPage;
+
+/**
+ * A B+ tree index over integer keys that takes and gives back its keys as
+ * plain ints. The file is an ordinary BTreeFile with AttrType.attrInteger
+ * keys, and can be opened as either; but inserts, lookups and scans made
+ * through here compare the key with the ints stored on the pages, and make no
+ * IntegerKey or KeyDataEntry objects on the way.
+ *
+ * Splits, deletes and everything else go through the BTreeFile, as do all the
+ * calls on a file created with BTreeFlags.BLINK.
+ */
+public class IntBTreeFile extends IndexFile implements GlobalConst {
+
+	private BTreeFile file;
+	private BTreeHeaderPage header;
+	private PageLatches latches;
+	private int keyType;
+
+	/**
+	 * whether the file is a B-link tree, whose pages are searched by
+	 * BLinkTree
+	 */
+	private boolean blink;
+
+	/**
+	 * whether the index entries count the entries under them, which every
+	 * insert changes on its path
+	 */
+	private boolean counted;
+
+	/**
+	 * The page and page ids an insert or lookup of a thread pins and latches
+	 * its pages with, so that it allocates nothing when the leaf does not
+	 * split.
+	 */
+	private static class Probe {
+		final Page page = new Page(null);
+		final PageId pid = new PageId();
+		final PageId parent = new PageId();
+	}
+
+	private final ThreadLocal<Probe> probes = new ThreadLocal<Probe>() {
+		protected Probe initialValue() {
+			return new Probe();
+		}
+	};
+
+	/**
+	 * If index file exists, open it; else create it with the given page
+	 * layout.
+	 *
+	 * @param fName
+	 * @param delete_fashion
+	 * @param flags
+	 *            BTreeFlags bits; ignored when the file exists
+	 */
+	public IntBTreeFile(String fName, int delete_fashion, int flags) {
+		this(new BTreeFile(fName, AttrType.attrInteger, 4, delete_fashion,
+				flags));
+	}
+
+	/**
+	 * IntBTreeFile class an index file with given filename should already
+	 * exist; this opens it.
+	 *
+	 * @param filename
+	 */
+	public IntBTreeFile(String filename) {
+		this(new BTreeFile(filename));
+	}
+
+	private IntBTreeFile(BTreeFile file) {
+		this.file = file;
+		try {
+			header = file.getHeaderPage();
+			keyType = header.getSearchKeyType();
+			if (keyType != AttrType.attrInteger)
+				throw new KeyNotMatchException(null,
+						"not an index on integer keys");
+			blink = (header.getFlags() & BTreeFlags.BLINK) != 0;
+			counted = (header.getFlags() & BTreeFlags.COUNTED) != 0 && !blink;
+			latches = file.getLatches();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Insert record with the given key and rid.
+	 */
+	public void insert(KeyClass key, RID rid) {
+		file.insert(key, rid);
+	}
+
+	/**
+	 * Insert record with the given key and rid. The record is written
+	 * straight into the leaf; only when the leaf is full does the insert go
+	 * through the BTreeFile, to split it.
+	 */
+	public void insert(int key, RID rid) {
+		try {
+			if (!blink && !counted) {
+				long start = System.nanoTime();
+				Probe probe = probes.get();
+				boolean inserted;
+				latches.changes.begin();
+				try {
+					latches.latchLeaf(header, key, false, true, probe.page,
+							probe.pid, probe.parent);
+					inserted = SlotSearch.insertSorted(probe.page.getpage(),
+							key, rid) >= 0;
+					latches.unpinExclusive(probe.pid, inserted);
+				} finally {
+					latches.changes.commit();
+				}
+				if (inserted) {
+					header.countEntry(key, 1);
+					BTreeMetrics metrics = header.getMetrics();
+					metrics.inserts.increment();
+					metrics.insertLatency.since(start);
+					file.refreshHistogram();
+					latches.changes.durable().get();
+					return;
+				}
+			}
+			file.insert(new IntegerKey(key), rid);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Find the first entry with the given key.
+	 *
+	 * @param rid
+	 *            set to the rid of the entry, if there is one
+	 * @return whether there is one
+	 */
+	public boolean lookup(int key, RID rid) {
+		try {
+			if (blink) {
+				RID found = file.lookupBatch(new KeyClass[] { new IntegerKey(
+						key) })[0];
+				if (found != null)
+					rid.copyRid(found);
+				return found != null;
+			}
+			// the buffer manager gives the page its data when it is pinned
+			Probe probe = probes.get();
+			Page page = probe.page;
+			PageId pid = probe.pid;
+			latches.latchLeaf(header, key, true, false, page, pid,
+					probe.parent);
+			while (true) {
+				byte[] data = page.getpage();
+				int n = SlotSearch.slotCount(data);
+				int slot = SlotSearch.lowerBound(data, n, key);
+				if (slot < n) {
+					boolean found = SlotSearch.compare(key, data,
+							SlotSearch.slotOffset(data, slot)) == 0;
+					if (found)
+						SlotSearch.readRid(data, slot, rid);
+					latches.unpinShared(pid, false);
+					return found;
+				}
+				// a key equal to the separator of the next leaf may start
+				// there
+				PageId next = probe.parent;
+				next.pid = SlotSearch.readInt(data, HFPage.NEXT_PAGE);
+				if (next.pid == INVALID_PAGE) {
+					latches.unpinShared(pid, false);
+					return false;
+				}
+				latches.lockShared(next);
+				latches.unpinShared(pid, false);
+				pid.pid = next.pid;
+				latches.pin(pid, page);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * delete leaf entry given its pair. `rid' is IN the data entry; it is not
+	 * the id of the data entry)
+	 */
+	public boolean Delete(KeyClass data, RID rid) {
+		return file.Delete(data, rid);
+	}
+
+	/**
+	 * Delete the entry with the given key and rid.
+	 */
+	public boolean Delete(int key, RID rid) {
+		return file.Delete(new IntegerKey(key), rid);
+	}
+
+	/**
+	 * create a scan over the keys from lo_key to hi_key, both included; the
+	 * whole index for Integer.MIN_VALUE and Integer.MAX_VALUE. The keys are
+	 * swapped if lo_key is above hi_key.
+	 */
+	public IntBTFileScan new_scan(int lo_key, int hi_key) {
+		try {
+			if (lo_key > hi_key) {
+				// Assumption
+				int key = lo_key;
+				lo_key = hi_key;
+				hi_key = key;
+			}
+			if (blink)
+				return new IntBTFileScan(lo_key, hi_key, file.new_scan(
+						new IntegerKey(lo_key), new IntegerKey(hi_key)));
+			long start = System.nanoTime();
+			header.getMetrics().scans.increment();
+			IntBTFileScan scan = new IntBTFileScan(lo_key, hi_key, header,
+					latches);
+			header.getMetrics().scanLatency.since(start);
+			return scan;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * the file underneath, for the operations that take key objects
+	 */
+	public BTreeFile getBTreeFile() {
+		return file;
+	}
+
+	/**
+	 * @return the counters and latencies of the file
+	 */
+	public BTreeMetrics getMetrics() {
+		return file.getMetrics();
+	}
+
+	public BTreeHeaderPage getHeaderPage() throws IOException {
+		return header;
+	}
+
+	/**
+	 * Close the B+ tree file. Unpin header page.
+	 */
+	public void close() {
+		file.close();
+	}
+
+	/**
+	 * Destroy entire B+ tree file.
+	 */
+	public void destroyFile() {
+		file.destroyFile();
+	}
+}
@@ -4,4 +4,11 @@ public class IteratorException extends Exception {
 
 	private static final long serialVersionUID = 1L;
 
+	public IteratorException() {
+	}
+
+	public IteratorException(Exception e, String name) {
+		super(name, e);
+	}
+
 }
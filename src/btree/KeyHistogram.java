@@ -0,0 +1,310 @@
+package btree;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Equi-depth histogram of the keys of a BTreeFile, for estimating how many
+ * entries fall in a key range without reading the leaves. The key space is
+ * cut into buckets that held about as many entries each when the histogram
+ * was made; a range is estimated from the buckets it covers, and from the
+ * part it covers of the buckets at its ends, taking the keys of a bucket as
+ * spread evenly between its bounds. String keys are read as numbers for
+ * that, in the digits of the alphabet the bounds are written in.
+ *
+ * The bounds are fixed once made. Every insert and delete adds to the count
+ * of its bucket, so the counts stay right as the tree changes, but the
+ * buckets drift away from equal depth; once the changes are as many as the
+ * entries it was made for, the histogram is stale, and BTreeFile makes it
+ * again.
+ */
+class KeyHistogram {
+
+	/**
+	 * most buckets in a histogram
+	 */
+	static final int BUCKETS = 64;
+
+	/**
+	 * fewest changes that make a histogram stale
+	 */
+	static final int MIN_CHANGES = 1024;
+
+	/**
+	 * most leaves read to make a histogram from a tree
+	 */
+	static final int SAMPLE = 256;
+
+	/**
+	 * bounds of the buckets, one more than there are buckets: bucket i has
+	 * the keys from bound i on, below bound i + 1; the last bucket takes the
+	 * last bound as well. Only one of the two is used, for the key type.
+	 */
+	private final int[] ints;
+	private final String[] strings;
+
+	/**
+	 * lowest and highest char of the string bounds, past the chars the two
+	 * bounds of each bucket share: the digits a string key is read in
+	 */
+	private final char low, high;
+
+	private final AtomicIntegerArray counts;
+
+	/**
+	 * entries when the histogram was made, and inserts and deletes since
+	 */
+	private final int entries;
+	private final AtomicInteger changes = new AtomicInteger();
+
+	private KeyHistogram(int[] ints, String[] strings, int[] counts) {
+		this.ints = ints;
+		this.strings = strings;
+		this.counts = new AtomicIntegerArray(counts);
+		char l = Character.MAX_VALUE, h = 0;
+		for (int b = 0; strings != null && b + 1 < strings.length; b++) {
+			int from = shared(strings[b], strings[b + 1]);
+			for (int j = b; j <= b + 1; j++) {
+				for (int i = from; i < strings[j].length(); i++) {
+					l = (char) Math.min(l, strings[j].charAt(i));
+					h = (char) Math.max(h, strings[j].charAt(i));
+				}
+			}
+		}
+		low = l <= h ? l : 0;
+		high = h;
+		int n = 0;
+		for (int c : counts)
+			n += c;
+		entries = n;
+	}
+
+	/**
+	 * Makes a histogram out of runs of entries that follow each other in key
+	 * order, such as the leaves: each run is given by its first key, and how
+	 * many entries it has, which may be an estimate.
+	 */
+	static class Builder {
+
+		private final ArrayList<KeyClass> lows = new ArrayList<KeyClass>();
+		private final ArrayList<Double> sizes = new ArrayList<Double>();
+		private double total;
+
+		/**
+		 * @param low
+		 *            first key of the run, null if not known; a run with no
+		 *            first key is taken as part of the run before
+		 */
+		void add(KeyClass low, double size) {
+			lows.add(low);
+			sizes.add(size);
+			total += size;
+		}
+
+		/**
+		 * @param min
+		 *            lowest key of the entries, or null if not known
+		 * @param max
+		 *            highest key, or null if not known
+		 * @param scale
+		 *            the sizes are scaled to add up to this many entries
+		 * @return null if no run had a key to go by
+		 */
+		KeyHistogram build(KeyClass min, KeyClass max, int scale) {
+			ArrayList<KeyClass> bounds = new ArrayList<KeyClass>();
+			ArrayList<Double> depth = new ArrayList<Double>();
+			double target = total / BUCKETS;
+			// the entries before the first key go to the first bucket
+			double before = 0;
+			for (int i = 0; i < lows.size(); i++) {
+				KeyClass low = i == 0 && min != null ? min : lows.get(i);
+				int n = depth.size();
+				if (low == null) {
+					if (n == 0)
+						before += sizes.get(i);
+					else
+						depth.set(n - 1, depth.get(n - 1) + sizes.get(i));
+					continue;
+				}
+				if (n == 0
+						|| (n < BUCKETS && depth.get(n - 1) >= target && BTreeFile
+								.compareKeys(low, bounds.get(n - 1)) > 0)) {
+					bounds.add(low);
+					depth.add(n == 0 ? before : 0.0);
+					n++;
+				}
+				depth.set(n - 1, depth.get(n - 1) + sizes.get(i));
+			}
+			if (bounds.isEmpty())
+				return null;
+			KeyClass last = bounds.get(bounds.size() - 1);
+			bounds.add(max != null && BTreeFile.compareKeys(max, last) > 0 ? max
+					: last);
+
+			int[] counts = new int[depth.size()];
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = total == 0 ? 0 : (int) Math.round(depth.get(i)
+						* scale / total);
+			if (bounds.get(0) instanceof IntegerKey) {
+				int[] ints = new int[bounds.size()];
+				for (int i = 0; i < ints.length; i++)
+					ints[i] = ((IntegerKey) bounds.get(i)).getKey().intValue();
+				return new KeyHistogram(ints, null, counts);
+			}
+			String[] strings = new String[bounds.size()];
+			for (int i = 0; i < strings.length; i++)
+				strings[i] = ((StringKey) bounds.get(i)).getKey();
+			return new KeyHistogram(null, strings, counts);
+		}
+	}
+
+	// /////////////////////////////////////////////////////////////////////
+	// counting
+	// /////////////////////////////////////////////////////////////////////
+
+	/**
+	 * count an entry inserted (delta 1) or deleted (-1)
+	 */
+	void add(KeyClass key, int delta) {
+		count(bucket(key), delta);
+	}
+
+	void add(int key, int delta) {
+		count(bucket(key), delta);
+	}
+
+	private void count(int bucket, int delta) {
+		counts.addAndGet(bucket, delta);
+		changes.incrementAndGet();
+	}
+
+	/**
+	 * whether there were as many inserts and deletes since the histogram was
+	 * made as it had entries, and it is to be made again
+	 */
+	boolean stale() {
+		return changes.get() >= Math.max(MIN_CHANGES, entries);
+	}
+
+	/**
+	 * bucket of the key; keys out of the bounds go to the first or the last
+	 */
+	private int bucket(KeyClass key) {
+		if (ints != null)
+			return bucket(((IntegerKey) key).getKey().intValue());
+		return bucket(((StringKey) key).getKey());
+	}
+
+	private int bucket(int key) {
+		int lo = 0, hi = ints.length - 2;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (ints[mid] <= key)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	private int bucket(String key) {
+		int lo = 0, hi = strings.length - 2;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (strings[mid].compareTo(key) <= 0)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	// /////////////////////////////////////////////////////////////////////
+	// estimating
+	// /////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Estimate the entries with keys from lo to hi, both included; null for
+	 * no bound, as for BTreeFile.new_scan.
+	 */
+	double estimate(KeyClass lo, KeyClass hi) {
+		int first = lo == null ? 0 : bucket(lo);
+		int last = hi == null ? counts.length() - 1 : bucket(hi);
+		double sum = 0;
+		for (int b = first; b <= last; b++) {
+			int count = Math.max(0, counts.get(b));
+			if (count == 0)
+				continue;
+			// only the buckets at the ends are covered in part
+			double from = b == first && lo != null ? position(b, lo, count,
+					false) : 0;
+			double to = b == last && hi != null ? position(b, hi, count, true)
+					: 1;
+			if (to > from)
+				sum += count * (to - from);
+		}
+		return sum;
+	}
+
+	/**
+	 * Where key falls in bucket b, as the fraction of the bucket below it
+	 * (or up to it and itself, if past), the keys of the bucket taken as
+	 * spread evenly. A string is placed by its chars after those the two
+	 * bounds share, read as digits from low to high, and is taken to stand
+	 * for one of the bucket's count entries.
+	 */
+	private double position(int b, KeyClass key, int count, boolean past) {
+		boolean last = b == counts.length() - 1;
+		if (ints != null) {
+			long x = ((IntegerKey) key).getKey().intValue();
+			long from = ints[b];
+			long to = ints[b + 1] + (last ? 1L : 0L);
+			if (past)
+				x++;
+			return clamp((double) (x - from) / Math.max(1, to - from));
+		}
+		String s = ((StringKey) key).getKey();
+		String from = strings[b], to = strings[b + 1];
+		if (s.compareTo(from) < 0)
+			return 0;
+		int c = s.compareTo(to);
+		if (c > 0 || (c == 0 && (past || !last)))
+			return 1;
+		int shared = shared(from, to);
+		double a = value(from, shared), z = value(to, shared);
+		double at = z > a ? (value(s, shared) - a) / (z - a) : 0;
+		if (past)
+			at += 1.0 / count;
+		return clamp(at);
+	}
+
+	/**
+	 * the chars of s from the given one on, as a fraction in the digits from
+	 * low to high; a char out of them counts as the nearest
+	 */
+	private double value(String s, int from) {
+		int radix = high - low + 1;
+		double v = 0, unit = 1;
+		for (int i = from; i < s.length() && unit > 1e-12; i++) {
+			unit /= radix;
+			int digit = s.charAt(i) - low;
+			v += (digit < 0 ? 0 : Math.min(digit, radix - 1)) * unit;
+		}
+		return v;
+	}
+
+	/**
+	 * how many chars a and b start with in common
+	 */
+	private static int shared(String a, String b) {
+		int n = 0;
+		while (n < a.length() && n < b.length() && a.charAt(n) == b.charAt(n))
+			n++;
+		return n;
+	}
+
+	private static double clamp(double f) {
+		return f < 0 ? 0 : (f > 1 ? 1 : f);
+	}
+}
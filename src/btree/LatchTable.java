@@ -0,0 +1,123 @@
+package btree;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The latches of the pages, by page id. The ids are spread over stripes, each
+ * a small chained hash table guarded by its own monitor, so that threads
+ * latching different pages seldom wait for each other, and that finding the
+ * latch of a page boxes no page id. An entry is only made the first time a
+ * page is latched, and goes when the page is freed.
+ */
+final class LatchTable {
+
+	private static final int STRIPES = 64;
+
+	private static class Entry {
+		final int pid;
+		final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+		Entry next;
+
+		Entry(int pid, Entry next) {
+			this.pid = pid;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * the chains of one stripe and how many entries they hold; guarded by
+	 * the stripe
+	 */
+	private static class Stripe {
+		Entry[] chains = new Entry[16];
+		int size;
+	}
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	LatchTable() {
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe();
+	}
+
+	private static int hash(int pid) {
+		// spread consecutive page ids over the stripes
+		int h = pid * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return the latch of the page, made if it has none yet
+	 */
+	ReentrantReadWriteLock get(int pid) {
+		int h = hash(pid);
+		Stripe s = stripes[h & (STRIPES - 1)];
+		synchronized (s) {
+			int i = (h >>> 6) & (s.chains.length - 1);
+			for (Entry e = s.chains[i]; e != null; e = e.next)
+				if (e.pid == pid)
+					return e.latch;
+			if (s.size >= s.chains.length) {
+				grow(s);
+				i = (h >>> 6) & (s.chains.length - 1);
+			}
+			Entry e = new Entry(pid, s.chains[i]);
+			s.chains[i] = e;
+			s.size++;
+			return e.latch;
+		}
+	}
+
+	/**
+	 * Drop the latch of the page, unless a thread holds it or waits for it.
+	 */
+	void remove(int pid) {
+		int h = hash(pid);
+		Stripe s = stripes[h & (STRIPES - 1)];
+		synchronized (s) {
+			int i = (h >>> 6) & (s.chains.length - 1);
+			Entry prev = null;
+			for (Entry e = s.chains[i]; e != null; prev = e, e = e.next) {
+				if (e.pid != pid)
+					continue;
+				ReentrantReadWriteLock latch = e.latch;
+				if (latch.isWriteLocked() || latch.getReadLockCount() > 0
+						|| latch.hasQueuedThreads())
+					return;
+				if (prev == null)
+					s.chains[i] = e.next;
+				else
+					prev.next = e.next;
+				s.size--;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of pages with a latch
+	 */
+	int size() {
+		int n = 0;
+		for (Stripe s : stripes) {
+			synchronized (s) {
+				n += s.size;
+			}
+		}
+		return n;
+	}
+
+	private static void grow(Stripe s) {
+		Entry[] chains = new Entry[s.chains.length * 2];
+		for (Entry e : s.chains) {
+			while (e != null) {
+				Entry next = e.next;
+				int i = (hash(e.pid) >>> 6) & (chains.length - 1);
+				e.next = chains[i];
+				chains[i] = e;
+				e = next;
+			}
+		}
+		s.chains = chains;
+	}
+}
@@ -0,0 +1,117 @@
+package btree;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies of one kind of operation, in buckets of powers of two
+ * nanoseconds: bucket b holds the latencies from 2^(b-1) up to 2^b - 1, and
+ * bucket 0 those of 0. Every bucket is a LongAdder, so threads recording at
+ * the same time seldom touch the same cell, and no lock is taken.
+ *
+ * The counts are read while they change, so a reading taken under load may be
+ * a few records off; a percentile is the upper bound of its bucket, so
+ * within a factor of two.
+ */
+public class LatencyHistogram {
+
+	/**
+	 * buckets, the last taking every latency from 2^62 ns on
+	 */
+	static final int BUCKETS = 64;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder total = new LongAdder();
+
+	LatencyHistogram() {
+		for (int b = 0; b < BUCKETS; b++)
+			buckets[b] = new LongAdder();
+	}
+
+	/**
+	 * record the latency of an operation started at start, a System.nanoTime
+	 */
+	void since(long start) {
+		record(System.nanoTime() - start);
+	}
+
+	void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos))]
+				.increment();
+		total.add(nanos);
+	}
+
+	/**
+	 * @return operations recorded
+	 */
+	public long getCount() {
+		long n = 0;
+		for (LongAdder b : buckets)
+			n += b.sum();
+		return n;
+	}
+
+	/**
+	 * @return mean latency in nanoseconds, 0 if none was recorded
+	 */
+	public double getMean() {
+		long n = getCount();
+		return n == 0 ? 0 : (double) total.sum() / n;
+	}
+
+	/**
+	 * @param q
+	 *            in [0, 1], 0.99 for the 99th percentile
+	 * @return nanoseconds that a fraction q of the latencies recorded are
+	 *         below, rounded up to the end of its bucket; 0 if none was
+	 *         recorded
+	 */
+	public long getPercentile(double q) {
+		long[] counts = getCounts();
+		long n = 0;
+		for (long c : counts)
+			n += c;
+		if (n == 0)
+			return 0;
+		long rank = (long) Math.ceil(q * n);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += counts[b];
+			if (seen >= rank && seen > 0)
+				return upperBound(b);
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	/**
+	 * @return count of every bucket
+	 */
+	public long[] getCounts() {
+		long[] counts = new long[BUCKETS];
+		for (int b = 0; b < BUCKETS; b++)
+			counts[b] = buckets[b].sum();
+		return counts;
+	}
+
+	/**
+	 * @return highest latency of bucket b, in nanoseconds
+	 */
+	public static long upperBound(int b) {
+		return b == BUCKETS - 1 ? Long.MAX_VALUE : (1L << b) - 1;
+	}
+
+	void reset() {
+		for (LongAdder b : buckets)
+			b.reset();
+		total.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "n=" + getCount() + " mean=" + Math.round(getMean())
+				+ "ns p50=" + getPercentile(0.5) + "ns p99="
+				+ getPercentile(0.99) + "ns p999=" + getPercentile(0.999)
+				+ "ns";
+	}
+}
@@ -0,0 +1,175 @@
+package btree;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import global.GlobalConst;
+import global.PageId;
+
+/**
+ * Read-ahead for a range scan. While the scan works through a leaf, a
+ * background thread follows the next links ahead of it and brings the next
+ * leaves into the buffer pool (pinning and unpinning them), so the scan finds
+ * them resident instead of waiting for one read per leaf.
+ *
+ * The window (how many leaves to keep fetched ahead) starts small and doubles
+ * every time the scan catches up with the leaves fetched for it, so a fast
+ * scan gets a deep read-ahead and a slow one keeps few pages ahead of it. The
+ * window never takes more than a quarter of the unpinned frames, so the pages
+ * fetched ahead are not evicted before the scan gets to them.
+ *
+ * For a descending scan it follows the prev links instead.
+ */
+class LeafPrefetcher implements GlobalConst {
+
+	private static final int FIRST_WINDOW = 2;
+	private static final int MAX_WINDOW = 64;
+
+	private static final ExecutorService executor = Executors
+			.newFixedThreadPool(2, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "btree-read-ahead");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final PageLatches latches;
+	private final int keyType;
+	private final KeyClass bound;
+	private final boolean descending;
+
+	private int window = FIRST_WINDOW;
+
+	/**
+	 * leaves fetched ahead that the scan has not reached yet, in chain order,
+	 * and the last leaf fetched; guarded by this
+	 */
+	private final LinkedHashSet<Integer> ahead = new LinkedHashSet<Integer>();
+	private int frontier = INVALID_PAGE;
+	private boolean running;
+	private boolean finished;
+
+	/**
+	 * @param hiKey
+	 *            high key of the scan, null for none; no leaf past it is
+	 *            fetched
+	 */
+	LeafPrefetcher(PageLatches latches, int keyType, KeyClass hiKey) {
+		this(latches, keyType, hiKey, false);
+	}
+
+	/**
+	 * @param bound
+	 *            key the scan ends at, null for none: its high key, or its low
+	 *            key if it is descending; no leaf past it is fetched
+	 */
+	LeafPrefetcher(PageLatches latches, int keyType, KeyClass bound,
+			boolean descending) {
+		this.latches = latches;
+		this.keyType = keyType;
+		this.bound = bound;
+		this.descending = descending;
+	}
+
+	/**
+	 * The scan has moved to leaf: drop it (and any leaf before it) from the
+	 * leaves ahead, and fetch more if fewer than half the window are left.
+	 */
+	synchronized void reached(PageId leaf) {
+		if (finished)
+			return;
+		if (ahead.contains(leaf.pid)) {
+			// the read-ahead was in time; drop the leaves up to this one
+			Iterator<Integer> it = ahead.iterator();
+			while (it.next().intValue() != leaf.pid)
+				it.remove();
+			it.remove();
+			// the scan used up the window, so make it deeper
+			if (ahead.isEmpty())
+				window = Math.min(window * 2, MAX_WINDOW);
+		} else if (!running) {
+			// the scan is off the fetched leaves (or has just started)
+			ahead.clear();
+			frontier = leaf.pid;
+		}
+		int limit = Math.max(1, latches.unpinnedBuffers() / 4);
+		int want = Math.min(window, limit) - ahead.size();
+		if (!running && frontier != INVALID_PAGE && want > 0
+				&& ahead.size() < window / 2 + 1) {
+			running = true;
+			final int from = frontier;
+			final int count = want;
+			executor.execute(new Runnable() {
+				public void run() {
+					fetch(from, count);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stop reading ahead; the scan is over.
+	 */
+	synchronized void close() {
+		finished = true;
+		ahead.clear();
+	}
+
+	private synchronized boolean fetched(int pid, boolean last) {
+		if (finished)
+			return false;
+		ahead.add(pid);
+		frontier = pid;
+		if (last)
+			frontier = INVALID_PAGE;
+		return true;
+	}
+
+	/**
+	 * Bring in up to count leaves after leaf from, following the next links
+	 * (or before it, following the prev links).
+	 */
+	private void fetch(int from, int count) {
+		try {
+			BTSortedPage page = latches.pinShared(new PageId(from), keyType);
+			PageId next = link(page);
+			latches.unpinShared(new PageId(from), false);
+			for (int i = 0; i < count && next.pid != INVALID_PAGE; i++) {
+				PageId pid = next;
+				page = latches.pinShared(pid, keyType);
+				next = link(page);
+				byte[] data = page.getpage();
+				int n = SlotSearch.slotCount(data);
+				boolean past = bound != null
+						&& n > 0
+						&& (descending ? latches.prefix.compare(bound, data,
+								SlotSearch.slotOffset(data, n - 1)) > 0
+								: latches.prefix.compare(bound, data,
+										SlotSearch.slotOffset(data, 0)) < 0);
+				latches.unpinShared(pid, false);
+				if (!fetched(pid.pid, past || next.pid == INVALID_PAGE)
+						|| past)
+					break;
+			}
+		} catch (Exception e) {
+			// read-ahead is only a hint; the scan reads the page itself
+		} finally {
+			synchronized (this) {
+				running = false;
+			}
+		}
+	}
+
+	/**
+	 * the leaf the scan goes to after page
+	 */
+	private PageId link(BTSortedPage page) throws IOException {
+		return new PageId(descending ? page.getPrevPage().pid : page
+				.getNextPage().pid);
+	}
+}
@@ -0,0 +1,109 @@
+package btree;
+
+import java.util.Arrays;
+
+/**
+ * Key of the entry a BTCursor is on, which the cursor sets again for every
+ * entry instead of making key objects: an int for an integer key, or the
+ * chars of a string key, in a buffer that only grows when a longer key comes
+ * along. It is a CharSequence over the chars of a string key, so the key can
+ * be compared or appended to a StringBuilder without making a String.
+ */
+public class MutableKey implements CharSequence {
+
+	private boolean string;
+	private int value;
+	private char[] chars = new char[16];
+	private int length;
+
+	/**
+	 * whether the key is a string key, rather than an integer one
+	 */
+	public boolean isString() {
+		return string;
+	}
+
+	/**
+	 * the integer key
+	 */
+	public int intValue() {
+		return value;
+	}
+
+	/**
+	 * chars of a string key; 0 for an integer key
+	 */
+	public int length() {
+		return length;
+	}
+
+	public char charAt(int index) {
+		if (index < 0 || index >= length)
+			throw new IndexOutOfBoundsException("index " + index);
+		return chars[index];
+	}
+
+	public CharSequence subSequence(int start, int end) {
+		return toString().substring(start, end);
+	}
+
+	/**
+	 * @return the key as a KeyClass, made anew
+	 */
+	public KeyClass toKey() {
+		if (string)
+			return new StringKey(toString());
+		return new IntegerKey(value);
+	}
+
+	@Override
+	public String toString() {
+		return string ? new String(chars, 0, length) : Integer.toString(value);
+	}
+
+	void setInt(int value) {
+		string = false;
+		this.value = value;
+		length = 0;
+	}
+
+	/**
+	 * make the key an empty string key, for chars to be appended
+	 */
+	void clearString() {
+		string = true;
+		length = 0;
+	}
+
+	void append(char c) {
+		if (length == chars.length)
+			chars = Arrays.copyOf(chars, length * 2);
+		chars[length++] = c;
+	}
+
+	/**
+	 * make the key that of a KeyClass
+	 */
+	void set(KeyClass key) {
+		if (key instanceof IntegerKey) {
+			setInt(((IntegerKey) key).getKey().intValue());
+			return;
+		}
+		String s = ((StringKey) key).getKey();
+		clearString();
+		for (int i = 0; i < s.length(); i++)
+			append(s.charAt(i));
+	}
+
+	/**
+	 * make the key a copy of key
+	 */
+	void set(MutableKey key) {
+		string = key.string;
+		value = key.value;
+		if (chars.length < key.length)
+			chars = new char[key.chars.length];
+		System.arraycopy(key.chars, 0, chars, 0, key.length);
+		length = key.length;
+	}
+}
@@ -0,0 +1,561 @@
+package btree;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import bufmgr.BufMgr;
+import bufmgr.ShardedBufMgr;
+import diskmgr.Page;
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import global.SystemDefs;
+import heap.HFPage;
+
+/**
+ * Read/write latches on pages, taken next to the pins of the buffer manager.
+ * A shared latch lets a thread read a pinned page, an exclusive one lets it
+ * change it. In a BTreeFile latches are taken top-down (the header page, whose
+ * root pointer is the parent of the root, then index pages, then leaves) and
+ * left to right along a level, which keeps the traversals free of deadlocks;
+ * BLinkTree has its own order.
+ *
+ * Page ids are unique within the database, so all the indexes share one latch
+ * table; the latch of a page is dropped from it when the page is freed. Every
+ * call into the buffer manager goes through this class; unless it is a
+ * ShardedBufMgr, which is thread safe, the call is made while holding the
+ * buffer manager's monitor.
+ *
+ * The keys of the pages are read through PagePrefix, which knows the page
+ * format of the index. The operations on the file and their log are kept by
+ * ChangeLog, which holds on to the exclusive latches of the pages it logs
+ * until commit; snapshots by SnapshotGate, which copies a page as it is
+ * latched exclusively; freeing and allocating pages by PageReclaim; and the
+ * place of a scan by ScanPosition.
+ */
+class PageLatches {
+
+	private static final LatchTable latches = new LatchTable();
+
+	private final BufMgr bufMgr;
+
+	/**
+	 * whether calls into the buffer manager have to be serialized
+	 */
+	private final boolean serial;
+
+	/**
+	 * format of the pages
+	 */
+	final PagePrefix prefix;
+
+	/**
+	 * counters of the file, which the pins and deletes go to; null if they
+	 * are not counted
+	 */
+	private BTreeMetrics metrics;
+
+	/**
+	 * the operations on the file and their log
+	 */
+	final ChangeLog changes;
+
+	/**
+	 * the snapshots of the file
+	 */
+	final SnapshotGate gate;
+
+	/**
+	 * the pages of the file to allocate and free
+	 */
+	final PageReclaim reclaim;
+
+	PageLatches(BufMgr bufMgr) {
+		this(bufMgr, PagePrefix.NONE);
+	}
+
+	PageLatches(BufMgr bufMgr, PagePrefix prefix) {
+		this(bufMgr, prefix, null);
+	}
+
+	PageLatches(BufMgr bufMgr, PagePrefix prefix, RedoLog log) {
+		this.bufMgr = bufMgr;
+		this.prefix = prefix;
+		serial = !(bufMgr instanceof ShardedBufMgr);
+		changes = new ChangeLog(this, log);
+		gate = new SnapshotGate(this);
+		reclaim = new PageReclaim(this);
+	}
+
+	BufMgr getBufMgr() {
+		return bufMgr;
+	}
+
+	void setMetrics(BTreeMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Give the header page of the file to the checkpoints of its log and to
+	 * reclaim(), which waits for its open scans.
+	 */
+	void setHeader(BTreeHeaderPage header) {
+		changes.setHeader(header);
+		reclaim.setHeader(header);
+	}
+
+	private void countPin() {
+		if (metrics != null)
+			metrics.pins.increment();
+	}
+
+	private static ReentrantReadWriteLock latch(PageId pid) {
+		return latches.get(pid.pid);
+	}
+
+	void lockShared(PageId pid) {
+		latch(pid).readLock().lock();
+	}
+
+	void unlockShared(PageId pid) {
+		latch(pid).readLock().unlock();
+	}
+
+	void lockExclusive(PageId pid) throws Exception {
+		latch(pid).writeLock().lock();
+		try {
+			gate.keep(pid);
+		} catch (Exception e) {
+			latch(pid).writeLock().unlock();
+			throw e;
+		}
+	}
+
+	void unlockExclusive(PageId pid) {
+		if (!changes.keepLatch(pid))
+			latch(pid).writeLock().unlock();
+	}
+
+	/**
+	 * Let go of an exclusive latch kept by ChangeLog until commit.
+	 */
+	static void unlatch(PageId pid) {
+		latch(pid).writeLock().unlock();
+	}
+
+	/**
+	 * Drop the latch of a page freed from the table.
+	 */
+	static void forget(PageId pid) {
+		latches.remove(pid.pid);
+	}
+
+	// /////////////////////////////////////////////////////////////////////
+	// buffer access
+	// /////////////////////////////////////////////////////////////////////
+
+	BTSortedPage pin(PageId pid, int keyType) throws ConstructPageException {
+		countPin();
+		if (!serial)
+			return new BTSortedPage(pid, keyType);
+		synchronized (bufMgr) {
+			return new BTSortedPage(pid, keyType);
+		}
+	}
+
+	void pin(PageId pid, Page page) throws Exception {
+		countPin();
+		if (!serial) {
+			bufMgr.pinPage(pid, page, false);
+			return;
+		}
+		synchronized (bufMgr) {
+			bufMgr.pinPage(pid, page, false);
+		}
+	}
+
+	void unpin(PageId pid, boolean dirty) throws Exception {
+		if (dirty)
+			changes.changed(pid);
+		unpinPage(pid, dirty);
+	}
+
+	void unpinPage(PageId pid, boolean dirty) throws Exception {
+		if (!serial) {
+			bufMgr.unpinPage(pid, dirty);
+			return;
+		}
+		synchronized (bufMgr) {
+			bufMgr.unpinPage(pid, dirty);
+		}
+	}
+
+	/**
+	 * @return a copy of the bytes of a page
+	 */
+	byte[] copy(PageId pid) throws Exception {
+		Page page = new Page(null);
+		pin(pid, page);
+		byte[] image = page.getpage().clone();
+		unpinPage(pid, false);
+		return image;
+	}
+
+	/**
+	 * Write a page as it is in the pool to the database, leaving it in the
+	 * pool as it was. Unlike BufMgr.flushPage this may be done to a page that
+	 * is pinned, as the header of every file open is.
+	 */
+	void writeBack(PageId pid) throws Exception {
+		Page page = new Page(null);
+		pin(pid, page);
+		try {
+			if (!serial) {
+				synchronized (SystemDefs.JavabaseDB) {
+					SystemDefs.JavabaseDB.write_page(pid, page);
+				}
+			} else {
+				synchronized (bufMgr) {
+					SystemDefs.JavabaseDB.write_page(pid, page);
+				}
+			}
+		} finally {
+			unpinPage(pid, false);
+		}
+	}
+
+	void freePage(PageId pid) throws Exception {
+		if (!serial) {
+			bufMgr.freePage(pid);
+			return;
+		}
+		synchronized (bufMgr) {
+			bufMgr.freePage(pid);
+		}
+	}
+
+	/**
+	 * Allocate n pages one after the other in the file.
+	 *
+	 * @return the first of them, pinned, or null if the buffer pool has no
+	 *         room for it
+	 */
+	PageId newPages(int n) throws Exception {
+		Page first = new Page();
+		if (!serial)
+			return bufMgr.newPage(first, n);
+		synchronized (bufMgr) {
+			return bufMgr.newPage(first, n);
+		}
+	}
+
+	/**
+	 * Pin a page allocated before without reading it, for the caller to
+	 * format.
+	 */
+	void pinEmpty(PageId pid, Page page) throws Exception {
+		countPin();
+		if (!serial) {
+			bufMgr.pinPage(pid, page, true);
+			return;
+		}
+		synchronized (bufMgr) {
+			bufMgr.pinPage(pid, page, true);
+		}
+	}
+
+	int unpinnedBuffers() {
+		if (!serial)
+			return bufMgr.getNumUnpinnedBuffers();
+		synchronized (bufMgr) {
+			return bufMgr.getNumUnpinnedBuffers();
+		}
+	}
+
+	BTLeafPage newLeafPage(int keyType) throws Exception {
+		BTLeafPage page;
+		if (!serial) {
+			page = new BTLeafPage(keyType);
+		} else {
+			synchronized (bufMgr) {
+				page = new BTLeafPage(keyType);
+			}
+		}
+		changes.changed(ChangeLog.mapPage(page.getCurPage()));
+		prefix.format(page);
+		return page;
+	}
+
+	BTIndexPage newIndexPage(int keyType) throws Exception {
+		BTIndexPage page;
+		if (!serial) {
+			page = new BTIndexPage(keyType);
+		} else {
+			synchronized (bufMgr) {
+				page = new BTIndexPage(keyType);
+			}
+		}
+		changes.changed(ChangeLog.mapPage(page.getCurPage()));
+		prefix.format(page);
+		return page;
+	}
+
+
+	// /////////////////////////////////////////////////////////////////////
+	// latch and pin together
+	// /////////////////////////////////////////////////////////////////////
+
+	BTSortedPage pinShared(PageId pid, int keyType) throws Exception {
+		lockShared(pid);
+		try {
+			return pin(pid, keyType);
+		} catch (Exception e) {
+			unlockShared(pid);
+			throw e;
+		}
+	}
+
+	void pinShared(PageId pid, Page page) throws Exception {
+		lockShared(pid);
+		try {
+			pin(pid, page);
+		} catch (Exception e) {
+			unlockShared(pid);
+			throw e;
+		}
+	}
+
+	BTSortedPage pinExclusive(PageId pid, int keyType) throws Exception {
+		lockExclusive(pid);
+		try {
+			return pin(pid, keyType);
+		} catch (Exception e) {
+			unlockExclusive(pid);
+			throw e;
+		}
+	}
+
+	void pinExclusive(PageId pid, Page page) throws Exception {
+		lockExclusive(pid);
+		try {
+			pin(pid, page);
+		} catch (Exception e) {
+			unlockExclusive(pid);
+			throw e;
+		}
+	}
+
+	void unpinShared(PageId pid, boolean dirty) throws Exception {
+		try {
+			unpin(pid, dirty);
+		} finally {
+			unlockShared(pid);
+		}
+	}
+
+	void unpinExclusive(PageId pid, boolean dirty) throws Exception {
+		try {
+			unpin(pid, dirty);
+		} finally {
+			unlockExclusive(pid);
+		}
+	}
+
+	/**
+	 * Latch coupling from the root down to the leaf that covers key: the
+	 * latch on a page is only let go once its child is latched. Inner pages
+	 * (and the header page, for the root pointer) are latched shared; the leaf
+	 * is latched shared or exclusive. The leaf is still covered by its parent
+	 * when its latch is upgraded, and no split can get in between, since
+	 * splitting a leaf takes its parent exclusively.
+	 *
+	 * @param lower
+	 *            follow the first occurrence of key (as getLowerPageNoByKey)
+	 *            rather than the last
+	 * @return the leaf, pinned and latched
+	 */
+	BTSortedPage latchLeaf(BTreeHeaderPage header, int keyType, KeyClass key,
+			boolean lower, boolean exclusive) throws Exception {
+		return latchLeaf(header, keyType, key, lower, exclusive, null);
+	}
+
+	/**
+	 * Like latchLeaf above, also finding where the range of the leaf ends.
+	 *
+	 * @param fence
+	 *            fence[0] is set to the lowest separator above the leaf, null
+	 *            if the leaf is the last one. The keys that belong to the leaf
+	 *            are those below it; searching for the first occurrence, the
+	 *            fence itself as well.
+	 */
+	BTSortedPage latchLeaf(BTreeHeaderPage header, int keyType, KeyClass key,
+			boolean lower, boolean exclusive, KeyClass[] fence)
+			throws Exception {
+		if (fence != null)
+			fence[0] = null;
+		PageId parent = new PageId(header.getCurPage().pid);
+		lockShared(parent);
+		PageId pid = header.getRootID();
+		BTSortedPage page = pinShared(pid, keyType);
+		while (page.getType() == NodeType.INDEX) {
+			unlockShared(parent);
+			parent = pid;
+			byte[] data = page.getpage();
+			pid = prefix.child(data, key, lower);
+			if (fence != null) {
+				// separators get lower on the way down
+				int n = SlotSearch.slotCount(data);
+				int slot = lower ? prefix.lowerBound(data, n, key) : prefix
+						.upperBound(data, n, key);
+				if (slot < n)
+					fence[0] = prefix.entry(data, slot, keyType,
+							NodeType.INDEX).key;
+			}
+			unpin(parent, false);
+			page = pinShared(pid, keyType);
+		}
+		if (exclusive) {
+			unpinShared(pid, false);
+			page = pinExclusive(pid, keyType);
+		}
+		unlockShared(parent);
+		return page;
+	}
+
+	/**
+	 * latchLeaf for an index with integer keys, the key given as an int: the
+	 * keys of the index pages are compared as they are stored, and the pages
+	 * are pinned into the given page, so the descent makes neither key
+	 * objects nor page buffers. Plain pages only.
+	 * 
+	 * @param page
+	 *            set to the leaf, pinned and latched
+	 * @return the id of the leaf
+	 */
+	PageId latchLeaf(BTreeHeaderPage header, int key, boolean lower,
+			boolean exclusive, Page page) throws Exception {
+		PageId pid = new PageId();
+		latchLeaf(header, key, lower, exclusive, page, pid, new PageId());
+		return pid;
+	}
+
+	/**
+	 * Like latchLeaf above, with the page ids kept in the given holders.
+	 * 
+	 * @param pid
+	 *            set to the id of the leaf
+	 * @param parent
+	 *            holds the id of the page above on the way down
+	 */
+	void latchLeaf(BTreeHeaderPage header, int key, boolean lower,
+			boolean exclusive, Page page, PageId pid, PageId parent)
+			throws Exception {
+		parent.pid = SlotSearch.readInt(header.getpage(), HFPage.CUR_PAGE);
+		lockShared(parent);
+		pid.pid = header.getRootPid();
+		pinShared(pid, page);
+		byte[] data = page.getpage();
+		while (SlotSearch.readShort(data, HFPage.TYPE) == NodeType.INDEX) {
+			unlockShared(parent);
+			parent.pid = pid.pid;
+			int n = SlotSearch.slotCount(data);
+			int slot = (lower ? SlotSearch.lowerBound(data, n, key)
+					: SlotSearch.upperBound(data, n, key)) - 1;
+			pid.pid = slot < 0 ? SlotSearch.readInt(data, HFPage.PREV_PAGE)
+					: SlotSearch.childPid(data, slot);
+			unpin(parent, false);
+			pinShared(pid, page);
+			data = page.getpage();
+		}
+		if (exclusive) {
+			unpinShared(pid, false);
+			pinExclusive(pid, page);
+		}
+		unlockShared(parent);
+	}
+
+	/**
+	 * Latch coupling down to the leaf where a descending scan from key
+	 * starts: the leaf of the last occurrence of key, as latchLeaf finds it
+	 * with lower false, or the last leaf for a null key.
+	 *
+	 * @return the leaf, pinned and latched shared
+	 */
+	BTSortedPage latchLastLeaf(BTreeHeaderPage header, int keyType,
+			KeyClass key) throws Exception {
+		if (key != null)
+			return latchLeaf(header, keyType, key, false, false);
+		PageId parent = new PageId(header.getCurPage().pid);
+		lockShared(parent);
+		PageId pid = header.getRootID();
+		BTSortedPage page = pinShared(pid, keyType);
+		while (page.getType() == NodeType.INDEX) {
+			unlockShared(parent);
+			parent = pid;
+			pid = new PageId(SlotSearch.lastChild(page.getpage()));
+			unpin(parent, false);
+			page = pinShared(pid, keyType);
+		}
+		unlockShared(parent);
+		return page;
+	}
+
+	/**
+	 * Delete the entry (key, rid) from leaf or, if a split moved it, from a
+	 * leaf to the right of it.
+	 */
+	boolean deleteFrom(PageId leaf, int keyType, KeyClass key, RID rid)
+			throws Exception {
+		return deleteFrom(pinExclusive(new PageId(leaf.pid), keyType),
+				keyType, key, rid);
+	}
+
+	/**
+	 * Like deleteFrom above, starting from a leaf that is pinned and
+	 * exclusively latched.
+	 */
+	boolean deleteFrom(BTSortedPage page, int keyType, KeyClass key, RID rid)
+			throws Exception {
+		return deleteFrom(page, keyType, key, rid, null);
+	}
+
+	/**
+	 * Like deleteFrom above.
+	 *
+	 * @param underfull
+	 *            if not null, underfull[0] is set to the leaf the entry was
+	 *            deleted from if that left it less than half full
+	 */
+	boolean deleteFrom(BTSortedPage page, int keyType, KeyClass key, RID rid,
+			PageId[] underfull) throws Exception {
+		if (metrics != null)
+			metrics.deletes.increment();
+		PageId pid = new PageId(page.getCurPage().pid);
+		while (true) {
+			byte[] data = page.getpage();
+			int n = SlotSearch.slotCount(data);
+			for (int slot = prefix.lowerBound(data, n, key); slot < n
+					&& prefix.compare(key, data,
+							SlotSearch.slotOffset(data, slot)) == 0; slot++) {
+				if (SlotSearch.ridEquals(data, slot, rid)) {
+					page.deleteSortedRecord(new RID(pid, slot));
+					if (underfull != null && prefix.underfull(page))
+						underfull[0] = pid;
+					unpinExclusive(pid, true);
+					return true;
+				}
+			}
+			PageId next = new PageId(page.getNextPage().pid);
+			// keys past the end of this leaf can only be further right
+			if (next.pid == GlobalConst.INVALID_PAGE
+					|| (n > 0 && prefix.compare(key, data,
+							SlotSearch.slotOffset(data, n - 1)) < 0)) {
+				unpinExclusive(pid, false);
+				return false;
+			}
+			lockExclusive(next);
+			unpinExclusive(pid, false);
+			pid = next;
+			page = pin(pid, keyType);
+		}
+	}
+}
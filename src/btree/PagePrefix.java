@@ -0,0 +1,576 @@
+package btree;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import global.AttrType;
+import global.Convert;
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import heap.HFPage;
+
+/**
+ * Prefix compression of string keys. Every page of an index made with
+ * BTreeFlags.PREFIX keeps the prefix that all its keys share once, at the end
+ * of the page, and its records hold only the rest of their keys:
+ *
+ * [ header | slots | free space | records | prefix | prefix length ]
+ *
+ * The prefix is in modified UTF-8 (as written by DataOutputStream.writeUTF,
+ * without the length in front); its length in bytes closes the page. As the
+ * keys of a page all start with the prefix, the records sort in the same
+ * order as the full keys: a key is searched for by matching it against the
+ * prefix once, then comparing the rest of it with the stored suffixes.
+ *
+ * An empty page takes the whole of its first key as its prefix. A key that
+ * does not start with the prefix cuts it down to the part they share, and the
+ * records are written again with their longer suffixes; that only happens for
+ * a key below the first or above the last key of the page, since any key
+ * between two others shares their common prefix. A split gives each half the
+ * prefix of its own first and last key.
+ *
+ * A BTreeFile reads and changes the keys of its pages through here. For an
+ * index without the flag (or with integer keys, or in B-link mode, which keeps
+ * its own trailer at the end of the page) the pages are plain, and the
+ * methods are those of SlotSearch.
+ *
+ * The records of the index pages of an index made with BTreeFlags.COUNTED
+ * hold the count of their child as well, see CountedTree; entries read here
+ * carry it in a CountedTree.CountedData, and the entries written keep it.
+ */
+final class PagePrefix implements GlobalConst {
+
+	static final PagePrefix NONE = new PagePrefix(false, false);
+
+	private static final PagePrefix PREFIX = new PagePrefix(true, false);
+
+	private static final PagePrefix COUNTED = new PagePrefix(false, true);
+
+	private static final PagePrefix PREFIX_COUNTED = new PagePrefix(true,
+			true);
+
+	/**
+	 * match results of a key that does not start with the prefix of a page:
+	 * it sorts before, or after, every key of the page
+	 */
+	private static final int BELOW = -1;
+	private static final int ABOVE = -2;
+
+	/**
+	 * whether the pages keep a prefix
+	 */
+	private final boolean on;
+
+	/**
+	 * whether the index entries keep the counts of their children
+	 */
+	private final boolean counted;
+
+	private PagePrefix(boolean on, boolean counted) {
+		this.on = on;
+		this.counted = counted;
+	}
+
+	/**
+	 * @return the page format of the index with the given header
+	 */
+	static PagePrefix of(BTreeHeaderPage header) {
+		int flags = header.getFlags();
+		if ((flags & BTreeFlags.BLINK) != 0)
+			return NONE;
+		boolean counted = (flags & BTreeFlags.COUNTED) != 0;
+		if ((flags & BTreeFlags.PREFIX) == 0
+				|| header.getSearchKeyType() != AttrType.attrString)
+			return counted ? COUNTED : NONE;
+		return counted ? PREFIX_COUNTED : PREFIX;
+	}
+
+	// /////////////////////////////////////////////////////////////////////
+	// the prefix
+	// /////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Make a new page ready for records; on a prefix page, give it an empty
+	 * prefix.
+	 */
+	void format(HFPage page) throws IOException {
+		if (on)
+			format(page.getpage(), "");
+	}
+
+	/**
+	 * Empty the page and give it the prefix. Links and type are left alone.
+	 */
+	private static void format(byte[] data, String prefix) throws IOException {
+		int length = SlotSearch.utfLength(prefix, 0, prefix.length());
+		int start = MAX_SPACE - 2 - length;
+		byte[] utf = new byte[length + 2];
+		Convert.setStrValue(prefix, 0, utf);
+		System.arraycopy(utf, 2, data, start, length);
+		Convert.setShortValue((short) length, MAX_SPACE - 2, data);
+		Convert.setShortValue((short) 0, HFPage.SLOT_CNT, data);
+		Convert.setShortValue((short) start, HFPage.USED_PTR, data);
+		Convert.setShortValue((short) (start - HFPage.DPFIXED),
+				HFPage.FREE_SPACE, data);
+	}
+
+	/**
+	 * @return the prefix of a page, "" on a plain page
+	 */
+	String prefix(byte[] data) {
+		if (!on)
+			return "";
+		int end = MAX_SPACE - 2;
+		StringBuilder prefix = new StringBuilder();
+		for (int p = end - SlotSearch.readShort(data, end); p < end;) {
+			int c = SlotSearch.readChar(data, p);
+			prefix.append((char) c);
+			p += c >>> 16;
+		}
+		return prefix.toString();
+	}
+
+	/**
+	 * Match key against the prefix of a page.
+	 *
+	 * @return the number of chars of key the prefix takes, if key starts with
+	 *         it; otherwise BELOW or ABOVE
+	 */
+	private static int match(CharSequence key, byte[] data) {
+		int end = MAX_SPACE - 2;
+		int i = 0;
+		for (int p = end - SlotSearch.readShort(data, end); p < end; i++) {
+			int c = SlotSearch.readChar(data, p);
+			if (i == key.length())
+				return BELOW;
+			if (key.charAt(i) != (char) c)
+				return key.charAt(i) < (char) c ? BELOW : ABOVE;
+			p += c >>> 16;
+		}
+		return i;
+	}
+
+	private static String string(KeyClass key) throws KeyNotMatchException {
+		if (!(key instanceof StringKey))
+			throw new KeyNotMatchException(null, "key types do not match");
+		return ((StringKey) key).getKey();
+	}
+
+	private static String common(String a, String b) {
+		int i = 0;
+		while (i < a.length() && i < b.length() && a.charAt(i) == b.charAt(i))
+			i++;
+		return a.substring(0, i);
+	}
+
+	// /////////////////////////////////////////////////////////////////////
+	// search
+	// /////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Compare a key with the key of the record at the given offset, with the
+	 * same sign as BT.keyCompare(key, stored key).
+	 */
+	int compare(KeyClass key, byte[] data, int pos)
+			throws KeyNotMatchException {
+		if (!on)
+			return SlotSearch.compare(key, data, pos);
+		String k = string(key);
+		int from = match(k, data);
+		if (from < 0)
+			return from == BELOW ? -1 : 1;
+		return SlotSearch.compare(k, from, data, pos);
+	}
+
+	/**
+	 * @return the first slot among the first n whose key is >= key, or n
+	 */
+	int lowerBound(byte[] data, int n, KeyClass key)
+			throws KeyNotMatchException {
+		if (!on)
+			return SlotSearch.lowerBound(data, n, key);
+		return bound(data, n, string(key), false);
+	}
+
+	/**
+	 * @return the first slot among the first n whose key is > key, or n
+	 */
+	int upperBound(byte[] data, int n, KeyClass key)
+			throws KeyNotMatchException {
+		if (!on)
+			return SlotSearch.upperBound(data, n, key);
+		return bound(data, n, string(key), true);
+	}
+
+	private int bound(byte[] data, int n, CharSequence key, boolean upper) {
+		int from = on ? match(key, data) : 0;
+		if (from == BELOW)
+			return 0;
+		if (from == ABOVE)
+			return n;
+		int lo = 0, hi = n;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = SlotSearch.compare(key, from, data,
+					SlotSearch.slotOffset(data, mid));
+			if (c > 0 || (upper && c == 0))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * compare for the key of a BTCursor, as read off a page by key()
+	 */
+	int compare(MutableKey key, byte[] data, int pos) {
+		if (!key.isString())
+			return SlotSearch.compare(key.intValue(), data, pos);
+		int from = on ? match(key, data) : 0;
+		if (from < 0)
+			return from == BELOW ? -1 : 1;
+		return SlotSearch.compare(key, from, data, pos);
+	}
+
+	/**
+	 * lowerBound for the key of a BTCursor
+	 */
+	int lowerBound(byte[] data, int n, MutableKey key) {
+		if (!key.isString())
+			return SlotSearch.lowerBound(data, n, key.intValue());
+		return bound(data, n, key, false);
+	}
+
+	/**
+	 * Child of an index page to follow for key: that of the last entry whose
+	 * key is at most key (below key if lower), or the left link; the left link
+	 * for a null key.
+	 */
+	PageId child(byte[] data, KeyClass key, boolean lower)
+			throws KeyNotMatchException {
+		int slot = -1;
+		if (key != null) {
+			int n = SlotSearch.slotCount(data);
+			slot = (lower ? lowerBound(data, n, key) : upperBound(data, n,
+					key)) - 1;
+		}
+		if (slot < 0)
+			return new PageId(SlotSearch.readInt(data, HFPage.PREV_PAGE));
+		return new PageId(SlotSearch.childPid(data, slot));
+	}
+
+	/**
+	 * @return the entry at the given slot, with its full key
+	 */
+	KeyDataEntry entry(byte[] data, int slot, int keyType, short nodeType)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException {
+		KeyDataEntry entry = BT.getEntryFromBytes(data,
+				SlotSearch.slotOffset(data, slot),
+				SlotSearch.slotLength(data, slot), keyType, nodeType);
+		if (on)
+			entry.key = new StringKey(prefix(data)
+					+ ((StringKey) entry.key).getKey());
+		if (counted && nodeType == NodeType.INDEX)
+			entry.data = new CountedTree.CountedData(
+					((IndexData) entry.data).getData(), CountedTree.count(data,
+							slot));
+		return entry;
+	}
+
+	/**
+	 * Set key to the full key of the entry at the given slot, as entry() reads
+	 * it, decoding the chars of a string key into it one at a time.
+	 */
+	void key(byte[] data, int slot, int keyType, MutableKey key) {
+		int pos = SlotSearch.slotOffset(data, slot);
+		if (keyType == AttrType.attrInteger) {
+			key.setInt(SlotSearch.readInt(data, pos));
+			return;
+		}
+		key.clearString();
+		if (on) {
+			int end = MAX_SPACE - 2;
+			for (int p = end - SlotSearch.readShort(data, end); p < end;) {
+				int c = SlotSearch.readChar(data, p);
+				key.append((char) c);
+				p += c >>> 16;
+			}
+		}
+		int end = pos + 2 + (SlotSearch.readShort(data, pos) & 0xffff);
+		for (int p = pos + 2; p < end;) {
+			int c = SlotSearch.readChar(data, p);
+			key.append((char) c);
+			p += c >>> 16;
+		}
+	}
+
+	/**
+	 * @return the record of an entry, with the count of its child on a
+	 *         counted index page
+	 */
+	private byte[] bytes(KeyDataEntry entry) throws KeyNotMatchException,
+			NodeNotMatchException, ConvertException, IOException {
+		if (counted && entry.data instanceof IndexData)
+			return CountedTree.record(entry);
+		return BT.getBytesFromEntry(entry);
+	}
+
+	/**
+	 * @return the entry with another key, and the same data: the KeyDataEntry
+	 *         constructor would copy it, leaving its count behind
+	 */
+	private static KeyDataEntry rekey(KeyClass key, KeyDataEntry entry) {
+		KeyDataEntry rekeyed = new KeyDataEntry(key, entry.data);
+		rekeyed.data = entry.data;
+		return rekeyed;
+	}
+
+	// /////////////////////////////////////////////////////////////////////
+	// changes
+	// /////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Insert an entry into a sorted page, after any entry with an equal key.
+	 *
+	 * @return the slot of the entry, or -1 if the page is full
+	 */
+	int insert(HFPage page, KeyDataEntry entry) throws IOException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException {
+		if (!on)
+			return SlotSearch.insertSorted(page, bytes(entry), entry.key);
+		byte[] data = page.getpage();
+		String key = string(entry.key);
+		String prefix = prefix(data);
+		if (SlotSearch.slotCount(data) == 0) {
+			prefix = key;
+			format(data, prefix);
+		} else if (!key.startsWith(prefix)) {
+			prefix = common(prefix, key);
+			if (!cut(page, prefix))
+				return -1;
+		}
+		KeyClass rest = new StringKey(key.substring(prefix.length()));
+		return SlotSearch.insertSorted(page,
+				bytes(rekey(rest, entry)), rest);
+	}
+
+	/**
+	 * Cut the prefix of a page down to prefix, writing every record again
+	 * with its longer suffix.
+	 *
+	 * @return false, leaving the page as it was, if the records do not fit
+	 *         any more
+	 */
+	private boolean cut(HFPage page, String prefix) throws IOException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException {
+		byte[] data = page.getpage();
+		byte[] old = data.clone();
+		short type = (short) SlotSearch.readShort(data, HFPage.TYPE);
+		int n = SlotSearch.slotCount(data);
+		format(data, prefix);
+		for (int slot = 0; slot < n; slot++) {
+			KeyDataEntry entry = entry(old, slot, AttrType.attrString, type);
+			entry.key = new StringKey(((StringKey) entry.key).getKey()
+					.substring(prefix.length()));
+			// in key order, so appending keeps the slots sorted
+			if (page.insertRecord(bytes(entry)) == null) {
+				System.arraycopy(old, 0, data, 0, data.length);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Room an insert can count on: the free space of the page, less (on a
+	 * prefix page) what cutting the prefix may cost, all the records growing
+	 * by the whole of it.
+	 */
+	int room(HFPage page) throws IOException {
+		int room = page.available_space();
+		if (on) {
+			byte[] data = page.getpage();
+			room -= SlotSearch.slotCount(data)
+					* SlotSearch.readShort(data, MAX_SPACE - 2);
+		}
+		return room;
+	}
+
+	/**
+	 * Whether a page is less than half full, and would be merged with a
+	 * sibling by a full delete.
+	 */
+	boolean underfull(HFPage page) throws IOException {
+		return page.available_space() > (MAX_SPACE - HFPage.DPFIXED) / 2;
+	}
+
+	/**
+	 * Whether an entry still fits on a page being packed in key order by
+	 * bulkLoad, leaving at least reserve bytes free (a page always takes its
+	 * first entry).
+	 */
+	boolean fits(HFPage page, KeyDataEntry entry, int reserve)
+			throws IOException, KeyNotMatchException, NodeNotMatchException,
+			ConvertException {
+		int need = bytes(entry).length;
+		byte[] data = page.getpage();
+		int n = SlotSearch.slotCount(data);
+		if (n == 0)
+			return page.available_space() >= need;
+		if (on) {
+			String key = string(entry.key);
+			String prefix = prefix(data);
+			int shared = common(prefix, key).length();
+			// the records already there grow by what is cut off the prefix,
+			// which the prefix itself no longer takes
+			int cut = SlotSearch.utfLength(prefix, shared, prefix.length());
+			need += (n - 1) * cut - SlotSearch.utfLength(key, 0, shared);
+		}
+		return page.available_space() - need >= reserve;
+	}
+
+	/**
+	 * Split a full page: its entries and entry are shared out between the
+	 * page, which keeps the lower half, and the empty page to, which gets the
+	 * upper half. entry goes after the entries with an equal key.
+	 */
+	void split(BTSortedPage from, BTSortedPage to, KeyDataEntry entry,
+			int keyType, short nodeType) throws Exception {
+		if (!on) {
+			// move (the second) half of records to the new page, from the
+			// last one back; they go on it in order, so that equal keys keep
+			// theirs
+			ArrayList<KeyDataEntry> moved = new ArrayList<KeyDataEntry>();
+			RID movId = new RID(from.getCurPage(), 0);
+			while (from.available_space() < 0.5 * MINIBASE_PAGESIZE) {
+				movId.slotNo = from.getSlotCnt() - 1;
+				moved.add(entry(from.getpage(), movId.slotNo, keyType,
+						nodeType));
+				from.deleteSortedRecord(movId);
+			}
+			for (int i = moved.size() - 1; i >= 0; i--)
+				insert(to, moved.get(i));
+			KeyClass first = entry(to.getpage(), 0, keyType, nodeType).key;
+			insert(BT.keyCompare(entry.key, first) >= 0 ? to : from, entry);
+			return;
+		}
+		byte[] data = from.getpage();
+		ArrayList<KeyDataEntry> all = entries(data, keyType, nodeType);
+		all.add(upperBound(data, all.size(), entry.key), entry);
+		// a key that does not share the prefix of the page is the first or
+		// the last one, so splitting it off leaves a half that fits
+		int half = middle(all);
+		fill(from, all, 0, half);
+		fill(to, all, half, all.size());
+	}
+
+	/**
+	 * @return the entries of a page, in order, with their full keys
+	 */
+	ArrayList<KeyDataEntry> entries(byte[] data, int keyType, short nodeType)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException {
+		int n = SlotSearch.slotCount(data);
+		ArrayList<KeyDataEntry> all = new ArrayList<KeyDataEntry>(n + 1);
+		for (int slot = 0; slot < n; slot++)
+			all.add(entry(data, slot, keyType, nodeType));
+		return all;
+	}
+
+	/**
+	 * Where to split sorted entries between two pages: where the halves,
+	 * each under its own prefix, come closest in size.
+	 *
+	 * @return the first entry of the upper half, 0 if there is no split
+	 *         where both halves fit
+	 */
+	int middle(ArrayList<KeyDataEntry> all) throws IOException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException {
+		int[] sum = new int[all.size() + 1];
+		for (int i = 0; i < all.size(); i++)
+			sum[i + 1] = sum[i] + bytes(all.get(i)).length
+					+ HFPage.SIZE_OF_SLOT;
+		int half = 0, best = Integer.MAX_VALUE;
+		for (int k = 1; k < all.size(); k++) {
+			int lower = size(all, sum, 0, k);
+			int upper = size(all, sum, k, all.size());
+			int capacity = MAX_SPACE - HFPage.DPFIXED;
+			if (lower <= capacity && upper <= capacity
+					&& Math.abs(lower - upper) < best) {
+				half = k;
+				best = Math.abs(lower - upper);
+			}
+		}
+		return half;
+	}
+
+	private int size(ArrayList<KeyDataEntry> entries, int[] sum, int from,
+			int to) throws KeyNotMatchException {
+		if (!on)
+			return sum[to] - sum[from];
+		return used(entries, sum, from, to);
+	}
+
+	/**
+	 * bytes that entries [from, to) take on a page of their own: records,
+	 * slots and prefix
+	 *
+	 * @param sum
+	 *            sum[i] is the size of the full records before entry i, with
+	 *            their slots
+	 */
+	private static int used(ArrayList<KeyDataEntry> entries, int[] sum,
+			int from, int to) throws KeyNotMatchException {
+		String prefix = common(string(entries.get(from).key),
+				string(entries.get(to - 1).key));
+		int length = SlotSearch.utfLength(prefix, 0, prefix.length());
+		return sum[to] - sum[from] - (to - from - 1) * length + 2;
+	}
+
+	/**
+	 * Empty a page and put entries [from, to), which are sorted, on it, under
+	 * the prefix of the first and the last of them. Links and type are left
+	 * alone.
+	 *
+	 * @return false, leaving the page as it was, if they do not fit
+	 */
+	boolean fill(HFPage page, ArrayList<KeyDataEntry> entries, int from,
+			int to) throws IOException, KeyNotMatchException,
+			NodeNotMatchException, ConvertException {
+		byte[] data = page.getpage();
+		byte[] old = data.clone();
+		String prefix = "";
+		if (on && from < to)
+			prefix = common(string(entries.get(from).key),
+					string(entries.get(to - 1).key));
+		clear(data, prefix);
+		for (int i = from; i < to; i++) {
+			KeyDataEntry entry = entries.get(i);
+			if (on)
+				entry = rekey(new StringKey(string(entry.key).substring(
+						prefix.length())), entry);
+			if (page.insertRecord(bytes(entry)) == null) {
+				System.arraycopy(old, 0, data, 0, data.length);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Empty a page; on a prefix page, give it the prefix.
+	 */
+	private void clear(byte[] data, String prefix) throws IOException {
+		if (on) {
+			format(data, prefix);
+			return;
+		}
+		Convert.setShortValue((short) 0, HFPage.SLOT_CNT, data);
+		Convert.setShortValue((short) MAX_SPACE, HFPage.USED_PTR, data);
+		Convert.setShortValue((short) (MAX_SPACE - HFPage.DPFIXED),
+				HFPage.FREE_SPACE, data);
+	}
+}
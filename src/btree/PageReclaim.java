@@ -0,0 +1,231 @@
+package btree;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+import bufmgr.PagePinnedException;
+import bufmgr.ReplacerException;
+import diskmgr.Page;
+import global.PageId;
+
+/**
+ * Allocation and freeing of the pages of a file. New pages are handed out
+ * from runs that lie one after the other in the file (PageRun). A leaf taken
+ * out of the tree may still have a scan on it, so it is retired rather than
+ * freed, and reclaim() frees it once no scan of the file is open and the
+ * change that took it out is on disk.
+ */
+class PageReclaim {
+
+	private final PageLatches latches;
+
+	/**
+	 * header page of the file, whose open scans reclaim() waits for; null for
+	 * the latches of a scan
+	 */
+	private BTreeHeaderPage header;
+
+	/**
+	 * pages the operation each thread is in took out of the tree, see
+	 * retire()
+	 */
+	private final ThreadLocal<ArrayList<PageId>> taken = new ThreadLocal<ArrayList<PageId>>();
+
+	/**
+	 * pages taken out of the tree, not freed yet, each with the change that
+	 * took it out; guarded by itself
+	 */
+	private final ArrayList<Retired> retired = new ArrayList<Retired>();
+
+	private static class Retired {
+		final PageId pid;
+		final CompletableFuture<Void> written;
+
+		Retired(PageId pid, CompletableFuture<Void> written) {
+			this.pid = pid;
+			this.written = written;
+		}
+	}
+
+	PageReclaim(PageLatches latches) {
+		this.latches = latches;
+	}
+
+	void setHeader(BTreeHeaderPage header) {
+		this.header = header;
+	}
+
+	/**
+	 * Free a page of the operation, unless it is still pinned, as by a change
+	 * whose record is not on disk yet; a thread reading it is waited for.
+	 *
+	 * @return whether the page was freed
+	 */
+	boolean free(PageId pid) throws Exception {
+		latches.lockExclusive(pid);
+		try {
+			// pinned once more, so that the pins of others show
+			latches.pin(pid, new Page(null));
+			try {
+				latches.freePage(pid);
+			} catch (Exception e) {
+				latches.unpinPage(pid, false);
+				if (!pinned(e))
+					throw e;
+				return false;
+			}
+		} finally {
+			latches.unlockExclusive(pid);
+		}
+		drop(pid);
+		latches.changes.forget(pid);
+		latches.changes.changed(ChangeLog.mapPage(pid));
+		return true;
+	}
+
+	/**
+	 * Drop the latch of a page freed, once it is let go of, at commit() when
+	 * the operation keeps it. Nothing reaches the page any more, and the
+	 * next use of its id gets a new latch.
+	 */
+	void drop(PageId pid) {
+		if (!latches.changes.keepFreed(pid))
+			PageLatches.forget(pid);
+	}
+
+	/**
+	 * whether freePage failed because the page is pinned; BufMgr has it from
+	 * its replacer
+	 */
+	private static boolean pinned(Exception e) {
+		return e instanceof PagePinnedException
+				|| (e instanceof ReplacerException
+						&& ((ReplacerException) e).prev instanceof PagePinnedException);
+	}
+
+	/**
+	 * Note that the operation took a page out of the tree. A scan may still
+	 * be on it, so it is only freed by reclaim(), once no scan of the file is
+	 * open and the change is on disk.
+	 */
+	void retire(PageId pid) {
+		ArrayList<PageId> pids = taken.get();
+		if (pids == null) {
+			pids = new ArrayList<PageId>();
+			taken.set(pids);
+		}
+		pids.add(new PageId(pid.pid));
+	}
+
+	/**
+	 * Hand the pages the operation retired to reclaim(), at its outermost
+	 * commit().
+	 *
+	 * @param written
+	 *            completed once the change is on disk
+	 */
+	void committed(CompletableFuture<Void> written) {
+		ArrayList<PageId> pids = taken.get();
+		if (pids == null || pids.isEmpty())
+			return;
+		synchronized (retired) {
+			for (PageId pid : pids)
+				retired.add(new Retired(pid, written));
+		}
+		pids.clear();
+	}
+
+	/**
+	 * Free the leaves retired that no scan can be on any more; within an
+	 * operation.
+	 */
+	void reclaim() throws Exception {
+		reclaim(false);
+	}
+
+	/**
+	 * Free the leaves retired whose change is on disk; with all, even while
+	 * scans are open, for a file being closed or destroyed, whose scans end
+	 * with it. A scan left open without DestroyBTreeFileScan() keeps the
+	 * leaves of its file from being freed until then, and no longer.
+	 */
+	void reclaim(boolean all) throws Exception {
+		ArrayList<PageId> free = new ArrayList<PageId>();
+		synchronized (retired) {
+			if (!all && header.openScans() > 0)
+				return;
+			for (int i = retired.size() - 1; i >= 0; i--) {
+				if (retired.get(i).written.isDone())
+					free.add(retired.remove(i).pid);
+			}
+		}
+		for (PageId pid : free) {
+			if (!free(pid)) {
+				synchronized (retired) {
+					retired.add(new Retired(pid, ChangeLog.DONE));
+				}
+			}
+		}
+	}
+
+	// /////////////////////////////////////////////////////////////////////
+	// runs of pages
+	// /////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Pages allocated together, which lie one after the other in the file:
+	 * those from next up to end are still to be handed out, in order, by
+	 * newPage. When they run out, another run of more pages is allocated.
+	 */
+	static class PageRun {
+		int next;
+		int end;
+		int more;
+
+		PageRun(int more) {
+			this.more = Math.max(1, more);
+		}
+	}
+
+	/**
+	 * Pin the next page of the run as an empty page of the type of page,
+	 * which then stands for it. The caller formats it; its allocation is not
+	 * noted as a change (see ChangeLog.mapPage). A run the file has no room
+	 * for is tried again at half the size.
+	 */
+	void newPage(PageRun run, BTSortedPage page) throws Exception {
+		if (run.next == run.end) {
+			PageId pid;
+			while (true) {
+				try {
+					pid = latches.newPages(run.more);
+					break;
+				} catch (Exception e) {
+					if (run.more == 1)
+						throw e;
+					run.more /= 2;
+				}
+			}
+			if (pid == null)
+				throw new ConstructPageException(null,
+						"no room in the buffer pool");
+			latches.unpinPage(pid, false);
+			run.next = pid.pid;
+			run.end = pid.pid + run.more;
+		}
+		PageId pid = new PageId(run.next++);
+		Page data = new Page();
+		latches.pinEmpty(pid, data);
+		short type = page.getType();
+		page.init(pid, data);
+		page.setType(type);
+	}
+
+	/**
+	 * Free the pages of the run not handed out, within an operation.
+	 */
+	void giveBack(PageRun run) throws Exception {
+		while (run.next < run.end)
+			free(new PageId(run.next++));
+	}
+}
@@ -0,0 +1,449 @@
+package btree;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+import bufmgr.BufMgr;
+import diskmgr.Page;
+import global.GlobalConst;
+import global.PageId;
+
+/**
+ * Write-ahead log of an index created with BTreeFlags.LOG. It redoes whole
+ * pages: every record holds the images of all the pages one operation (an
+ * insert with its splits, a delete) changed, and is forced to disk before any
+ * of these pages may be written back or read by another thread; PageLatches
+ * keeps them pinned and latched until then, so the records of a page are in
+ * the log in the order it was changed. A record that did not make it to disk
+ * whole fails its checksum, and it and everything after it are ignored.
+ *
+ * On a crash the database file holds the pages of some operations and not of
+ * others, and of a split some pages and not others; writing the images of
+ * all the records back in order brings every page to its state after the last
+ * operation logged. After that, and after a checkpoint, which writes back the
+ * pages logged so far, the log starts empty. A checkpoint is taken when the
+ * file is closed, and while it is open whenever the records appended since
+ * the last one reach the checkpoint size, so the log neither grows without
+ * bound nor takes long to redo.
+ *
+ * The log starts with the id of the header page of its file and the log id
+ * kept there (BTreeHeaderPage.getLogId), and is only redone into that file:
+ * not into a file of the same name in a database made anew. Then come the
+ * records: magic, number of pages, then for each page its id and its bytes,
+ * then the CRC32 of all that.
+ *
+ * With group commit, a record is only appended by write(), and a thread of
+ * the log forces the records of many operations at once: when maxBatch of
+ * them are waiting, or the pages they keep pinned reach maxPages, or the
+ * first has waited maxDelay milliseconds. As the log is only ever cut short
+ * by a crash, an operation that builds on another is never kept without it.
+ */
+class RedoLog implements GlobalConst {
+
+	private static final int MAGIC = 0x52444f4c;
+	private static final int LOG_MAGIC = 0x52444c47;
+	private static final int LOG_HEADER = 12;
+
+	/**
+	 * default checkpoint size, in bytes of records
+	 */
+	static final long CHECKPOINT_SIZE = 4L << 20;
+
+	private final String path;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+
+	/**
+	 * pages logged since the log was last emptied; guarded by this
+	 */
+	private final HashSet<Integer> logged = new HashSet<Integer>();
+
+	/**
+	 * bytes of the records appended since the log was last emptied, and how
+	 * many make full() true
+	 */
+	private volatile long size;
+	private volatile long checkpointSize = CHECKPOINT_SIZE;
+
+	/**
+	 * Group commit, off while maxBatch is 1. The records appended and not
+	 * forced yet wait in waiting, the first since firstAt, and keep pinned
+	 * pages pinned; stalled counts the writers waiting for room, and forcing
+	 * is set while the flusher forces a batch. All guarded by this.
+	 */
+	private int maxBatch = 1;
+	private int maxPages;
+	private long maxDelay;
+	private ArrayList<CompletableFuture<Void>> waiting =
+		new ArrayList<CompletableFuture<Void>>();
+	private int pinned;
+	private long firstAt;
+	private int stalled;
+	private boolean forcing;
+	private Thread flusher;
+
+	/**
+	 * Open the log at path for appending, empty.
+	 *
+	 * @param header
+	 *            header page of the file logged
+	 * @param id
+	 *            log id of the file
+	 */
+	RedoLog(String path, PageId header, int id) throws IOException {
+		this.path = path;
+		file = new RandomAccessFile(path, "rw");
+		channel = file.getChannel();
+		channel.truncate(0);
+		ByteBuffer start = ByteBuffer.allocate(LOG_HEADER);
+		start.putInt(LOG_MAGIC);
+		start.putInt(header.pid);
+		start.putInt(id);
+		start.flip();
+		while (start.hasRemaining())
+			channel.write(start);
+		channel.force(false);
+	}
+
+	/**
+	 * Append the images of the pages of one operation, copied here under the
+	 * monitor of the log. Without group commit they are forced to disk before
+	 * this returns; with it, this only waits while the records waiting leave
+	 * no room for this one.
+	 *
+	 * @return completed once the record is on disk
+	 */
+	synchronized CompletableFuture<Void> write(ArrayList<PageId> pids,
+			ArrayList<Page> pages) throws IOException, InterruptedException {
+		if (flusher != null && !room(pids.size())) {
+			stalled++;
+			notifyAll(); // the flusher, not to wait out maxDelay
+			try {
+				while (flusher != null && !room(pids.size()))
+					wait();
+			} finally {
+				stalled--;
+			}
+		}
+		ByteBuffer record = ByteBuffer.allocate(8 + pids.size()
+				* (4 + MAX_SPACE) + 8);
+		record.putInt(MAGIC);
+		record.putInt(pids.size());
+		for (int i = 0; i < pids.size(); i++) {
+			record.putInt(pids.get(i).pid);
+			record.put(pages.get(i).getpage(), 0, MAX_SPACE);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, record.position());
+		record.putLong(crc.getValue());
+		record.flip();
+		while (record.hasRemaining())
+			channel.write(record);
+		size += record.limit();
+		for (PageId pid : pids)
+			logged.add(pid.pid);
+		CompletableFuture<Void> durable = new CompletableFuture<Void>();
+		if (flusher == null) {
+			channel.force(false);
+			durable.complete(null);
+			return durable;
+		}
+		if (waiting.isEmpty())
+			firstAt = System.nanoTime();
+		waiting.add(durable);
+		pinned += pids.size();
+		notifyAll();
+		return durable;
+	}
+
+	/**
+	 * whether a record of n pages can wait with the records waiting
+	 */
+	private boolean room(int n) {
+		return waiting.isEmpty()
+				|| (waiting.size() < maxBatch && pinned + n <= maxPages);
+	}
+
+	/**
+	 * whether the records appended since the last checkpoint reached the
+	 * checkpoint size, and it is time for another
+	 */
+	boolean full() {
+		return size >= checkpointSize;
+	}
+
+	/**
+	 * @param bytes
+	 *            size of the records that makes full() true
+	 */
+	void setCheckpointSize(long bytes) {
+		checkpointSize = bytes;
+	}
+
+	/**
+	 * Turn group commit on, or off for a maxBatch of 1.
+	 *
+	 * @param maxDelay
+	 *            longest a record waits to be forced, in milliseconds
+	 * @param maxBatch
+	 *            most records forced at once
+	 * @param maxPages
+	 *            most pages the records waiting keep pinned
+	 */
+	void setGroupCommit(long maxDelay, int maxBatch, int maxPages)
+			throws InterruptedException {
+		Thread stopped;
+		synchronized (this) {
+			this.maxDelay = maxDelay;
+			this.maxBatch = Math.max(1, maxBatch);
+			this.maxPages = maxPages;
+			stopped = flusher;
+			if (this.maxBatch == 1)
+				flusher = null;
+			else if (flusher == null) {
+				flusher = new Thread(new Runnable() {
+					public void run() {
+						flush(Thread.currentThread());
+					}
+				}, "btree-group-commit");
+				flusher.setDaemon(true);
+				flusher.start();
+				stopped = null;
+			}
+			notifyAll();
+		}
+		if (stopped != null)
+			stopped.join(); // it forces what is waiting, then stops
+	}
+
+	/**
+	 * Body of the flusher thread: force batches of records until it is no
+	 * longer the flusher and nothing is waiting.
+	 */
+	private void flush(Thread self) {
+		try {
+			while (true) {
+				ArrayList<CompletableFuture<Void>> batch;
+				synchronized (this) {
+					while (waiting.isEmpty() && flusher == self)
+						wait();
+					if (waiting.isEmpty())
+						return;
+					while (flusher == self && waiting.size() < maxBatch
+							&& pinned < maxPages && stalled == 0) {
+						long left = maxDelay
+								- (System.nanoTime() - firstAt) / 1000000;
+						if (left <= 0)
+							break;
+						wait(left);
+					}
+					batch = waiting;
+					waiting = new ArrayList<CompletableFuture<Void>>();
+					pinned = 0;
+					forcing = true;
+					notifyAll();
+				}
+				force(batch);
+			}
+		} catch (InterruptedException e) {
+			// the log is closed
+		}
+	}
+
+	/**
+	 * Force the log and complete the records of batch, then let checkpoint()
+	 * know the batch is done.
+	 */
+	private void force(ArrayList<CompletableFuture<Void>> batch) {
+		try {
+			channel.force(false);
+			for (CompletableFuture<Void> durable : batch)
+				durable.complete(null);
+		} catch (IOException e) {
+			for (CompletableFuture<Void> durable : batch)
+				durable.completeExceptionally(e);
+		} finally {
+			synchronized (this) {
+				forcing = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Force every record appended so far, and wait until they are completed.
+	 */
+	synchronized void drain() throws InterruptedException {
+		while (forcing)
+			wait();
+		ArrayList<CompletableFuture<Void>> batch = waiting;
+		waiting = new ArrayList<CompletableFuture<Void>>();
+		pinned = 0;
+		forcing = true;
+		force(batch);
+		notifyAll();
+	}
+
+	/**
+	 * Forget a page the index freed: a checkpoint must not write it back, as
+	 * it may belong to another file by then.
+	 */
+	synchronized void forget(PageId pid) {
+		logged.remove(pid.pid);
+	}
+
+	/**
+	 * Write back the pages logged so far and empty the log. The database file
+	 * is forced first, so the pages are on disk before their images are
+	 * dropped. No operation on the index may be running; the pages stay in
+	 * the pool, pinned or not.
+	 */
+	synchronized void checkpoint(PageLatches latches, String dbName)
+			throws Exception {
+		drain();
+		for (int pid : logged)
+			latches.writeBack(new PageId(pid));
+		sync(dbName);
+		logged.clear();
+		channel.truncate(LOG_HEADER);
+		channel.force(true);
+		size = 0;
+	}
+
+	void close() throws IOException, InterruptedException {
+		setGroupCommit(0, 1, 0);
+		file.close();
+	}
+
+	/**
+	 * Close the log and remove it, with the index it logs.
+	 */
+	void delete() throws IOException, InterruptedException {
+		close();
+		new File(path).delete();
+	}
+
+	// /////////////////////////////////////////////////////////////////////
+	// recovery
+	// /////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Redo the log at path, if there is one and it is of the file in the
+	 * database: write every page image of its whole records into the
+	 * database, in the order they were logged, then write the pages back and
+	 * empty the log. To be called when the index is opened, before any of its
+	 * pages is read.
+	 *
+	 * @return the number of records redone
+	 */
+	static int recover(String path, BufMgr bufMgr, String dbName)
+			throws Exception {
+		File log = new File(path);
+		if (!log.exists() || log.length() <= LOG_HEADER)
+			return 0;
+		RandomAccessFile in = new RandomAccessFile(log, "rw");
+		HashSet<Integer> redone = new HashSet<Integer>();
+		int records = 0;
+		try {
+			if (in.readInt() != LOG_MAGIC
+					|| !ofFile(bufMgr, new PageId(in.readInt()), in.readInt())) {
+				in.getChannel().truncate(0); // left by another database
+				return 0;
+			}
+			while (true) {
+				ArrayList<PageId> pids = new ArrayList<PageId>();
+				ArrayList<byte[]> images = new ArrayList<byte[]>();
+				if (!read(in, pids, images))
+					break;
+				for (int i = 0; i < pids.size(); i++) {
+					Page page = new Page(null);
+					bufMgr.pinPage(pids.get(i), page, false);
+					System.arraycopy(images.get(i), 0, page.getpage(), 0,
+							MAX_SPACE);
+					bufMgr.unpinPage(pids.get(i), true);
+					redone.add(pids.get(i).pid);
+				}
+				records++;
+			}
+			for (int pid : redone)
+				bufMgr.flushPage(new PageId(pid));
+			sync(dbName);
+			in.getChannel().truncate(0);
+			in.getChannel().force(true);
+		} finally {
+			in.close();
+		}
+		return records;
+	}
+
+	/**
+	 * whether the page header is the header page of a file with log id id
+	 */
+	private static boolean ofFile(BufMgr bufMgr, PageId header, int id) {
+		try {
+			BTreeHeaderPage page = new BTreeHeaderPage();
+			bufMgr.pinPage(header, page, false);
+			page.readHPageIn();
+			boolean same = page.getType() == NodeType.BTHEAD
+					&& page.getLogId() == id;
+			bufMgr.unpinPage(header, false);
+			return same;
+		} catch (Exception e) {
+			return false; // not even a page of the database
+		}
+	}
+
+	/**
+	 * Read the next record of the log.
+	 *
+	 * @return false at the end of the log, or of its whole records
+	 */
+	private static boolean read(RandomAccessFile in, ArrayList<PageId> pids,
+			ArrayList<byte[]> images) throws IOException {
+		try {
+			long start = in.getFilePointer();
+			if (in.readInt() != MAGIC)
+				return false;
+			int n = in.readInt();
+			if (n < 0 || (long) n * (4 + MAX_SPACE) > in.length() - start)
+				return false;
+			byte[] body = new byte[8 + n * (4 + MAX_SPACE)];
+			in.seek(start);
+			in.readFully(body);
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			if (in.readLong() != crc.getValue())
+				return false;
+			ByteBuffer record = ByteBuffer.wrap(body, 8, body.length - 8);
+			for (int i = 0; i < n; i++) {
+				pids.add(new PageId(record.getInt()));
+				byte[] image = new byte[MAX_SPACE];
+				record.get(image);
+				images.add(image);
+			}
+			return true;
+		} catch (EOFException e) {
+			return false; // a record cut short by the crash
+		}
+	}
+
+	/**
+	 * Force the database file to disk.
+	 */
+	static void sync(String dbName) throws IOException {
+		RandomAccessFile db = new RandomAccessFile(dbName, "rw");
+		try {
+			db.getChannel().force(true);
+		} finally {
+			db.close();
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package btree;
+
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+
+/**
+ * Where a scan is: its leaf, the entry it returned last (null if none yet),
+ * and how many entries with the same key came before that one on its leaf.
+ * No page stays pinned or latched between the steps of a scan: next() and
+ * prev() find the position again from the last entry returned each time, so
+ * entries that inserts or splits moved since then are neither skipped nor,
+ * unless their key is duplicated, returned twice.
+ */
+class ScanPosition {
+
+	PageId leaf;
+	KeyDataEntry last;
+	int run;
+
+	ScanPosition(PageId leaf) {
+		this.leaf = leaf;
+	}
+
+	/**
+	 * Next entry of an ascending scan, which moves right over the next links
+	 * with latch coupling; the position is moved to it.
+	 *
+	 * @param lo
+	 *            low key of the scan, null for none
+	 * @return the next entry, or null at the end of the leaf level
+	 */
+	KeyDataEntry next(PageLatches latches, int keyType, KeyClass lo)
+			throws Exception {
+		PagePrefix prefix = latches.prefix;
+		PageId pid = new PageId(leaf.pid);
+		BTSortedPage page = latches.pinShared(pid, keyType);
+		boolean home = true;
+		while (true) {
+			byte[] data = page.getpage();
+			int n = SlotSearch.slotCount(data);
+			int slot = position(prefix, data, n, lo, home);
+			if (slot < n) {
+				KeyDataEntry entry = prefix.entry(data, slot, keyType,
+						NodeType.LEAF);
+				int first = prefix.lowerBound(data, slot, entry.key);
+				latches.unpinShared(pid, false);
+				leaf = pid;
+				last = entry;
+				run = slot - first;
+				return entry;
+			}
+			PageId next = new PageId(page.getNextPage().pid);
+			if (next.pid == GlobalConst.INVALID_PAGE) {
+				latches.unpinShared(pid, false);
+				return null;
+			}
+			latches.lockShared(next);
+			latches.unpinShared(pid, false);
+			pid = next;
+			page = latches.pin(pid, keyType);
+			home = false;
+		}
+	}
+
+	/**
+	 * slot of the entry after the last one returned on a page
+	 *
+	 * @param home
+	 *            whether the page is the leaf of the last entry returned
+	 */
+	private int position(PagePrefix prefix, byte[] data, int n, KeyClass lo,
+			boolean home) throws KeyNotMatchException {
+		if (last == null)
+			return lo == null ? 0 : prefix.lowerBound(data, n, lo);
+		RID rid = ((LeafData) last.data).getData();
+		int slot = prefix.lowerBound(data, n, last.key);
+		int end = slot;
+		while (end < n
+				&& prefix.compare(last.key, data,
+						SlotSearch.slotOffset(data, end)) == 0) {
+			if (SlotSearch.ridEquals(data, end, rid))
+				return end + 1;
+			end++;
+		}
+		if (!home)
+			return slot;
+		// on its own page, the entry was deleted, and the one after it took
+		// its place; or it moved right with everything after it, and the
+		// equal keys left here were returned already
+		return Math.min(slot + run, end);
+	}
+
+	/**
+	 * Previous entry of a descending scan, which moves left over the prev
+	 * links, finding its place again each time as next() does. Splits and
+	 * forward scans latch from left to right, so no latch is taken on a page
+	 * to the left of one held: the scan lets go of its leaf before it latches
+	 * the one before, and if that one split meanwhile, it moves right again
+	 * to the last of the pages it split into.
+	 *
+	 * Entries also move right past the scan: a split, or a shift of entries
+	 * to the right page (see BTreeFile.merge), may take the last entry
+	 * returned and those before it to the pages after its leaf, where it
+	 * follows them; and entries the leaf before gave to the leaf the scan let
+	 * go of are looked for there again, once the leaf before is latched. A
+	 * leaf merged into the one before brings the last entry along, and the
+	 * scan goes on from it there.
+	 *
+	 * @param hi
+	 *            high key of the scan, null for none
+	 * @return the previous entry, or null at the start of the leaf level
+	 */
+	KeyDataEntry prev(PageLatches latches, int keyType, KeyClass hi)
+			throws Exception {
+		PagePrefix prefix = latches.prefix;
+		KeyClass bound = last == null ? hi : last.key;
+		PageId pid = new PageId(leaf.pid);
+		BTSortedPage page = latches.pinShared(pid, keyType);
+		boolean home = true;
+		RID rid = last == null ? null : ((LeafData) last.data).getData();
+		int slot;
+		if (rid == null) {
+			slot = positionBack(prefix, page.getpage(), bound, false);
+		} else {
+			int at = find(prefix, page.getpage(), bound, rid);
+			while (at < 0) {
+				PageId next = new PageId(page.getNextPage().pid);
+				if (next.pid == GlobalConst.INVALID_PAGE)
+					break;
+				BTSortedPage after = latches.pinShared(next, keyType);
+				byte[] right = after.getpage();
+				boolean empty = SlotSearch.slotCount(right) == 0;
+				at = empty ? -1 : find(prefix, right, bound, rid);
+				// the entries before the last one are not past a page that
+				// starts at its key or above
+				if (at < 0
+						&& (empty || prefix.compare(bound, right,
+								SlotSearch.slotOffset(right, 0)) <= 0)) {
+					latches.unpinShared(next, false);
+					break;
+				}
+				latches.unpinShared(pid, false);
+				pid = next;
+				page = after;
+				home = at >= 0;
+			}
+			slot = at >= 0 ? at - 1 : positionBack(prefix, page.getpage(),
+					bound, home);
+		}
+		while (slot < 0) {
+			PageId prev = new PageId(page.getPrevPage().pid);
+			latches.unpinShared(pid, false);
+			if (prev.pid == GlobalConst.INVALID_PAGE)
+				return null;
+			page = latches.pinShared(prev, keyType);
+			// the pages prev split into come before pid; a page whose keys
+			// are all past the bound does not (pid was merged into prev)
+			while (page.getNextPage().pid != pid.pid) {
+				PageId next = new PageId(page.getNextPage().pid);
+				if (next.pid == GlobalConst.INVALID_PAGE)
+					break;
+				BTSortedPage after = latches.pinShared(next, keyType);
+				byte[] right = after.getpage();
+				if (bound != null
+						&& SlotSearch.slotCount(right) > 0
+						&& prefix.compare(bound, right,
+								SlotSearch.slotOffset(right, 0)) < 0) {
+					latches.unpinShared(next, false);
+					break;
+				}
+				latches.unpinShared(prev, false);
+				prev = next;
+				page = after;
+			}
+			if (page.getNextPage().pid == pid.pid) {
+				// entries prev gave to pid while neither was latched; with
+				// prev latched, no more can move between them
+				byte[] data = latches.pinShared(pid, keyType).getpage();
+				slot = positionBack(prefix, data, bound, home);
+				if (slot >= 0) {
+					latches.unpinShared(prev, false);
+					return back(latches, pid, data, slot, keyType);
+				}
+				latches.unpinShared(pid, false);
+			}
+			pid = prev;
+			home = false;
+			// the leaf of the last entry may have been merged into prev
+			int at = rid == null ? -1 : find(prefix, page.getpage(), bound,
+					rid);
+			slot = at >= 0 ? at - 1 : positionBack(prefix, page.getpage(),
+					bound, false);
+		}
+		return back(latches, pid, page.getpage(), slot, keyType);
+	}
+
+	/**
+	 * Move a descending scan to the entry at slot of leaf pid, which is let
+	 * go of.
+	 */
+	private KeyDataEntry back(PageLatches latches, PageId pid, byte[] data,
+			int slot, int keyType) throws Exception {
+		PagePrefix prefix = latches.prefix;
+		KeyDataEntry entry = prefix.entry(data, slot, keyType, NodeType.LEAF);
+		int first = prefix.lowerBound(data, slot, entry.key);
+		latches.unpinShared(pid, false);
+		leaf = pid;
+		last = entry;
+		run = slot - first;
+		return entry;
+	}
+
+	/**
+	 * @return the slot of the leaf entry with key and rid, -1 if it is not on
+	 *         the page
+	 */
+	private static int find(PagePrefix prefix, byte[] data, KeyClass key,
+			RID rid) throws KeyNotMatchException {
+		int n = SlotSearch.slotCount(data);
+		for (int slot = prefix.lowerBound(data, n, key); slot < n
+				&& prefix.compare(key, data,
+						SlotSearch.slotOffset(data, slot)) == 0; slot++) {
+			if (SlotSearch.ridEquals(data, slot, rid))
+				return slot;
+		}
+		return -1;
+	}
+
+	/**
+	 * slot of the entry before the last one returned, the mirror of position
+	 * above; -1 if there is none on the page
+	 *
+	 * @param bound
+	 *            key of the last entry returned, or the high key of the scan
+	 *            before the first
+	 * @param home
+	 *            whether the page is the leaf of the last entry returned
+	 */
+	private int positionBack(PagePrefix prefix, byte[] data, KeyClass bound,
+			boolean home) throws KeyNotMatchException {
+		int n = SlotSearch.slotCount(data);
+		if (bound == null)
+			return n - 1;
+		if (last == null || !home)
+			// entries with the key of the last one returned that are on the
+			// pages before its own come before it
+			return prefix.upperBound(data, n, bound) - 1;
+		RID rid = ((LeafData) last.data).getData();
+		int slot = prefix.lowerBound(data, n, bound);
+		int end = slot;
+		while (end < n
+				&& prefix.compare(bound, data,
+						SlotSearch.slotOffset(data, end)) == 0) {
+			if (SlotSearch.ridEquals(data, end, rid))
+				return end - 1;
+			end++;
+		}
+		// deleted: the equal keys before it on its page are still here
+		return Math.min(slot + run, end) - 1;
+	}
+}
@@ -0,0 +1,294 @@
+package btree;
+
+import java.io.IOException;
+
+import global.RID;
+import heap.HFPage;
+
+/**
+ * Search routines over the sorted slot directory of a BTSortedPage. They read
+ * the slot directory and the stored keys straight from the page bytes, so a
+ * probe neither copies records out of the page nor decodes them into
+ * KeyDataEntry objects.
+ *
+ * Every stored record starts with its key: 4 bytes for an integer key, or a
+ * 2 byte length followed by modified UTF-8 for a string key. The data follows
+ * the key: a page id (4 bytes) on index pages, slot number and page id (8
+ * bytes) on leaf pages.
+ */
+final class SlotSearch {
+
+	private SlotSearch() {
+	}
+
+	static int readShort(byte[] data, int pos) {
+		return (short) (((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff));
+	}
+
+	static int readInt(byte[] data, int pos) {
+		return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+				| ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+	}
+
+	static int slotCount(byte[] data) {
+		return readShort(data, HFPage.SLOT_CNT);
+	}
+
+	static int slotLength(byte[] data, int slot) {
+		return readShort(data, HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT);
+	}
+
+	static int slotOffset(byte[] data, int slot) {
+		return readShort(data, HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT + 2);
+	}
+
+	/**
+	 * page id stored in the index entry at the given slot
+	 */
+	static int childPid(byte[] data, int slot) {
+		return readInt(data, slotOffset(data, slot) + slotLength(data, slot)
+				- 4);
+	}
+
+	/**
+	 * page id of the last child of an index page: that of its last entry, or
+	 * the left link if it has none
+	 */
+	static int lastChild(byte[] data) {
+		int n = slotCount(data);
+		return n == 0 ? readInt(data, HFPage.PREV_PAGE) : childPid(data, n - 1);
+	}
+
+	/**
+	 * copy the rid stored in the leaf entry at the given slot into rid
+	 */
+	static void readRid(byte[] data, int slot, RID rid) {
+		int end = slotOffset(data, slot) + slotLength(data, slot);
+		rid.slotNo = readInt(data, end - 8);
+		rid.pageNo.pid = readInt(data, end - 4);
+	}
+
+	static boolean ridEquals(byte[] data, int slot, RID rid) {
+		int end = slotOffset(data, slot) + slotLength(data, slot);
+		return readInt(data, end - 8) == rid.slotNo
+				&& readInt(data, end - 4) == rid.pageNo.pid;
+	}
+
+	/**
+	 * Compare a key with the key stored at the given offset, with the same
+	 * sign as BT.keyCompare(key, stored).
+	 */
+	static int compare(KeyClass key, byte[] data, int pos)
+			throws KeyNotMatchException {
+		if (key instanceof IntegerKey) {
+			return compare(((IntegerKey) key).getKey().intValue(), data, pos);
+		}
+		if (key instanceof StringKey) {
+			return compare(((StringKey) key).getKey(), 0, data, pos);
+		}
+		throw new KeyNotMatchException(null, "key types do not match");
+	}
+
+	/**
+	 * Compare an integer key, given as an int, with the key stored at the
+	 * given offset.
+	 */
+	static int compare(int key, byte[] data, int pos) {
+		int s = readInt(data, pos);
+		return key < s ? -1 : (key == s ? 0 : 1);
+	}
+
+	/**
+	 * String.compareTo of key, from char from on, against a string stored by
+	 * DataOutputStream.writeUTF, decoding one char at a time. key is a String,
+	 * or the MutableKey of a BTCursor.
+	 */
+	static int compare(CharSequence key, int from, byte[] data, int pos) {
+		int end = pos + 2 + (readShort(data, pos) & 0xffff);
+		int p = pos + 2;
+		int i = from;
+		while (p < end && i < key.length()) {
+			int c = readChar(data, p);
+			char ch = (char) c;
+			p += c >>> 16;
+			if (key.charAt(i) != ch)
+				return key.charAt(i) - ch;
+			i++;
+		}
+		if (i < key.length())
+			return 1;
+		return p < end ? -1 : 0;
+	}
+
+	/**
+	 * the modified UTF-8 char at pos, with the number of bytes it takes above
+	 * its 16 bits
+	 */
+	static int readChar(byte[] data, int pos) {
+		int c = data[pos] & 0xff;
+		if (c < 0x80)
+			return c | 1 << 16;
+		if ((c & 0xe0) == 0xc0)
+			return ((c & 0x1f) << 6) | (data[pos + 1] & 0x3f) | 2 << 16;
+		return ((c & 0x0f) << 12) | ((data[pos + 1] & 0x3f) << 6)
+				| (data[pos + 2] & 0x3f) | 3 << 16;
+	}
+
+	/**
+	 * bytes that chars [from, to) of s take in modified UTF-8
+	 */
+	static int utfLength(String s, int from, int to) {
+		int length = 0;
+		for (int i = from; i < to; i++) {
+			char c = s.charAt(i);
+			length += c >= 1 && c < 0x80 ? 1 : (c < 0x800 ? 2 : 3);
+		}
+		return length;
+	}
+
+	/**
+	 * @return the first slot among the first n whose key is >= key, or n
+	 */
+	static int lowerBound(byte[] data, int n, KeyClass key)
+			throws KeyNotMatchException {
+		int lo = 0, hi = n;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compare(key, data, slotOffset(data, mid)) > 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the first slot among the first n whose key is > key, or n
+	 */
+	static int upperBound(byte[] data, int n, KeyClass key)
+			throws KeyNotMatchException {
+		int lo = 0, hi = n;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compare(key, data, slotOffset(data, mid)) >= 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * lowerBound for an integer key, given as an int
+	 */
+	static int lowerBound(byte[] data, int n, int key) {
+		int lo = 0, hi = n;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (readInt(data, slotOffset(data, mid)) < key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * upperBound for an integer key, given as an int
+	 */
+	static int upperBound(byte[] data, int n, int key) {
+		int lo = 0, hi = n;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (readInt(data, slotOffset(data, mid)) <= key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Insert a record into a sorted page, after any record with an equal key.
+	 * Unlike BTSortedPage.insertRecord the new slot is placed with one binary
+	 * search and one shift of the slot directory.
+	 * 
+	 * @return the slot of the new record, or -1 if the page is full
+	 */
+	static int insertSorted(HFPage page, byte[] rec, KeyClass key)
+			throws IOException, KeyNotMatchException {
+		byte[] data = page.getpage();
+		int pos = upperBound(data, slotCount(data), key);
+		if (page.insertRecord(rec) == null)
+			return -1;
+		placeLastSlot(data, pos);
+		return pos;
+	}
+
+	/**
+	 * insertSorted for an integer key, given as an int
+	 */
+	static int insertSorted(HFPage page, byte[] rec, int key)
+			throws IOException {
+		byte[] data = page.getpage();
+		int pos = upperBound(data, slotCount(data), key);
+		if (page.insertRecord(rec) == null)
+			return -1;
+		placeLastSlot(data, pos);
+		return pos;
+	}
+
+	/**
+	 * insertSorted for a leaf entry with an integer key: the record of key and
+	 * rid, as BT.getBytesFromEntry makes it, is written straight into the
+	 * page, whose slot directory has no empty slot.
+	 */
+	static int insertSorted(byte[] data, int key, RID rid) {
+		int n = slotCount(data);
+		int free = readShort(data, HFPage.FREE_SPACE);
+		if (free < 12 + HFPage.SIZE_OF_SLOT)
+			return -1;
+		int pos = upperBound(data, n, key);
+		int used = readShort(data, HFPage.USED_PTR) - 12;
+		writeInt(data, used, key);
+		writeInt(data, used + 4, rid.slotNo);
+		writeInt(data, used + 8, rid.pageNo.pid);
+		int slot = HFPage.DPFIXED + n * HFPage.SIZE_OF_SLOT;
+		writeShort(data, slot, 12);
+		writeShort(data, slot + 2, used);
+		writeShort(data, HFPage.USED_PTR, used);
+		writeShort(data, HFPage.FREE_SPACE, free - 12 - HFPage.SIZE_OF_SLOT);
+		writeShort(data, HFPage.SLOT_CNT, n + 1);
+		placeLastSlot(data, pos);
+		return pos;
+	}
+
+	private static void writeShort(byte[] data, int pos, int value) {
+		data[pos] = (byte) (value >>> 8);
+		data[pos + 1] = (byte) value;
+	}
+
+	private static void writeInt(byte[] data, int pos, int value) {
+		data[pos] = (byte) (value >>> 24);
+		data[pos + 1] = (byte) (value >>> 16);
+		data[pos + 2] = (byte) (value >>> 8);
+		data[pos + 3] = (byte) value;
+	}
+
+	/**
+	 * The record just inserted got the last slot of the (compact) directory;
+	 * rotate it down to pos.
+	 */
+	private static void placeLastSlot(byte[] data, int pos) {
+		int last = slotCount(data) - 1;
+		int from = HFPage.DPFIXED + pos * HFPage.SIZE_OF_SLOT;
+		int to = HFPage.DPFIXED + last * HFPage.SIZE_OF_SLOT;
+		int slot = readInt(data, to);
+		System.arraycopy(data, from, data, from + HFPage.SIZE_OF_SLOT, to
+				- from);
+		data[from] = (byte) (slot >>> 24);
+		data[from + 1] = (byte) (slot >>> 16);
+		data[from + 2] = (byte) (slot >>> 8);
+		data[from + 3] = (byte) slot;
+	}
+}
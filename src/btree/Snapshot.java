@@ -0,0 +1,110 @@
+package btree;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import global.PageId;
+import heap.HFPage;
+
+/**
+ * A point-in-time view of a BTreeFile, read by snapshot scans while other
+ * threads go on changing the file. Pages are copied on write: the first time
+ * a page is latched exclusively after the snapshot was taken, SnapshotGate
+ * gives the snapshot a copy of it as it was (keep()); a page with no copy has
+ * not changed since, and is read from the buffer pool.
+ *
+ * An operation that changes several pages runs between ChangeLog.begin()
+ * and commit(), and the snapshot is taken when none is under way, so it never
+ * sees half of one.
+ */
+class Snapshot {
+
+	private final PageLatches latches;
+
+	/**
+	 * root of the tree when the snapshot was taken
+	 */
+	private final PageId root;
+
+	/**
+	 * SnapshotGate.generation when the snapshot was taken
+	 */
+	final int generation;
+
+	/**
+	 * the pages changed since, as they were; a page gets its copy under its
+	 * exclusive latch
+	 */
+	private final ConcurrentHashMap<Integer, byte[]> images = new ConcurrentHashMap<Integer, byte[]>();
+
+	Snapshot(PageLatches latches, PageId root) {
+		this.latches = latches;
+		this.root = new PageId(root.pid);
+		generation = latches.gate.generation();
+	}
+
+	/**
+	 * whether the snapshot has its copy of the page
+	 */
+	boolean has(PageId pid) {
+		return images.containsKey(pid.pid);
+	}
+
+	/**
+	 * Keep the page as it was, before it is first changed. The image is
+	 * shared with the other snapshots and must not be changed.
+	 */
+	void keep(PageId pid, byte[] image) {
+		images.put(pid.pid, image);
+	}
+
+	/**
+	 * @return the bytes of the page as they were when the snapshot was taken,
+	 *         not to be changed
+	 */
+	byte[] read(PageId pid) throws Exception {
+		latches.lockShared(pid);
+		try {
+			byte[] image = images.get(pid.pid);
+			return image != null ? image : latches.copy(pid);
+		} finally {
+			latches.unlockShared(pid);
+		}
+	}
+
+	/**
+	 * The leaf where the first occurrence of key would be, as
+	 * PageLatches.latchLeaf finds it; the leftmost leaf for a null key.
+	 */
+	PageId leaf(KeyClass key) throws Exception {
+		PageId pid = root;
+		byte[] data = read(pid);
+		while (SlotSearch.readShort(data, HFPage.TYPE) == NodeType.INDEX) {
+			pid = latches.prefix.child(data, key, true);
+			data = read(pid);
+		}
+		return pid;
+	}
+
+	/**
+	 * The leaf where the last occurrence of key would be, as
+	 * PageLatches.latchLastLeaf finds it; the rightmost leaf for a null key.
+	 */
+	PageId lastLeaf(KeyClass key) throws Exception {
+		PageId pid = root;
+		byte[] data = read(pid);
+		while (SlotSearch.readShort(data, HFPage.TYPE) == NodeType.INDEX) {
+			pid = key == null ? new PageId(SlotSearch.lastChild(data))
+					: latches.prefix.child(data, key, false);
+			data = read(pid);
+		}
+		return pid;
+	}
+
+	/**
+	 * Stop the copying and let go of the copies.
+	 */
+	void release() {
+		latches.gate.release(this);
+		images.clear();
+	}
+}
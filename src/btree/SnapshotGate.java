@@ -0,0 +1,124 @@
+package btree;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import global.PageId;
+
+/**
+ * Keeps the snapshots of a file apart from the operations that change it.
+ * An operation holds the gate shared from ChangeLog.begin() to commit(); a
+ * Snapshot is only taken with the gate held exclusively, when none is under
+ * way, and BTreeFile.compact holds it the same way to keep them out. While
+ * there are snapshots, a page latched exclusively is copied into those that
+ * have no copy of it yet.
+ */
+class SnapshotGate {
+
+	private final PageLatches latches;
+
+	/**
+	 * held shared by the operations under way, exclusively to take a
+	 * snapshot or to keep them out, see exclude()
+	 */
+	private final ReentrantReadWriteLock gate = new ReentrantReadWriteLock();
+
+	/**
+	 * how many times the entries of the file were all moved to new pages, see
+	 * moved()
+	 */
+	private volatile int generation;
+
+	/**
+	 * the snapshots of the file not released yet
+	 */
+	private final CopyOnWriteArrayList<Snapshot> snapshots = new CopyOnWriteArrayList<Snapshot>();
+
+	SnapshotGate(PageLatches latches) {
+		this.latches = latches;
+	}
+
+	/**
+	 * Let an operation in, once no snapshot is being taken.
+	 */
+	void enter() {
+		gate.readLock().lock();
+	}
+
+	void leave() {
+		gate.readLock().unlock();
+	}
+
+	/**
+	 * Take a snapshot of the file, once the operations under way are done.
+	 * Until it is released, every page latched exclusively is first copied
+	 * into it.
+	 */
+	Snapshot snapshot(BTreeHeaderPage header) throws Exception {
+		gate.writeLock().lock();
+		try {
+			Snapshot s = new Snapshot(latches, header.getRootID());
+			snapshots.add(s);
+			return s;
+		} finally {
+			gate.writeLock().unlock();
+		}
+	}
+
+	void release(Snapshot s) {
+		snapshots.remove(s);
+	}
+
+	/**
+	 * Give a copy of a page about to change to the snapshots that have none;
+	 * called holding its exclusive latch.
+	 */
+	void keep(PageId pid) throws Exception {
+		if (snapshots.isEmpty())
+			return;
+		byte[] image = null;
+		for (Snapshot s : snapshots) {
+			if (s.has(pid))
+				continue;
+			if (image == null)
+				image = latches.copy(pid);
+			s.keep(pid, image);
+		}
+	}
+
+	/**
+	 * Wait for the operations under way to end, and keep others from
+	 * beginning until admit(); the thread can still begin() and commit() its
+	 * own. Nothing keeps out readers, which take no part in operations.
+	 */
+	void exclude() {
+		gate.writeLock().lock();
+	}
+
+	void admit() {
+		gate.writeLock().unlock();
+	}
+
+	/**
+	 * whether the thread keeps the operations out, see exclude()
+	 */
+	boolean excluding() {
+		return gate.isWriteLockedByCurrentThread();
+	}
+
+	/**
+	 * Note that every entry of the file was moved to new pages, between
+	 * exclude() and admit(). A scan opened before stays on the old leaves,
+	 * which are retired, and which its entries are no longer deleted from.
+	 */
+	void moved() {
+		generation++;
+	}
+
+	/**
+	 * how many times the entries were moved, see moved()
+	 */
+	int generation() {
+		return generation;
+	}
+}
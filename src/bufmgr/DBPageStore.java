@@ -0,0 +1,42 @@
+package bufmgr;
+
+import java.io.IOException;
+
+import diskmgr.DB;
+import diskmgr.FileIOException;
+import diskmgr.InvalidPageNumberException;
+import diskmgr.Page;
+import global.PageId;
+
+/**
+ * Pages read and written with DB.read_page and DB.write_page, one at a time,
+ * as DB does its own seeking on the file.
+ */
+public class DBPageStore implements PageStore {
+
+	private final DB db;
+
+	public DBPageStore(DB db) {
+		this.db = db;
+	}
+
+	public void read(int pid, byte[] data) throws InvalidPageNumberException,
+			FileIOException, IOException {
+		synchronized (db) {
+			db.read_page(new PageId(pid), new Page(data));
+		}
+	}
+
+	public void write(int pid, byte[] data)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		synchronized (db) {
+			db.write_page(new PageId(pid), new Page(data));
+		}
+	}
+
+	/**
+	 * DB leaves the pages to the file system.
+	 */
+	public void sync() {
+	}
+}
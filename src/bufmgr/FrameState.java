@@ -0,0 +1,34 @@
+package bufmgr;
+
+/**
+ * What a frame of a ShardedBufMgr holds, as frames() reports it: the page in
+ * it, whether the page is dirty, and how many pins it has. It is a copy made
+ * when frames() is called; it does not follow the frame afterwards.
+ */
+public final class FrameState {
+
+	private final int pageNo;
+	private final boolean dirty;
+	private final int pinCount;
+
+	FrameState(int pageNo, boolean dirty, int pinCount) {
+		this.pageNo = pageNo;
+		this.dirty = dirty;
+		this.pinCount = pinCount;
+	}
+
+	/**
+	 * @return id of the page in the frame, INVALID_PAGE if it is empty
+	 */
+	public int getPageNo() {
+		return pageNo;
+	}
+
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	public int getPinCount() {
+		return pinCount;
+	}
+}
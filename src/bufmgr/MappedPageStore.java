@@ -0,0 +1,95 @@
+package bufmgr;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import diskmgr.DB;
+import diskmgr.InvalidPageNumberException;
+
+/**
+ * Pages read and written through a mapping of the database file. A miss is
+ * one copy from the mapped file into the frame, with no system call and no
+ * lock: unlike DBPageStore, threads reading different pages do not wait for
+ * each other. The frames stay byte arrays, so the buffer manager still tracks
+ * which pages are dirty and writes them back; a write is a copy into the
+ * mapping, which the operating system takes to disk, or sync() does.
+ *
+ * DB made the file as long as the database, so the whole of it is mapped
+ * when the store is opened, in chunks, as one mapping is at most 2GB. DB
+ * keeps writing its own first page with file writes, which see the same
+ * pages as the mapping.
+ */
+public class MappedPageStore implements PageStore {
+
+	/**
+	 * most bytes mapped at once
+	 */
+	private static final int CHUNK_SIZE = 1 << 30;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer[] chunks;
+	private final int pageSize;
+	private final int numPages;
+
+	/**
+	 * pages in every chunk
+	 */
+	private final int chunkPages;
+
+	/**
+	 * Map the file of an open database.
+	 */
+	public MappedPageStore(DB db) throws IOException {
+		pageSize = db.db_page_size();
+		numPages = db.db_num_pages();
+		chunkPages = CHUNK_SIZE / pageSize;
+		file = new RandomAccessFile(db.db_name(), "rw");
+		FileChannel channel = file.getChannel();
+		chunks = new MappedByteBuffer[(numPages + chunkPages - 1) / chunkPages];
+		for (int i = 0; i < chunks.length; i++) {
+			long start = (long) i * chunkPages * pageSize;
+			long size = (long) Math.min(chunkPages, numPages - i * chunkPages)
+					* pageSize;
+			chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start,
+					size);
+		}
+	}
+
+	/**
+	 * a view of the chunk of page pid, at the page
+	 */
+	private ByteBuffer at(int pid) throws InvalidPageNumberException {
+		if (pid < 0 || pid >= numPages)
+			throw new InvalidPageNumberException(null,
+					"BUFMGR: INVALID_PAGE_NUMBER");
+		// a view of its own: the position of the chunk is not shared
+		ByteBuffer view = chunks[pid / chunkPages].duplicate();
+		view.position((pid % chunkPages) * pageSize);
+		return view;
+	}
+
+	public void read(int pid, byte[] data) throws InvalidPageNumberException {
+		at(pid).get(data, 0, pageSize);
+	}
+
+	public void write(int pid, byte[] data) throws InvalidPageNumberException {
+		at(pid).put(data, 0, pageSize);
+	}
+
+	public void sync() {
+		for (MappedByteBuffer chunk : chunks)
+			chunk.force();
+	}
+
+	/**
+	 * Write the mapped pages to disk and close the file. The mapping goes away
+	 * once it is no longer reachable.
+	 */
+	public void close() throws IOException {
+		sync();
+		file.close();
+	}
+}
@@ -0,0 +1,33 @@
+package bufmgr;
+
+import java.io.IOException;
+
+import diskmgr.FileIOException;
+import diskmgr.InvalidPageNumberException;
+
+/**
+ * Where a buffer manager reads pages from on a miss and writes dirty pages
+ * back to: the database file, through DB (DBPageStore) or through a mapping
+ * of it (MappedPageStore). Page allocation stays with DB either way.
+ *
+ * A store can be called by many threads at once.
+ */
+public interface PageStore {
+
+	/**
+	 * Copy page pid into data, which is one page long.
+	 */
+	void read(int pid, byte[] data) throws InvalidPageNumberException,
+			FileIOException, IOException;
+
+	/**
+	 * Copy data, one page long, to page pid.
+	 */
+	void write(int pid, byte[] data) throws InvalidPageNumberException,
+			FileIOException, IOException;
+
+	/**
+	 * Make the pages written so far reach the disk.
+	 */
+	void sync() throws IOException;
+}
@@ -0,0 +1,430 @@
+package bufmgr;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import diskmgr.DB;
+import diskmgr.Page;
+import global.GlobalConst;
+import global.PageId;
+import global.SystemDefs;
+
+/**
+ * A buffer manager that many threads can use at once. It keeps the contract of
+ * BufMgr (pinPage, unpinPage, newPage, freePage, flushPage), but splits the
+ * frames and the page table into shards, each with its own lock and its own
+ * clock replacer. A page always lives in the shard picked by its page id, so
+ * threads working on different pages seldom wait for each other.
+ *
+ * Pages are read and written through a PageStore: by default DB itself, which
+ * serializes them on the DB object, or a MappedPageStore, which does not. Page
+ * allocation (which updates the space map through the buffer) is serialized
+ * on a lock of its own, taken before any shard lock.
+ *
+ * To be used by the index classes, which reach the buffer manager through
+ * SystemDefs.JavabaseBM, it is installed there with install() before any file
+ * is opened.
+ *
+ * It counts the pins that found their page in the pool (hits) and those that
+ * did not (misses), and the pages it read and wrote, in LongAdders that the
+ * shards add to without a lock of their own.
+ */
+public class ShardedBufMgr extends BufMgr implements GlobalConst {
+
+	/**
+	 * one buffer frame
+	 */
+	private static class Frame {
+		int pid = INVALID_PAGE;
+		int pinCount;
+		boolean dirty;
+		boolean referenced;
+		final byte[] data = new byte[MAX_SPACE];
+
+		/**
+		 * next frame in its chain of the page table
+		 */
+		Frame next;
+	}
+
+	/**
+	 * frames of one shard, the page table mapping their page ids to them, and
+	 * the hand of the shard's clock; all guarded by the shard itself. The
+	 * page table chains the frames themselves, so a lookup boxes no page id
+	 * and the table makes no objects.
+	 */
+	private static class Shard {
+		final Frame[] frames;
+		final Frame[] table;
+		int hand;
+
+		Shard(int numFrames) {
+			frames = new Frame[numFrames];
+			for (int i = 0; i < numFrames; i++)
+				frames[i] = new Frame();
+			table = new Frame[Integer.highestOneBit(numFrames) * 2];
+		}
+
+		private int chain(int pid) {
+			return (pid ^ (pid >>> 16)) & (table.length - 1);
+		}
+
+		Frame get(int pid) {
+			for (Frame f = table[chain(pid)]; f != null; f = f.next)
+				if (f.pid == pid)
+					return f;
+			return null;
+		}
+
+		void put(Frame frame) {
+			int i = chain(frame.pid);
+			frame.next = table[i];
+			table[i] = frame;
+		}
+
+		void remove(Frame frame) {
+			int i = chain(frame.pid);
+			if (table[i] == frame) {
+				table[i] = frame.next;
+			} else {
+				Frame f = table[i];
+				while (f.next != frame)
+					f = f.next;
+				f.next = frame.next;
+			}
+			frame.next = null;
+		}
+	}
+
+	private final Shard[] shards;
+	private final int numBuffers;
+	private final DB db;
+	private final PageStore store;
+	private final Object allocation = new Object();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder reads = new LongAdder();
+	private final LongAdder writes = new LongAdder();
+
+	/**
+	 * @param numbufs
+	 *            number of frames in all
+	 * @param numShards
+	 *            number of shards the frames are spread over; at most numbufs
+	 */
+	public ShardedBufMgr(int numbufs, int numShards) {
+		this(numbufs, numShards, new DBPageStore(SystemDefs.JavabaseDB));
+	}
+
+	/**
+	 * @param store
+	 *            where the pages are read from and written to
+	 */
+	public ShardedBufMgr(int numbufs, int numShards, PageStore store) {
+		super(1, "Clock");
+		if (numShards < 1 || numShards > numbufs)
+			throw new IllegalArgumentException("bad number of shards");
+		numBuffers = numbufs;
+		db = SystemDefs.JavabaseDB;
+		this.store = store;
+		shards = new Shard[numShards];
+		for (int i = 0; i < numShards; i++)
+			shards[i] = new Shard(numbufs / numShards
+					+ (i < numbufs % numShards ? 1 : 0));
+	}
+
+	/**
+	 * Make a new ShardedBufMgr the buffer manager of the system, after
+	 * flushing the one it replaces. Must be called while no page is pinned.
+	 */
+	public static ShardedBufMgr install(int numbufs, int numShards)
+			throws HashOperationException, PageUnpinnedException,
+			PagePinnedException, PageNotFoundException, BufMgrException,
+			java.io.IOException {
+		return install(new ShardedBufMgr(numbufs, numShards));
+	}
+
+	/**
+	 * Like install above, reading and writing the pages through store.
+	 */
+	public static ShardedBufMgr install(int numbufs, int numShards,
+			PageStore store) throws HashOperationException,
+			PageUnpinnedException, PagePinnedException, PageNotFoundException,
+			BufMgrException, java.io.IOException {
+		return install(new ShardedBufMgr(numbufs, numShards, store));
+	}
+
+	private static ShardedBufMgr install(ShardedBufMgr bufMgr)
+			throws HashOperationException, PageUnpinnedException,
+			PagePinnedException, PageNotFoundException, BufMgrException,
+			java.io.IOException {
+		if (SystemDefs.JavabaseBM != null)
+			SystemDefs.JavabaseBM.flushAllPages();
+		SystemDefs.JavabaseBM = bufMgr;
+		return bufMgr;
+	}
+
+	private Shard shardOf(int pid) {
+		// spread consecutive page ids over the shards
+		int h = pid * 0x9E3779B9;
+		return shards[((h ^ (h >>> 16)) & 0x7fffffff) % shards.length];
+	}
+
+	/**
+	 * Pin a page: bring it in if needed and hand its frame to page.
+	 *
+	 * @param emptyPage
+	 *            true if the page does not have to be read from disk
+	 */
+	public void pinPage(PageId pinPgid, Page page, boolean emptyPage)
+			throws BufferPoolExceededException, BufMgrException {
+		int pid = pinPgid.pid;
+		Shard shard = shardOf(pid);
+		synchronized (shard) {
+			Frame frame = shard.get(pid);
+			if (frame == null) {
+				misses.increment();
+				frame = victim(shard);
+				if (!emptyPage) {
+					try {
+						read(pid, frame.data);
+					} catch (BufMgrException e) {
+						frame.pid = INVALID_PAGE;
+						throw e;
+					}
+				}
+				frame.pid = pid;
+				frame.dirty = false;
+				shard.put(frame);
+			} else {
+				hits.increment();
+			}
+			frame.pinCount++;
+			frame.referenced = true;
+			page.setpage(frame.data);
+		}
+	}
+
+	/**
+	 * Unpin a page, marking it dirty if it was changed.
+	 */
+	public void unpinPage(PageId globalPageId, boolean dirty)
+			throws PageUnpinnedException, HashEntryNotFoundException {
+		int pid = globalPageId.pid;
+		Shard shard = shardOf(pid);
+		synchronized (shard) {
+			Frame frame = shard.get(pid);
+			if (frame == null)
+				throw new HashEntryNotFoundException(null,
+						"BUFMGR: PAGE_NOT_IN_POOL");
+			if (frame.pinCount == 0)
+				throw new PageUnpinnedException(null,
+						"BUFMGR: PAGE_NOT_PINNED");
+			frame.pinCount--;
+			frame.dirty |= dirty;
+		}
+	}
+
+	/**
+	 * Allocate a run of pages and pin the first one.
+	 *
+	 * @return id of the first page, or null if the run could not be pinned
+	 */
+	public PageId newPage(Page firstpage, int howmany)
+			throws BufMgrException {
+		PageId pid = new PageId();
+		synchronized (allocation) {
+			try {
+				db.allocate_page(pid, howmany);
+			} catch (Exception e) {
+				throw new BufMgrException(e, "BUFMGR: ALLOCATE_PAGE_FAILED");
+			}
+		}
+		try {
+			pinPage(pid, firstpage, true);
+		} catch (BufferPoolExceededException e) {
+			deallocate(pid, howmany);
+			return null;
+		}
+		return pid;
+	}
+
+	/**
+	 * Drop a page from the pool, unpinning it if it is pinned once, and
+	 * deallocate it.
+	 */
+	public void freePage(PageId globalPageId) throws PagePinnedException,
+			BufMgrException {
+		int pid = globalPageId.pid;
+		Shard shard = shardOf(pid);
+		synchronized (shard) {
+			Frame frame = shard.get(pid);
+			if (frame != null) {
+				if (frame.pinCount > 1)
+					throw new PagePinnedException(null,
+							"BUFMGR: PAGE_PINNED");
+				shard.remove(frame);
+				frame.pid = INVALID_PAGE;
+				frame.pinCount = 0;
+				frame.dirty = false;
+			}
+		}
+		deallocate(new PageId(pid), 1);
+	}
+
+	/**
+	 * Write a page to disk if it is in the pool and dirty.
+	 */
+	public void flushPage(PageId pageid) throws BufMgrException {
+		Shard shard = shardOf(pageid.pid);
+		synchronized (shard) {
+			Frame frame = shard.get(pageid.pid);
+			if (frame != null)
+				flush(frame);
+		}
+	}
+
+	/**
+	 * Write every dirty page of the pool to disk.
+	 */
+	public void flushAllPages() throws BufMgrException {
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				for (Frame frame : shard.frames)
+					if (frame.pid != INVALID_PAGE)
+						flush(frame);
+			}
+		}
+		try {
+			store.sync();
+		} catch (Exception e) {
+			throw new BufMgrException(e, "BUFMGR: WRITE_PAGE_ERROR");
+		}
+	}
+
+	public int getNumBuffers() {
+		return numBuffers;
+	}
+
+	public int getNumUnpinnedBuffers() {
+		int unpinned = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				for (Frame frame : shard.frames)
+					if (frame.pinCount == 0)
+						unpinned++;
+			}
+		}
+		return unpinned;
+	}
+
+	/**
+	 * @return pins of a page that was in the pool
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return pins of a page that was not, read from disk unless it was new
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return pages read from disk
+	 */
+	public long getReads() {
+		return reads.sum();
+	}
+
+	/**
+	 * @return dirty pages written to disk, when flushed or replaced
+	 */
+	public long getWrites() {
+		return writes.sum();
+	}
+
+	/**
+	 * The frames of all the shards, one after the other, each as it is when
+	 * its shard is read. BufMgr.frameTable() is not overridden: its frame
+	 * descriptor is not a public class, and it describes the one frame that
+	 * BufMgr was made with, which is never used.
+	 */
+	public FrameState[] frames() {
+		FrameState[] table = new FrameState[numBuffers];
+		int i = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				for (Frame frame : shard.frames)
+					table[i++] = new FrameState(frame.pid, frame.dirty,
+							frame.pinCount);
+			}
+		}
+		return table;
+	}
+
+	// /////////////////////////////////////////////////////////////////////
+	// inside a shard
+	// /////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Free a frame of the shard with its clock, writing out the page it held
+	 * if that is dirty. The caller holds the shard.
+	 */
+	private Frame victim(Shard shard) throws BufferPoolExceededException,
+			BufMgrException {
+		Frame[] frames = shard.frames;
+		// two turns: the first may only clear reference bits
+		for (int i = 0; i < 2 * frames.length; i++) {
+			Frame frame = frames[shard.hand];
+			shard.hand = (shard.hand + 1) % frames.length;
+			if (frame.pinCount > 0)
+				continue;
+			if (frame.referenced) {
+				frame.referenced = false;
+				continue;
+			}
+			if (frame.pid != INVALID_PAGE) {
+				flush(frame);
+				shard.remove(frame);
+				frame.pid = INVALID_PAGE;
+			}
+			return frame;
+		}
+		throw new BufferPoolExceededException(null,
+				"BUFMGR: BUFFER_POOL_EXCEEDED");
+	}
+
+	private void flush(Frame frame) throws BufMgrException {
+		if (!frame.dirty)
+			return;
+		try {
+			store.write(frame.pid, frame.data);
+		} catch (Exception e) {
+			throw new BufMgrException(e, "BUFMGR: WRITE_PAGE_ERROR");
+		}
+		writes.increment();
+		frame.dirty = false;
+	}
+
+	private void read(int pid, byte[] data) throws BufMgrException {
+		try {
+			store.read(pid, data);
+		} catch (Exception e) {
+			throw new BufMgrException(e, "BUFMGR: READ_PAGE_ERROR");
+		}
+		reads.increment();
+	}
+
+	private void deallocate(PageId pid, int howmany) throws BufMgrException {
+		synchronized (allocation) {
+			try {
+				db.deallocate_page(pid, howmany);
+			} catch (Exception e) {
+				throw new BufMgrException(e, "BUFMGR: DEALLOCATE_PAGE_FAILED");
+			}
+		}
+	}
+}
@@ -0,0 +1,1475 @@
+package tests;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import global.*;
+import btree.*;
+
+/**
+ * Checks of the B+ tree that need no input, run one after the other on a
+ * new database. Each prints what it found, and fails if it is not what the
+ * tree promises.
+ */
+class BTFileDriver extends TestDriver implements GlobalConst {
+
+	private static final int NUMBUF = 500;
+
+	/**
+	 * delete fashions, as BTTest numbers them
+	 */
+	private static final int NAIVE_DELETE = 0;
+	private static final int FULL_DELETE = 1;
+
+	public BTFileDriver() {
+		super("btfiletest");
+	}
+
+	public boolean runTests() {
+		new SystemDefs(dbpath, 20000, NUMBUF, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "B+ tree file";
+	}
+
+	protected boolean runAllTests() {
+		// TestDriver runs test1() to test6()
+		boolean status = super.runAllTests();
+		if (!test7())
+			status = FAIL;
+		if (!test8())
+			status = FAIL;
+		if (!test9())
+			status = FAIL;
+		if (!test10())
+			status = FAIL;
+		if (!test11())
+			status = FAIL;
+		if (!test12())
+			status = FAIL;
+		if (!test13())
+			status = FAIL;
+		if (!test14())
+			status = FAIL;
+		if (!test15())
+			status = FAIL;
+		if (!test16())
+			status = FAIL;
+		return status;
+	}
+
+	private static StringKey userKey(int i) {
+		return new StringKey(String.format("user/%08d", i));
+	}
+
+	/**
+	 * Whether the estimate of a range is within a tenth of its true count,
+	 * or one entry of it.
+	 */
+	private static boolean near(int estimate, int count) {
+		return Math.abs(estimate - count) <= Math.max(1, count / 10);
+	}
+
+	/**
+	 * Range estimates of string keys, from a histogram made by a bulk load
+	 * and from one made by sampling the leaves after plain inserts.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: range estimates of string keys\n");
+		boolean status = OK;
+		int n = 60000;
+		int[][] ranges = { { 1000, 1999 }, { 100, 109 }, { 0, n - 1 },
+				{ 30000, 30000 }, { 12345, 23456 } };
+		try {
+			for (int load = 0; load < 2; load++) {
+				BTreeFile file = new BTreeFile("estimate" + load,
+						AttrType.attrString, 16, FULL_DELETE);
+				if (load == 0) {
+					ArrayList<KeyDataEntry> data = new ArrayList<KeyDataEntry>();
+					for (int i = 0; i < n; i++)
+						data.add(new KeyDataEntry(userKey(i), new RID(
+								new PageId(i), i)));
+					file.bulkLoad(data.iterator(), 1.0);
+				} else {
+					ArrayList<Integer> keys = new ArrayList<Integer>();
+					for (int i = 0; i < n; i++)
+						keys.add(i);
+					Collections.shuffle(keys, new Random(1));
+					for (int i : keys)
+						file.insert(userKey(i), new RID(new PageId(i), i));
+				}
+				for (int[] r : ranges) {
+					int estimate = file.estimateRange(userKey(r[0]),
+							userKey(r[1]));
+					int count = r[1] - r[0] + 1;
+					System.out.println("  " + (load == 0 ? "bulk " : "insert")
+							+ " [" + r[0] + ", " + r[1] + "]: estimate "
+							+ estimate + ", entries " + count);
+					if (!near(estimate, count)) {
+						System.err.println("*** estimate too far off");
+						status = FAIL;
+					}
+				}
+				file.destroyFile();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Insert the keys given, each with a rid made from it.
+	 */
+	private static void insert(BTreeFile file, List<Integer> keys)
+			throws Exception {
+		for (int k : keys)
+			file.insert(new IntegerKey(k), new RID(new PageId(k), k));
+	}
+
+	/**
+	 * Whether a scan of the whole file returns the keys given, in order, each
+	 * with its own rid; it stops at the first that is not.
+	 */
+	private static boolean holds(BTreeFile file, Collection<Integer> keys)
+			throws Exception {
+		TreeSet<Integer> want = new TreeSet<Integer>(keys);
+		Iterator<Integer> it = want.iterator();
+		BTFileScan scan = file.new_scan(null, null);
+		boolean same = true;
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			int key = ((IntegerKey) entry.key).getKey().intValue();
+			RID rid = ((LeafData) entry.data).getData();
+			if (!it.hasNext() || it.next().intValue() != key
+					|| rid.pageNo.pid != key || rid.slotNo != key) {
+				same = false;
+				break;
+			}
+		}
+		scan.DestroyBTreeFileScan();
+		if (it.hasNext())
+			same = false;
+		if (!same)
+			System.err.println("*** a scan does not return the keys inserted");
+		return same;
+	}
+
+	/**
+	 * Full delete of most of the keys, in random order: the pages left
+	 * underfull are merged or take entries from a sibling, and the rest of
+	 * the keys are all still found.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: full delete merges pages\n");
+		boolean status = OK;
+		int n = 20000;
+		try {
+			BTreeFile file = new BTreeFile("merge", AttrType.attrInteger, 4,
+					FULL_DELETE);
+			ArrayList<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				keys.add(i);
+			Collections.shuffle(keys, new Random(2));
+			insert(file, keys);
+			int leaves = file.getHeaderPage().getLeafCount();
+			Collections.shuffle(keys, new Random(3));
+			List<Integer> deleted = keys.subList(0, n * 7 / 8);
+			for (int k : deleted) {
+				if (!file.Delete(new IntegerKey(k), new RID(new PageId(k), k))) {
+					System.err.println("*** key " + k + " not deleted");
+					status = FAIL;
+				}
+			}
+			List<Integer> left = keys.subList(n * 7 / 8, n);
+			int after = file.getHeaderPage().getLeafCount();
+			System.out.println("  " + n + " keys on " + leaves
+					+ " leaves, " + left.size() + " left on " + after);
+			if (after > leaves / 4) {
+				System.err.println("*** the leaves were not merged");
+				status = FAIL;
+			}
+			if (!holds(file, left))
+				status = FAIL;
+			if (file.Delete(new IntegerKey(deleted.get(0)), new RID(
+					new PageId(deleted.get(0)), deleted.get(0)))) {
+				System.err.println("*** a key deleted was deleted again");
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Compaction of a file left sparse by naive deletes: it packs the keys
+	 * into fewer leaves and keeps every one of them, a scan opened before it
+	 * still returns them all, and the file takes inserts after it.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: compaction keeps every key\n");
+		boolean status = OK;
+		int n = 20000;
+		try {
+			BTreeFile file = new BTreeFile("compact", AttrType.attrInteger, 4,
+					NAIVE_DELETE);
+			ArrayList<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				keys.add(i);
+			Collections.shuffle(keys, new Random(4));
+			insert(file, keys);
+			List<Integer> deleted = keys.subList(0, n * 3 / 4);
+			for (int k : deleted)
+				file.Delete(new IntegerKey(k), new RID(new PageId(k), k));
+			TreeSet<Integer> left = new TreeSet<Integer>(keys.subList(
+					n * 3 / 4, n));
+			int leaves = file.getHeaderPage().getLeafCount();
+
+			BTFileScan before = file.new_scan(null, null);
+			file.compact();
+			int after = file.getHeaderPage().getLeafCount();
+			System.out.println("  " + left.size() + " keys on " + leaves
+					+ " leaves, on " + after + " after compaction");
+			if (after > leaves / 2) {
+				System.err.println("*** the leaves were not packed");
+				status = FAIL;
+			}
+			int seen = 0;
+			KeyDataEntry entry;
+			while ((entry = before.get_next()) != null) {
+				if (!left.contains(((IntegerKey) entry.key).getKey()))
+					status = FAIL;
+				seen++;
+			}
+			before.DestroyBTreeFileScan();
+			if (seen != left.size()) {
+				System.err.println("*** the scan opened before compaction"
+						+ " returned " + seen + " keys of " + left.size());
+				status = FAIL;
+			}
+			if (!holds(file, left))
+				status = FAIL;
+
+			insert(file, deleted);
+			if (!holds(file, keys))
+				status = FAIL;
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Scan the file over and over while threads insert the odd keys below 2n
+	 * into it, which holds the even ones: every scan must return its keys in
+	 * order, once each, and all of the even ones; at the end the file holds
+	 * every key.
+	 */
+	private static boolean insertWhileScanning(String name, int flags)
+			throws Exception {
+		final int n = 20000, threads = 4;
+		final BTreeFile file = new BTreeFile(name, AttrType.attrInteger, 4,
+				FULL_DELETE, flags);
+		ArrayList<Integer> even = new ArrayList<Integer>();
+		for (int i = 0; i < n; i++)
+			even.add(2 * i);
+		Collections.shuffle(even, new Random(5));
+		insert(file, even);
+
+		final AtomicInteger running = new AtomicInteger(threads);
+		Thread[] writers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int first = t;
+			writers[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = first; i < n; i += threads) {
+							int k = 2 * i + 1;
+							file.insert(new IntegerKey(k), new RID(
+									new PageId(k), k));
+						}
+					} finally {
+						running.decrementAndGet();
+					}
+				}
+			};
+			writers[t].start();
+		}
+		boolean ok = true;
+		int scans = 0;
+		do {
+			BTFileScan scan = file.new_scan(null, null);
+			int last = -1, evens = 0;
+			KeyDataEntry entry;
+			while ((entry = scan.get_next()) != null) {
+				int key = ((IntegerKey) entry.key).getKey().intValue();
+				if (key <= last || key >= 2 * n)
+					ok = false;
+				if (key % 2 == 0)
+					evens++;
+				last = key;
+			}
+			scan.DestroyBTreeFileScan();
+			if (evens != n)
+				ok = false;
+			scans++;
+		} while (running.get() > 0);
+		for (Thread t : writers)
+			t.join();
+		System.out.println("  " + scans + " scans while " + threads
+				+ " threads inserted " + n + " keys");
+		if (!ok)
+			System.err.println("*** a scan missed keys or was out of order");
+		ArrayList<Integer> all = new ArrayList<Integer>();
+		for (int i = 0; i < 2 * n; i++)
+			all.add(i);
+		if (!holds(file, all))
+			ok = false;
+		file.destroyFile();
+		return ok;
+	}
+
+	/**
+	 * Inserts and scans at once, on a file whose operations latch the pages
+	 * they go through, and on a B-link tree.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: concurrent inserts and scans\n");
+		boolean status = OK;
+		try {
+			if (!insertWhileScanning("latched", 0))
+				status = FAIL;
+			if (!insertWhileScanning("blink", BTreeFlags.BLINK))
+				status = FAIL;
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 4 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * A crash of a logged file: the database is opened again without the
+	 * file being closed, so the pages left in the buffer pool are lost, and
+	 * the log must bring back every key inserted. The log is checkpointed
+	 * along the way, so the keys come back in part from the pages written
+	 * then and in part from the log.
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: recovery after a crash\n");
+		boolean status = OK;
+		int n = 30000;
+		try {
+			BTreeFile file = new BTreeFile("crash", AttrType.attrInteger, 4,
+					FULL_DELETE, BTreeFlags.LOG);
+			file.setCheckpointSize(256 * 1024);
+			ArrayList<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				keys.add(i);
+			Collections.shuffle(keys, new Random(6));
+			insert(file, keys);
+			List<Integer> deleted = keys.subList(0, n / 4);
+			for (int k : deleted)
+				file.Delete(new IntegerKey(k), new RID(new PageId(k), k));
+			File log = new File(SystemDefs.JavabaseLogName + ".crash");
+			System.out.println("  " + keys.size() + " keys inserted, "
+					+ deleted.size() + " deleted, " + log.length()
+					+ " bytes of log");
+			if (log.length() > 2 * 256 * 1024) {
+				System.err.println("*** the log was not checkpointed");
+				status = FAIL;
+			}
+
+			// the crash: the file is not closed
+			file = null;
+			new SystemDefs(dbpath, 0, NUMBUF, "Clock");
+			file = new BTreeFile("crash");
+			List<Integer> left = keys.subList(n / 4, n);
+			if (!holds(file, left))
+				status = FAIL;
+			if (file.getHeaderPage().getEntryCount() != left.size()) {
+				System.err.println("*** the entries were not counted again");
+				status = FAIL;
+			}
+
+			// and the file goes on as before
+			insert(file, deleted);
+			file.close();
+			file = new BTreeFile("crash");
+			if (!holds(file, keys))
+				status = FAIL;
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 5 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * The page calls of BTIndexPage and BTLeafPage, made by hand on the pages
+	 * of a file with the header of the file: following getPageNoByKey from
+	 * the root leads to the leaf of a key, getFirstSlotByKey to its slot,
+	 * getFirst and getNext return the full keys in order, and delEntry
+	 * deletes the entry; on prefix-compressed and counted pages as on plain
+	 * ones.
+	 */
+	protected boolean test6() {
+		System.out.println("\n  Test 6: page calls on every page format\n");
+		boolean status = OK;
+		int n = 20000;
+		int[] formats = { 0, BTreeFlags.PREFIX,
+				BTreeFlags.PREFIX | BTreeFlags.COUNTED };
+		try {
+			for (int flags : formats) {
+				BTreeFile file = new BTreeFile("pages" + flags,
+						AttrType.attrString, 40, FULL_DELETE, flags);
+				for (int i = 0; i < n; i++)
+					file.insert(longKey(i), new RID(new PageId(i), i));
+				BTreeHeaderPage header = file.getHeaderPage();
+				int found = 0, unordered = 0, deleted = 0;
+				for (int i = 0; i < n; i += 7) {
+					StringKey key = longKey(i);
+					PageId pid = header.getRootID();
+					for (int level = header.getHeight(); level > 1; level--) {
+						BTIndexPage index = new BTIndexPage(pid, header);
+						PageId child = index.getPageNoByKey(key);
+						if (!ordered(index))
+							unordered++;
+						SystemDefs.JavabaseBM.unpinPage(pid, false);
+						pid = child;
+					}
+					BTLeafPage leaf = new BTLeafPage(pid, header);
+					int slot = leaf.getFirstSlotByKey(key);
+					RID rid = new RID();
+					KeyDataEntry entry = leaf.getFirst(rid);
+					for (int j = 0; j < slot && entry != null; j++)
+						entry = leaf.getNext(rid);
+					if (entry != null && BT.keyCompare(entry.key, key) == 0
+							&& ((LeafData) entry.data).getData().slotNo == i)
+						found++;
+					boolean delete = i % 2 == 0;
+					if (delete
+							&& leaf.delEntry(new KeyDataEntry(key, new RID(
+									new PageId(i), i))))
+						deleted++;
+					SystemDefs.JavabaseBM.unpinPage(pid, delete);
+				}
+				int tried = (n + 6) / 7;
+				BTFileScan scan = file.new_scan(null, null);
+				int left = 0;
+				while (scan.get_next() != null)
+					left++;
+				scan.DestroyBTreeFileScan();
+				System.out.println("  flags " + flags + ": " + found + " of "
+						+ tried + " keys found, " + deleted + " deleted, "
+						+ left + " left");
+				if (found != tried || unordered != 0
+						|| deleted != (tried + 1) / 2 || left != n - deleted) {
+					System.err.println("*** the page calls went wrong");
+					status = FAIL;
+				}
+				file.destroyFile();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 6 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * A snapshot scan returns the file as it was when the scan was opened:
+	 * the keys inserted since, which split leaves, and those deleted since,
+	 * which merge them, do not show in it, ascending or descending, while a
+	 * plain scan opened after them sees them all.
+	 */
+	protected boolean test7() {
+		System.out.println("\n  Test 7: snapshot scans ignore later changes\n");
+		boolean status = OK;
+		int n = 10000;
+		try {
+			BTreeFile file = new BTreeFile("snapshot", AttrType.attrInteger,
+					4, FULL_DELETE);
+			ArrayList<Integer> even = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				even.add(2 * i);
+			Collections.shuffle(even, new Random(7));
+			insert(file, even);
+			ArrayList<Integer> before = new ArrayList<Integer>(
+					new TreeSet<Integer>(even));
+
+			BTFileScan up = file.new_scan(null, null, true, false);
+			BTFileScan down = file.new_scan(null, null, true, true);
+			// both scans are under way when the changes are made
+			ArrayList<Integer> seenUp = new ArrayList<Integer>();
+			ArrayList<Integer> seenDown = new ArrayList<Integer>();
+			seenUp.add(((IntegerKey) up.get_next().key).getKey());
+			seenDown.add(((IntegerKey) down.get_next().key).getKey());
+
+			ArrayList<Integer> odd = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				odd.add(2 * i + 1);
+			Collections.shuffle(odd, new Random(8));
+			insert(file, odd);
+			List<Integer> deleted = even.subList(0, n / 2);
+			for (int k : deleted)
+				file.Delete(new IntegerKey(k), new RID(new PageId(k), k));
+
+			KeyDataEntry entry;
+			while ((entry = up.get_next()) != null)
+				seenUp.add(((IntegerKey) entry.key).getKey());
+			while ((entry = down.get_next()) != null)
+				seenDown.add(((IntegerKey) entry.key).getKey());
+			Collections.reverse(seenDown);
+			System.out.println("  " + n + " keys when the scans were opened, "
+					+ odd.size() + " inserted and " + deleted.size()
+					+ " deleted since; the scans returned " + seenUp.size()
+					+ " and " + seenDown.size());
+			if (!seenUp.equals(before) || !seenDown.equals(before)) {
+				System.err.println("*** a snapshot scan saw later changes");
+				status = FAIL;
+			}
+
+			TreeSet<Integer> now = new TreeSet<Integer>(odd);
+			now.addAll(even.subList(n / 2, n));
+			if (!holds(file, now))
+				status = FAIL;
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 7 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Order statistics of a counted file against a sorted list of its keys,
+	 * which holds every key twice: count, rank and select agree with the list
+	 * after the inserts, which split pages, after most keys are deleted, and
+	 * after compact(). Deletes do not merge the pages of a counted file, so
+	 * the leaves are only packed by compact().
+	 */
+	protected boolean test8() {
+		System.out.println("\n  Test 8: order statistics of a counted file\n");
+		boolean status = OK;
+		int n = 20000;
+		try {
+			BTreeFile file = new BTreeFile("counted", AttrType.attrInteger, 4,
+					FULL_DELETE, BTreeFlags.COUNTED);
+			ArrayList<Integer> entries = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				entries.add(i);
+			Collections.shuffle(entries, new Random(9));
+			ArrayList<Integer> model = new ArrayList<Integer>();
+			for (int i : entries) {
+				file.insert(new IntegerKey(i / 2), new RID(new PageId(i), i));
+				model.add(i / 2);
+			}
+			Collections.sort(model);
+			if (!countsAgree(file, model, "inserts"))
+				status = FAIL;
+
+			int leaves = file.getHeaderPage().getLeafCount();
+			for (int i : entries.subList(0, n * 3 / 4)) {
+				file.Delete(new IntegerKey(i / 2), new RID(new PageId(i), i));
+				model.remove(Collections.binarySearch(model, i / 2));
+			}
+			if (file.getHeaderPage().getLeafCount() != leaves) {
+				System.err.println("*** the deletes merged counted pages");
+				status = FAIL;
+			}
+			if (!countsAgree(file, model, "deletes"))
+				status = FAIL;
+
+			file.compact();
+			int packed = file.getHeaderPage().getLeafCount();
+			System.out.println("  " + leaves + " leaves, " + packed
+					+ " after compaction");
+			if (packed > leaves / 2) {
+				System.err.println("*** the leaves were not packed");
+				status = FAIL;
+			}
+			if (!countsAgree(file, model, "compaction"))
+				status = FAIL;
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 8 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Whether count, rank and select of a counted file agree with the sorted
+	 * list of its keys, for every key in the list and around it, and for
+	 * ranges between them.
+	 */
+	private static boolean countsAgree(BTreeFile file, ArrayList<Integer> model,
+			String after) throws Exception {
+		int size = model.size(), wrong = 0;
+		int top = size == 0 ? 0 : model.get(size - 1) + 2;
+		for (int k = -1; k <= top; k++) {
+			if (file.rank(new IntegerKey(k)) != below(model, k))
+				wrong++;
+		}
+		for (int i = 0; i < size; i++) {
+			KeyDataEntry entry = file.select(i);
+			if (entry == null
+					|| ((IntegerKey) entry.key).getKey().intValue() != model
+							.get(i))
+				wrong++;
+		}
+		if (file.select(size) != null)
+			wrong++;
+		Random random = new Random(size);
+		for (int i = 0; i < 1000; i++) {
+			int lo = random.nextInt(top + 2) - 1;
+			int hi = random.nextInt(top + 2) - 1;
+			int want = lo > hi ? 0 : below(model, hi + 1) - below(model, lo);
+			if (file.count(new IntegerKey(lo), new IntegerKey(hi)) != want)
+				wrong++;
+		}
+		if (file.count(null, null) != size
+				|| file.count(null, new IntegerKey(top)) != size
+				|| file.count(new IntegerKey(-1), null) != size)
+			wrong++;
+		System.out.println("  after " + after + ": " + size + " entries, "
+				+ wrong + " wrong answers");
+		if (wrong != 0)
+			System.err.println("*** count, rank or select went wrong");
+		return wrong == 0;
+	}
+
+	/**
+	 * how many keys of the sorted list are below k
+	 */
+	private static int below(List<Integer> sorted, int k) {
+		int lo = 0, hi = sorted.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sorted.get(mid) < k)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Descending scans against the entries of the file in key order, with
+	 * open, closed and swapped bounds, bounds between keys, and keys with so
+	 * many entries that they run over several leaves: a descending scan
+	 * returns the entries of its range from the last to the first, those with
+	 * equal keys in the reverse of the order an ascending scan returns them
+	 * in; a snapshot scan returns the same.
+	 */
+	protected boolean test9() {
+		System.out.println("\n  Test 9: descending scans\n");
+		boolean status = OK;
+		int keys = 1000, run = 250;
+		try {
+			BTreeFile file = new BTreeFile("descending", AttrType.attrInteger,
+					4, FULL_DELETE);
+			// the even keys below 2 * keys, every hundredth run times
+			ArrayList<Integer> entries = new ArrayList<Integer>();
+			for (int k = 0; k < keys; k++) {
+				for (int i = k % 100 == 50 ? run : 1; i > 0; i--)
+					entries.add(2 * k);
+			}
+			ArrayList<Integer> order = new ArrayList<Integer>();
+			for (int i = 0; i < entries.size(); i++)
+				order.add(i);
+			Collections.shuffle(order, new Random(10));
+			for (int i : order)
+				file.insert(new IntegerKey(entries.get(i)), new RID(new PageId(
+						i), i));
+			Integer[][] ranges = { { null, null }, { null, 1000 },
+					{ 1000, null }, { 300, 1300 }, { 1300, 300 },
+					{ 301, 1299 }, { 100, 100 }, { 1100, 1100 },
+					{ 101, 101 }, { -5, -1 }, { 2 * keys, null } };
+			int wrong = 0;
+			for (Integer[] r : ranges) {
+				KeyClass lo = r[0] == null ? null : new IntegerKey(r[0]);
+				KeyClass hi = r[1] == null ? null : new IntegerKey(r[1]);
+				int from = r[0] == null ? Integer.MIN_VALUE : r[0];
+				int to = r[1] == null ? Integer.MAX_VALUE : r[1];
+				int count = 0;
+				for (int k : entries) {
+					if (k >= Math.min(from, to) && k <= Math.max(from, to))
+						count++;
+				}
+				ArrayList<Long> up = scanned(file, lo, hi, false, false);
+				Collections.reverse(up);
+				for (int snapshot = 0; snapshot < 2; snapshot++) {
+					ArrayList<Long> down = scanned(file, lo, hi,
+							snapshot == 1, true);
+					if (up.size() != count || !down.equals(up)
+							|| !descends(down)) {
+						System.err.println("*** the descending scan of ["
+								+ r[0] + ", " + r[1] + "] returned "
+								+ down.size() + " entries of " + count);
+						wrong++;
+					}
+				}
+			}
+			System.out.println("  " + entries.size() + " entries, "
+					+ ranges.length + " ranges, " + wrong
+					+ " scans wrong");
+			if (wrong != 0)
+				status = FAIL;
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 9 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * The entries a scan returns, each as its key in the high half and the
+	 * slot of its rid in the low half.
+	 */
+	private static ArrayList<Long> scanned(BTreeFile file, KeyClass lo,
+			KeyClass hi, boolean snapshot, boolean descending) {
+		ArrayList<Long> seen = new ArrayList<Long>();
+		BTFileScan scan = file.new_scan(lo, hi, snapshot, descending);
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null)
+			seen.add((long) ((IntegerKey) entry.key).getKey() << 32
+					| ((LeafData) entry.data).getData().slotNo);
+		scan.DestroyBTreeFileScan();
+		return seen;
+	}
+
+	/**
+	 * whether the keys of the entries scanned do not go up
+	 */
+	private static boolean descends(List<Long> seen) {
+		for (int i = 1; i < seen.size(); i++) {
+			if (seen.get(i - 1) >> 32 < seen.get(i) >> 32)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * ranges of the entries of rangeFile to scan, as the numbers of the
+	 * entries at their bounds; null for no bound
+	 */
+	private static final Integer[][] RANGES = { { null, null },
+			{ null, 3000 }, { 6000, null }, { 2000, 9000 }, { 9000, 2000 },
+			{ 4500, 4500 }, { 1, 2 } };
+
+	/**
+	 * A file of n entries to scan, entry i with the key rangeKey(i) and a
+	 * rid made from i, inserted in random order.
+	 *
+	 * @param strings
+	 *            whether the keys are strings, in prefix-compressed pages,
+	 *            rather than integers, three entries to a key
+	 */
+	private static BTreeFile rangeFile(String name, boolean strings, int n)
+			throws Exception {
+		BTreeFile file = strings ? new BTreeFile(name, AttrType.attrString,
+				40, FULL_DELETE, BTreeFlags.PREFIX) : new BTreeFile(name,
+				AttrType.attrInteger, 4, FULL_DELETE);
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < n; i++)
+			order.add(i);
+		Collections.shuffle(order, new Random(11));
+		for (int i : order)
+			file.insert(rangeKey(strings, i), new RID(new PageId(i), i));
+		return file;
+	}
+
+	private static KeyClass rangeKey(boolean strings, int i) {
+		return strings ? longKey(i) : new IntegerKey(i / 3);
+	}
+
+	/**
+	 * the bound of one of the RANGES, as a key
+	 */
+	private static KeyClass bound(boolean strings, Integer i) {
+		return i == null ? null : rangeKey(strings, i);
+	}
+
+	/**
+	 * The entries a scan returns, each as its key and its rid.
+	 */
+	private static ArrayList<String> entries(BTFileScan scan) {
+		ArrayList<String> seen = new ArrayList<String>();
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null)
+			seen.add(show(entry));
+		scan.DestroyBTreeFileScan();
+		return seen;
+	}
+
+	/**
+	 * A cursor returns the same entries as a scan over the same range, in
+	 * the same order, for integer keys with equal keys across leaves and for
+	 * prefix-compressed string keys.
+	 */
+	protected boolean test10() {
+		System.out.println("\n  Test 10: cursors return what scans do\n");
+		boolean status = OK;
+		int n = 12000;
+		try {
+			for (int s = 0; s < 2; s++) {
+				boolean strings = s == 1;
+				BTreeFile file = rangeFile("cursor" + s, strings, n);
+				int wrong = 0;
+				for (Integer[] r : RANGES) {
+					KeyClass lo = bound(strings, r[0]);
+					KeyClass hi = bound(strings, r[1]);
+					ArrayList<String> scanned = entries(file.new_scan(lo, hi));
+					ArrayList<String> read = new ArrayList<String>();
+					BTCursor cursor = file.new_cursor(lo, hi);
+					MutableKey key = new MutableKey();
+					RID rid = new RID(new PageId(), 0);
+					while (cursor.next(key, rid))
+						read.add(key + " " + rid.pageNo.pid + "." + rid.slotNo);
+					cursor.close();
+					if (scanned.isEmpty() || !read.equals(scanned)) {
+						System.err.println("*** the cursor over [" + r[0]
+								+ ", " + r[1] + "] returned " + read.size()
+								+ " entries, the scan " + scanned.size());
+						wrong++;
+					}
+				}
+				System.out.println("  " + (strings ? "string" : "integer")
+						+ " keys: " + RANGES.length + " ranges, " + wrong
+						+ " cursors wrong");
+				if (wrong != 0)
+					status = FAIL;
+				file.destroyFile();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 10 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * A stream returns the same entries as a scan over the same range, in
+	 * the same order; and the pieces its spliterator splits into, split as
+	 * far as they go, cover the range between them, each entry in one piece
+	 * only, the keys of a piece all below those of the pieces after it.
+	 */
+	protected boolean test11() {
+		System.out.println("\n  Test 11: streams return what scans do\n");
+		boolean status = OK;
+		int n = 12000;
+		try {
+			for (int s = 0; s < 2; s++) {
+				boolean strings = s == 1;
+				BTreeFile file = rangeFile("stream" + s, strings, n);
+				int wrong = 0, most = 0;
+				for (Integer[] r : RANGES) {
+					KeyClass lo = bound(strings, r[0]);
+					KeyClass hi = bound(strings, r[1]);
+					ArrayList<String> scanned = entries(file.new_scan(lo, hi));
+
+					Stream<KeyDataEntry> stream = file.stream(lo, hi);
+					ArrayList<String> streamed = new ArrayList<String>();
+					Iterator<KeyDataEntry> it = stream.iterator();
+					while (it.hasNext())
+						streamed.add(show(it.next()));
+					stream.close();
+
+					stream = file.stream(lo, hi);
+					ArrayList<Spliterator<KeyDataEntry>> pieces = new ArrayList<Spliterator<KeyDataEntry>>();
+					split(stream.spliterator(), pieces);
+					final ArrayList<KeyDataEntry> piece = new ArrayList<KeyDataEntry>();
+					Consumer<KeyDataEntry> add = new Consumer<KeyDataEntry>() {
+						public void accept(KeyDataEntry entry) {
+							piece.add(entry);
+						}
+					};
+					ArrayList<String> joined = new ArrayList<String>();
+					KeyClass last = null;
+					boolean disjoint = true;
+					for (Spliterator<KeyDataEntry> p : pieces) {
+						piece.clear();
+						while (p.tryAdvance(add))
+							;
+						if (piece.isEmpty())
+							continue;
+						if (last != null
+								&& BT.keyCompare(last, piece.get(0).key) >= 0)
+							disjoint = false;
+						last = piece.get(piece.size() - 1).key;
+						for (KeyDataEntry entry : piece)
+							joined.add(show(entry));
+					}
+					stream.close();
+					most = Math.max(most, pieces.size());
+
+					if (scanned.isEmpty() || !streamed.equals(scanned)
+							|| !joined.equals(scanned) || !disjoint) {
+						System.err.println("*** the stream over [" + r[0]
+								+ ", " + r[1] + "] returned " + streamed.size()
+								+ " entries, its pieces " + joined.size()
+								+ ", the scan " + scanned.size());
+						wrong++;
+					}
+				}
+				System.out.println("  " + (strings ? "string" : "integer")
+						+ " keys: " + RANGES.length + " ranges, up to " + most
+						+ " pieces, " + wrong + " streams wrong");
+				if (most < 2) {
+					System.err.println("*** no stream was split");
+					wrong++;
+				}
+				if (wrong != 0)
+					status = FAIL;
+				file.destroyFile();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 11 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Split a spliterator as far as it goes, adding the pieces in the order
+	 * of their ranges.
+	 */
+	private static void split(Spliterator<KeyDataEntry> s,
+			List<Spliterator<KeyDataEntry>> pieces) {
+		Spliterator<KeyDataEntry> before = s.trySplit();
+		if (before == null) {
+			pieces.add(s);
+			return;
+		}
+		split(before, pieces);
+		split(s, pieces);
+	}
+
+	/**
+	 * an entry as its key and its rid
+	 */
+	private static String show(KeyDataEntry entry) {
+		RID rid = ((LeafData) entry.data).getData();
+		return entry.key + " " + rid.pageNo.pid + "." + rid.slotNo;
+	}
+
+	/**
+	 * An IntBTreeFile against a sorted map of its keys: the inserts, lookups,
+	 * deletes and scans made with ints agree with the map, and a scan that
+	 * is under way while inserts split the leaves ahead of it and behind it
+	 * returns every key that was there when it started, once each, in order.
+	 */
+	protected boolean test12() {
+		System.out.println("\n  Test 12: an index of int keys\n");
+		boolean status = OK;
+		int n = 20000;
+		try {
+			IntBTreeFile file = new IntBTreeFile("ints", FULL_DELETE, 0);
+			TreeMap<Integer, Integer> model = new TreeMap<Integer, Integer>();
+			Random random = new Random(12);
+			// keys on both sides of 0, with gaps between them
+			while (model.size() < n) {
+				int key = 3 * (random.nextInt(4 * n) - 2 * n);
+				if (model.containsKey(key))
+					continue;
+				int i = model.size();
+				file.insert(key, new RID(new PageId(i), i));
+				model.put(key, i);
+			}
+			int wrong = intsWrong(file, model);
+
+			// a scan across splits: it is half way when the keys between
+			// those there go in
+			IntBTFileScan scan = file.new_scan(Integer.MIN_VALUE,
+					Integer.MAX_VALUE);
+			ArrayList<Integer> seen = new ArrayList<Integer>();
+			for (int i = 0; i < n / 2 && scan.next(); i++)
+				seen.add(scan.key());
+			TreeMap<Integer, Integer> before = new TreeMap<Integer, Integer>(
+					model);
+			for (int key : before.keySet()) {
+				if (random.nextInt(2) == 0) {
+					int i = n + model.size();
+					file.insert(key + 1, new RID(new PageId(i), i));
+					model.put(key + 1, i);
+				}
+			}
+			while (scan.next())
+				seen.add(scan.key());
+			scan.DestroyBTreeFileScan();
+			boolean ordered = true;
+			for (int i = 1; i < seen.size(); i++) {
+				if (seen.get(i - 1) >= seen.get(i))
+					ordered = false;
+			}
+			if (!ordered || !seen.containsAll(before.keySet())
+					|| !model.keySet().containsAll(seen)) {
+				System.err.println("*** the scan across splits returned "
+						+ seen.size() + " keys, not each of the " + n
+						+ " once in order");
+				wrong++;
+			}
+			wrong += intsWrong(file, model);
+			int inserted = model.size() - before.size();
+
+			ArrayList<Integer> keys = new ArrayList<Integer>(model.keySet());
+			Collections.shuffle(keys, random);
+			TreeMap<Integer, Integer> deleted = new TreeMap<Integer, Integer>();
+			for (int key : keys.subList(0, keys.size() / 2)) {
+				int i = model.remove(key);
+				if (!file.Delete(key, new RID(new PageId(i), i)))
+					wrong++;
+				deleted.put(key, i);
+			}
+			wrong += intsWrong(file, model);
+			RID rid = new RID(new PageId(), 0);
+			for (int key : deleted.keySet()) {
+				if (file.lookup(key, rid))
+					wrong++;
+			}
+			System.out.println("  " + n + " keys, " + inserted
+					+ " inserted during a scan, " + deleted.size()
+					+ " deleted; " + wrong + " wrong answers");
+			if (wrong != 0)
+				status = FAIL;
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 12 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * How many answers of an IntBTreeFile disagree with the map of its keys
+	 * to the numbers their rids are made from: a lookup of every key and of
+	 * the key after it, which is not in the file unless the map has it, and
+	 * scans of the whole file and of ranges of it, swapped bounds among
+	 * them.
+	 */
+	private static int intsWrong(IntBTreeFile file,
+			TreeMap<Integer, Integer> model) {
+		int wrong = 0;
+		RID rid = new RID(new PageId(), 0);
+		for (Map.Entry<Integer, Integer> e : model.entrySet()) {
+			if (!file.lookup(e.getKey(), rid)
+					|| rid.slotNo != e.getValue().intValue())
+				wrong++;
+			if (file.lookup(e.getKey() + 1, rid) != model.containsKey(e
+					.getKey() + 1))
+				wrong++;
+		}
+		int lo = model.firstKey(), hi = model.lastKey();
+		int[][] ranges = { { Integer.MIN_VALUE, Integer.MAX_VALUE },
+				{ lo, hi }, { hi, lo }, { 0, hi / 2 }, { lo / 2, -1 },
+				{ 7, 7 }, { hi + 1, Integer.MAX_VALUE } };
+		for (int[] r : ranges) {
+			int from = Math.min(r[0], r[1]), to = Math.max(r[0], r[1]);
+			Iterator<Map.Entry<Integer, Integer>> want = model.subMap(from,
+					true, to, true).entrySet().iterator();
+			IntBTFileScan scan = file.new_scan(r[0], r[1]);
+			while (scan.next()) {
+				Map.Entry<Integer, Integer> e = want.hasNext() ? want.next()
+						: null;
+				if (e == null || e.getKey() != scan.key()
+						|| e.getValue() != scan.rid().slotNo) {
+					wrong++;
+					break;
+				}
+			}
+			scan.DestroyBTreeFileScan();
+			if (want.hasNext())
+				wrong++;
+		}
+		return wrong;
+	}
+
+	/**
+	 * Bulk loads against the keys loaded: no entries leave the file empty, a
+	 * single one makes a tree of one leaf, and the fill factor leaves room on
+	 * every page, so that a file loaded half full takes half as many keys
+	 * again without a split. Each file then takes plain inserts.
+	 */
+	protected boolean test13() {
+		System.out.println("\n  Test 13: bulk loads\n");
+		boolean status = OK;
+		int n = 20000;
+		try {
+			BTreeFile file = new BTreeFile("load0", AttrType.attrInteger, 4,
+					FULL_DELETE);
+			file.bulkLoad(new ArrayList<KeyDataEntry>().iterator(), 1.0);
+			if (!holds(file, new ArrayList<Integer>()))
+				status = FAIL;
+			insert(file, Arrays.asList(5, 3, 9));
+			if (!holds(file, Arrays.asList(3, 5, 9)))
+				status = FAIL;
+			file.destroyFile();
+
+			file = new BTreeFile("load1", AttrType.attrInteger, 4,
+					FULL_DELETE);
+			ArrayList<KeyDataEntry> one = new ArrayList<KeyDataEntry>();
+			one.add(new KeyDataEntry(new IntegerKey(7), new RID(
+					new PageId(7), 7)));
+			file.bulkLoad(one.iterator(), 1.0);
+			if (!holds(file, Arrays.asList(7))
+					|| file.getHeaderPage().getLeafCount() != 1) {
+				System.err.println("*** one key did not make one leaf");
+				status = FAIL;
+			}
+			ArrayList<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < 1000; i++) {
+				if (i != 7)
+					keys.add(i);
+			}
+			Collections.shuffle(keys, new Random(13));
+			insert(file, keys);
+			keys.add(7);
+			if (!holds(file, keys))
+				status = FAIL;
+			file.destroyFile();
+
+			// the even keys, loaded full and half full
+			ArrayList<KeyDataEntry> even = new ArrayList<KeyDataEntry>();
+			for (int i = 0; i < n; i++)
+				even.add(new KeyDataEntry(new IntegerKey(2 * i), new RID(
+						new PageId(2 * i), 2 * i)));
+			int[] leaves = new int[2];
+			for (int half = 0; half < 2; half++) {
+				file = new BTreeFile("load" + (2 + half),
+						AttrType.attrInteger, 4, FULL_DELETE);
+				file.bulkLoad(even.iterator(), half == 0 ? 1.0 : 0.5);
+				leaves[half] = file.getHeaderPage().getLeafCount();
+				ArrayList<Integer> loaded = new ArrayList<Integer>();
+				for (int i = 0; i < n; i++)
+					loaded.add(2 * i);
+				if (!holds(file, loaded))
+					status = FAIL;
+				if (half == 1) {
+					// every other odd key: half as many again, spread over
+					// every leaf
+					ArrayList<Integer> more = new ArrayList<Integer>();
+					for (int i = 0; i < n; i += 2)
+						more.add(2 * i + 1);
+					Collections.shuffle(more, new Random(14));
+					insert(file, more);
+					loaded.addAll(more);
+					int after = file.getHeaderPage().getLeafCount();
+					System.out.println("  " + n + " keys on " + leaves[0]
+							+ " leaves loaded full, on " + leaves[1]
+							+ " loaded half full, which took " + more.size()
+							+ " more on " + after);
+					if (after != leaves[1]) {
+						System.err.println("*** the room left was not kept");
+						status = FAIL;
+					}
+					if (!holds(file, loaded))
+						status = FAIL;
+				}
+				file.destroyFile();
+			}
+			if (leaves[1] < leaves[0] * 9 / 5) {
+				System.err.println("*** the fill factor was not kept");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 13 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Batch inserts of keys in no order, many of them equal, into a file
+	 * that already holds some of them: afterwards a scan returns every entry
+	 * inserted, each once, in key order. One batch is a single key many
+	 * times over, which takes several leaves; an empty batch changes
+	 * nothing.
+	 */
+	protected boolean test14() {
+		System.out.println("\n  Test 14: batch inserts\n");
+		boolean status = OK;
+		int batches = 20, size = 1000;
+		try {
+			BTreeFile file = new BTreeFile("batch", AttrType.attrInteger, 4,
+					FULL_DELETE);
+			ArrayList<Long> model = new ArrayList<Long>();
+			Random random = new Random(15);
+			int next = 0;
+			for (int b = 0; b <= batches; b++) {
+				KeyClass[] keys = new KeyClass[b == batches ? 0 : size];
+				RID[] rids = new RID[keys.length];
+				for (int i = 0; i < keys.length; i++) {
+					// the last batch but one holds a single key
+					int key = b == batches - 1 ? 777 : random
+							.nextInt(batches * size / 4);
+					keys[i] = new IntegerKey(key);
+					rids[i] = new RID(new PageId(next), next);
+					model.add((long) key << 32 | next);
+					next++;
+				}
+				file.insertBatch(keys, rids);
+			}
+			ArrayList<Long> seen = scanned(file, null, null, false, false);
+			Collections.reverse(seen);
+			boolean ordered = descends(seen);
+			Collections.sort(seen);
+			Collections.sort(model);
+			System.out.println("  " + batches + " batches of " + size
+					+ " keys and an empty one: " + seen.size() + " entries of "
+					+ model.size() + " on " + file.getHeaderPage()
+							.getLeafCount() + " leaves");
+			if (!ordered || !seen.equals(model)) {
+				System.err.println("*** a scan does not return the batches");
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 14 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * Batch lookups of keys in no order, some asked for more than once, some
+	 * not in the file, against a sorted map of the keys to the first rid of
+	 * each: every key in the file gets that rid, however many times it is
+	 * asked for, and every other key gets null. Some keys have so many
+	 * entries that they start on one leaf and go on over the next ones.
+	 */
+	protected boolean test15() {
+		System.out.println("\n  Test 15: batch lookups\n");
+		boolean status = OK;
+		int n = 5000, run = 200;
+		try {
+			BTreeFile file = new BTreeFile("lookup", AttrType.attrInteger, 4,
+					FULL_DELETE);
+			// the even keys below 2n, every fiftieth run times
+			int next = 0;
+			for (int round = 0; round < run; round++) {
+				ArrayList<Integer> keys = new ArrayList<Integer>();
+				for (int k = 0; k < n; k++) {
+					if (round == 0 || k % 50 == 25)
+						keys.add(2 * k);
+				}
+				Collections.shuffle(keys, new Random(16 + round));
+				for (int key : keys) {
+					file.insert(new IntegerKey(key), new RID(
+							new PageId(next), next));
+					next++;
+				}
+			}
+			// the first entry of a key is the one a scan returns first
+			TreeMap<Integer, Integer> first = new TreeMap<Integer, Integer>();
+			for (long entry : scanned(file, null, null, false, false)) {
+				if (!first.containsKey((int) (entry >> 32)))
+					first.put((int) (entry >> 32), (int) entry);
+			}
+
+			// keys in the file and not, below and above it, and some of
+			// them again further on
+			Random random = new Random(17);
+			ArrayList<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < 2 * n; i++)
+				keys.add(random.nextInt(2 * n + 20) - 10);
+			for (int i = 0; i < n; i++)
+				keys.add(keys.get(random.nextInt(keys.size())));
+			Collections.shuffle(keys, random);
+			KeyClass[] asked = new KeyClass[keys.size()];
+			for (int i = 0; i < asked.length; i++)
+				asked[i] = new IntegerKey(keys.get(i));
+			RID[] found = file.lookupBatch(asked);
+			int wrong = 0, hits = 0;
+			for (int i = 0; i < asked.length; i++) {
+				Integer want = first.get(keys.get(i));
+				if (want == null ? found[i] != null : found[i] == null
+						|| found[i].slotNo != want.intValue())
+					wrong++;
+				else if (want != null)
+					hits++;
+			}
+			System.out.println("  " + next + " entries, " + asked.length
+					+ " keys asked for, " + hits + " found, " + wrong
+					+ " wrong answers");
+			if (wrong != 0)
+				status = FAIL;
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 15 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * The separators of string keys that share a long prefix, some of them
+	 * the start of others: every separator on the index pages lies between
+	 * two neighbouring keys, above the one before it and a prefix of the one
+	 * at or after it, and no longer than it takes to be above the one before
+	 * it, so that a separator is cut short of the whole key wherever the
+	 * neighbours differ before their last char; the search for every key
+	 * still leads to the leaf that holds it. On plain and prefix-compressed
+	 * pages.
+	 */
+	protected boolean test16() {
+		System.out.println("\n  Test 16: separators of string keys\n");
+		boolean status = OK;
+		int n = 6000;
+		int[] formats = { 0, BTreeFlags.PREFIX };
+		try {
+			for (int flags : formats) {
+				BTreeFile file = new BTreeFile("separator" + flags,
+						AttrType.attrString, 48, FULL_DELETE, flags);
+				TreeSet<String> model = new TreeSet<String>();
+				for (int i = 0; i < n; i++) {
+					String key = longKey(i).getKey();
+					model.add(key);
+					// keys that start with the whole of another
+					for (int j = 0; i % 20 == 0 && j < 40; j++)
+						model.add(key + String.format("/sub-%02d", j));
+				}
+				ArrayList<String> keys = new ArrayList<String>(model);
+				Collections.shuffle(keys, new Random(18));
+				for (int i = 0; i < keys.size(); i++)
+					file.insert(new StringKey(keys.get(i)), new RID(
+							new PageId(i), i));
+
+				BTreeHeaderPage header = file.getHeaderPage();
+				TreeSet<String> separators = new TreeSet<String>();
+				HashSet<Integer> read = new HashSet<Integer>();
+				int lost = 0;
+				for (String k : model) {
+					StringKey key = new StringKey(k);
+					PageId pid = header.getRootID();
+					for (int level = header.getHeight(); level > 1; level--) {
+						BTIndexPage index = new BTIndexPage(pid, header);
+						PageId child = index.getPageNoByKey(key);
+						if (read.add(pid.pid)) {
+							RID rid = new RID();
+							KeyDataEntry e = index.getFirst(rid);
+							for (; e != null; e = index.getNext(rid))
+								separators.add(((StringKey) e.key).getKey());
+						}
+						SystemDefs.JavabaseBM.unpinPage(pid, false);
+						pid = child;
+					}
+					BTLeafPage leaf = new BTLeafPage(pid, header);
+					int slot = leaf.getFirstSlotByKey(key);
+					RID rid = new RID();
+					KeyDataEntry entry = leaf.getFirst(rid);
+					for (int j = 0; j < slot && entry != null; j++)
+						entry = leaf.getNext(rid);
+					if (entry == null || BT.keyCompare(entry.key, key) != 0)
+						lost++;
+					SystemDefs.JavabaseBM.unpinPage(pid, false);
+				}
+				int misplaced = 0, cut = 0, loose = 0;
+				for (String s : separators) {
+					String before = model.lower(s);
+					String after = model.ceiling(s);
+					if (before == null || after == null
+							|| !after.startsWith(s))
+						misplaced++;
+					else if (before.compareTo(s.substring(0,
+							s.length() - 1)) < 0)
+						loose++; // a shorter prefix of after is above before
+					else if (s.length() < after.length())
+						cut++;
+				}
+				System.out.println("  flags " + flags + ": " + model.size()
+						+ " keys, " + separators.size() + " separators, "
+						+ cut + " cut short, " + misplaced + " misplaced, "
+						+ loose + " too long, " + lost + " keys not found");
+				if (misplaced != 0 || loose != 0 || lost != 0 || cut == 0) {
+					System.err.println("*** the separators went wrong");
+					status = FAIL;
+				}
+				file.destroyFile();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 16 completed successfully.");
+		return status;
+	}
+
+	/**
+	 * a string key sharing a long prefix with the others
+	 */
+	private static StringKey longKey(int i) {
+		return new StringKey(String.format("customer/region-7/%08d", i));
+	}
+
+	/**
+	 * Whether getFirst and getNext return the keys of a page in order.
+	 */
+	private static boolean ordered(BTIndexPage page) throws Exception {
+		RID rid = new RID();
+		KeyClass last = null;
+		for (KeyDataEntry e = page.getFirst(rid); e != null; e = page
+				.getNext(rid)) {
+			if (last != null && BT.keyCompare(last, e.key) > 0)
+				return false;
+			last = e.key;
+		}
+		return true;
+	}
+}
+
+public class BTFileTest {
+
+	public static void main(String[] argvs) {
+		BTFileDriver bttest = new BTFileDriver();
+		boolean dbstatus = bttest.runTests();
+		if (dbstatus != true) {
+			System.err.println("Error encountered during B+ tree file tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}